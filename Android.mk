@@ -4,7 +4,8 @@ include $(CLEAR_VARS)
 LOCAL_MODULE_TAGS := optional
 
 LOCAL_SRC_FILES := $(call all-java-files-under, src) \
-	src/com/android/music/IMediaPlaybackService.aidl
+	src/com/android/music/IMediaPlaybackService.aidl \
+	src/com/android/music/IMediaPlaybackCallback.aidl
 
 LOCAL_PACKAGE_NAME := Music
 
@@ -196,6 +196,7 @@ public class AlbumBrowserActivity extends ListActivity
     private BroadcastReceiver mTrackListListener = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            MusicUtils.syncNowPlaying(intent);
             getListView().invalidateViews();
             MusicUtils.updateNowPlaying(AlbumBrowserActivity.this);
         }
@@ -300,8 +301,8 @@ public class AlbumBrowserActivity extends ListActivity
         switch (item.getItemId()) {
             case PLAY_SELECTION: {
                 // play the selected album
-                long [] list = MusicUtils.getSongListForAlbum(this, Long.parseLong(mCurrentAlbumId));
-                MusicUtils.playAll(this, list, 0);
+                MusicUtils.playCollection(this,
+                        CollectionQuery.album(Long.parseLong(mCurrentAlbumId)), 0, false);
                 return true;
             }
 
@@ -423,21 +424,13 @@ public class AlbumBrowserActivity extends ListActivity
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         Intent intent;
-        Cursor cursor;
         switch (item.getItemId()) {
             case PARTY_SHUFFLE:
                 MusicUtils.togglePartyShuffle();
                 break;
 
             case SHUFFLE_ALL:
-                cursor = MusicUtils.query(this, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                        new String [] { MediaStore.Audio.Media._ID},
-                        MediaStore.Audio.Media.IS_MUSIC + "=1", null,
-                        MediaStore.Audio.Media.DEFAULT_SORT_ORDER);
-                if (cursor != null) {
-                    MusicUtils.shuffleAll(this, cursor);
-                    cursor.close();
-                }
+                MusicUtils.playCollection(this, CollectionQuery.allSongs(), -1, true);
                 return true;
         }
         return super.onOptionsItemSelected(item);
@@ -658,6 +651,9 @@ public class AlbumBrowserActivity extends ListActivity
         }
         
         public int getSectionForPosition(int position) {
+            if (mIndexer != null) {
+                return mIndexer.getSectionForPosition(position);
+            }
             return 0;
         }
     }
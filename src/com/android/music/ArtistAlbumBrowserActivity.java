@@ -199,6 +199,7 @@ public class ArtistAlbumBrowserActivity extends ExpandableListActivity
     private BroadcastReceiver mTrackListListener = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            MusicUtils.syncNowPlaying(intent);
             getExpandableListView().invalidateViews();
             MusicUtils.updateNowPlaying(ArtistAlbumBrowserActivity.this);
         }
@@ -297,21 +298,13 @@ public class ArtistAlbumBrowserActivity extends ExpandableListActivity
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         Intent intent;
-        Cursor cursor;
         switch (item.getItemId()) {
             case PARTY_SHUFFLE:
                 MusicUtils.togglePartyShuffle();
                 break;
                 
             case SHUFFLE_ALL:
-                cursor = MusicUtils.query(this, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                        new String [] { MediaStore.Audio.Media._ID}, 
-                        MediaStore.Audio.Media.IS_MUSIC + "=1", null,
-                        MediaStore.Audio.Media.DEFAULT_SORT_ORDER);
-                if (cursor != null) {
-                    MusicUtils.shuffleAll(this, cursor);
-                    cursor.close();
-                }
+                MusicUtils.playCollection(this, CollectionQuery.allSongs(), -1, true);
                 return true;
         }
         return super.onOptionsItemSelected(item);
@@ -385,12 +378,12 @@ public class ArtistAlbumBrowserActivity extends ExpandableListActivity
         switch (item.getItemId()) {
             case PLAY_SELECTION: {
                 // play everything by the selected artist
-                long [] list =
+                CollectionQuery query =
                     mCurrentArtistId != null ?
-                    MusicUtils.getSongListForArtist(this, Long.parseLong(mCurrentArtistId))
-                    : MusicUtils.getSongListForAlbum(this, Long.parseLong(mCurrentAlbumId));
-                        
-                MusicUtils.playAll(this, list, 0);
+                    CollectionQuery.artist(Long.parseLong(mCurrentArtistId))
+                    : CollectionQuery.album(Long.parseLong(mCurrentAlbumId));
+
+                MusicUtils.playCollection(this, query, 0, false);
                 return true;
             }
 
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Random;
+
+/**
+ * Picks the tracks for party shuffle.
+ *
+ * Tracks are picked at random positions of the LibraryIndex, so the library
+ * never has to be loaded as a whole. Tracks that were picked recently are
+ * kept in a set and aren't picked again, unless the library is too small
+ * for that.
+ *
+ * A few picks are kept ready, and new ones are made on a background thread
+ * whenever some are taken, so take() never waits for the index. That
+ * should be the thread the index is updated on, so it doesn't change
+ * halfway through a round of picking.
+ *
+ * The methods may be called from any thread.
+ */
+public class AutoShuffleSource {
+    /**
+     * Receives a call on the background thread after each round of picking,
+     * including when it turned out there are no tracks to pick from.
+     */
+    public interface Listener {
+        void onTracksReady();
+    }
+
+    private static final int READY_COUNT = 8;
+    // random offsets tried before settling for a recently picked track
+    private static final int MAX_TRIES = 8;
+
+    private final LibraryIndex mIndex;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final Random mRandom = new Random();
+    // the picks that weren't taken yet, oldest first
+    private final long [] mReady = new long[READY_COUNT];
+    private int mReadyStart;
+    private int mReadyCount;
+    // the recently picked tracks, oldest first, and the same as a set
+    private long [] mRecent;
+    private int mRecentStart;
+    private int mRecentCount;
+    // how many times each id is in mRecent
+    private final LongIntMap mRecentCounts = new LongIntMap();
+    // number of tracks to pick from as of the last round, or -1 if unknown
+    private int mTrackCount = -1;
+    private boolean mRefillPending;
+
+    private final Runnable mRefill = new Runnable() {
+        public void run() {
+            refill();
+        }
+    };
+
+    /**
+     * @param looper the thread to pick tracks on
+     * @param recentCapacity the number of recently picked tracks to avoid
+     */
+    public AutoShuffleSource(LibraryIndex index, Looper looper, int recentCapacity,
+            Listener listener) {
+        mIndex = index;
+        mHandler = new Handler(looper);
+        mListener = listener;
+        mRecent = new long[Math.max(recentCapacity, 1)];
+    }
+
+    /**
+     * Returns the next picked track, or -1 if none is ready. Either way
+     * more are picked in the background.
+     */
+    public synchronized long take() {
+        long id = -1;
+        if (mReadyCount > 0) {
+            id = mReady[mReadyStart];
+            mReadyStart = (mReadyStart + 1) % READY_COUNT;
+            mReadyCount--;
+        }
+        requestRefill();
+        return id;
+    }
+
+    /**
+     * Has tracks picked in the background until there are enough ready.
+     * The listener is called when that's done.
+     */
+    public synchronized void requestRefill() {
+        if (!mRefillPending) {
+            mRefillPending = true;
+            mHandler.post(mRefill);
+        }
+    }
+
+    /**
+     * Returns the number of tracks there were to pick from in the last
+     * round of picking, or -1 if there was none yet.
+     */
+    public synchronized int getTrackCount() {
+        return mTrackCount;
+    }
+
+    /**
+     * Returns the ids of the recently picked tracks, oldest first.
+     */
+    public synchronized long [] getRecent() {
+        long [] recent = new long[mRecentCount];
+        for (int i = 0; i < mRecentCount; i++) {
+            recent[i] = mRecent[(mRecentStart + i) % mRecent.length];
+        }
+        return recent;
+    }
+
+    /**
+     * Replaces the recently picked tracks, such as with ones saved earlier.
+     * @param recent their ids, oldest first
+     */
+    public synchronized void setRecent(long [] recent) {
+        mRecentStart = 0;
+        mRecentCount = 0;
+        mRecentCounts.clear();
+        for (int i = 0; i < recent.length; i++) {
+            addRecent(recent[i]);
+        }
+    }
+
+    // Runs on the background thread.
+    private void refill() {
+        int count = mIndex.size();
+        synchronized (this) {
+            mTrackCount = count;
+            // Leave at least half of the library to pick from, so picking
+            // doesn't have to try too many times.
+            while (mRecentCount > count / 2) {
+                removeOldestRecent();
+            }
+        }
+        while (count > 0) {
+            synchronized (this) {
+                if (mReadyCount >= READY_COUNT) {
+                    break;
+                }
+            }
+            long id = -1;
+            for (int i = 0; i < MAX_TRIES; i++) {
+                id = mIndex.get(mRandom.nextInt(count));
+                if (id < 0) {
+                    // the card changed; try again next time
+                    break;
+                }
+                synchronized (this) {
+                    if (!mRecentCounts.containsKey(id)) {
+                        break;
+                    }
+                }
+            }
+            if (id < 0) {
+                break;
+            }
+            synchronized (this) {
+                addRecent(id);
+                mReady[(mReadyStart + mReadyCount) % READY_COUNT] = id;
+                mReadyCount++;
+            }
+        }
+        synchronized (this) {
+            mRefillPending = false;
+        }
+        mListener.onTracksReady();
+    }
+
+    private void addRecent(long id) {
+        if (id < 0) {
+            return;
+        }
+        if (mRecentCount == mRecent.length) {
+            removeOldestRecent();
+        }
+        mRecent[(mRecentStart + mRecentCount) % mRecent.length] = id;
+        mRecentCount++;
+        mRecentCounts.put(id, mRecentCounts.get(id, 0) + 1);
+    }
+
+    private void removeOldestRecent() {
+        long id = mRecent[mRecentStart];
+        mRecentStart = (mRecentStart + 1) % mRecent.length;
+        mRecentCount--;
+        // the same track can be in the list more than once
+        int count = mRecentCounts.get(id, 0) - 1;
+        if (count > 0) {
+            mRecentCounts.put(id, count);
+        } else {
+            mRecentCounts.remove(id);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.provider.MediaStore;
+
+/**
+ * Describes a set of tracks in the media database, such as an album or a
+ * playlist, in a few bytes. Clients pass one of these to the playback
+ * service instead of the track ids, and the service looks up the ids
+ * itself, so a large collection doesn't have to be read into the client
+ * and sent over Binder.
+ */
+public class CollectionQuery implements Parcelable {
+    public static final int ALL_SONGS = 0;
+    public static final int ARTIST = 1;
+    public static final int ALBUM = 2;
+    public static final int PLAYLIST = 3;
+    public static final int GENRE = 4;
+    public static final int RECENTLY_ADDED = 5;
+    public static final int PODCASTS = 6;
+
+    private static final long [] sEmptyList = new long[0];
+
+    private final int mType;
+    // the artist, album, playlist or genre id, or the number of weeks
+    // for RECENTLY_ADDED
+    private final long mArg;
+
+    private CollectionQuery(int type, long arg) {
+        mType = type;
+        mArg = arg;
+    }
+
+    public static CollectionQuery allSongs() {
+        return new CollectionQuery(ALL_SONGS, 0);
+    }
+
+    public static CollectionQuery artist(long id) {
+        return new CollectionQuery(ARTIST, id);
+    }
+
+    public static CollectionQuery album(long id) {
+        return new CollectionQuery(ALBUM, id);
+    }
+
+    public static CollectionQuery playlist(long id) {
+        return new CollectionQuery(PLAYLIST, id);
+    }
+
+    public static CollectionQuery genre(long id) {
+        return new CollectionQuery(GENRE, id);
+    }
+
+    public static CollectionQuery recentlyAdded(int weeks) {
+        return new CollectionQuery(RECENTLY_ADDED, weeks);
+    }
+
+    public static CollectionQuery podcasts() {
+        return new CollectionQuery(PODCASTS, 0);
+    }
+
+    /**
+     * Returns the query with the given type and argument, as returned by
+     * getType() and getArg(), or null if the type isn't known.
+     */
+    public static CollectionQuery valueOf(int type, long arg) {
+        if (type < ALL_SONGS || type > PODCASTS) {
+            return null;
+        }
+        return new CollectionQuery(type, arg);
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public long getArg() {
+        return mArg;
+    }
+
+    /**
+     * Returns the ids of the tracks in the collection, in the order they
+     * should be played, or an empty array if there are none or the query
+     * failed.
+     */
+    public long [] getSongList(ContentResolver resolver) {
+        Cursor c = query(resolver);
+        if (c == null) {
+            return sEmptyList;
+        }
+        try {
+            // a single forward pass, so only one window of the result
+            // is filled at a time
+            long [] list = new long[c.getCount()];
+            int n = 0;
+            while (n < list.length && c.moveToNext()) {
+                list[n++] = c.getLong(0);
+            }
+            if (n < list.length) {
+                long [] shorter = new long[n];
+                System.arraycopy(list, 0, shorter, 0, n);
+                list = shorter;
+            }
+            return list;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Runs the query. The ids of the tracks are in the first column.
+     * @return the cursor, or null if the query failed.
+     */
+    public Cursor query(ContentResolver resolver) {
+        Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+        String idColumn = MediaStore.Audio.Media._ID;
+        String where = null;
+        String sortOrder = null;
+        switch (mType) {
+            case ALL_SONGS:
+                where = MediaStore.Audio.Media.IS_MUSIC + "=1";
+                // the order of the library index
+                sortOrder = MediaStore.Audio.Media._ID;
+                break;
+            case ARTIST:
+                where = MediaStore.Audio.Media.ARTIST_ID + "=" + mArg + " AND " +
+                        MediaStore.Audio.Media.IS_MUSIC + "=1";
+                sortOrder = MediaStore.Audio.Media.ALBUM_KEY + "," + MediaStore.Audio.Media.TRACK;
+                break;
+            case ALBUM:
+                where = MediaStore.Audio.Media.ALBUM_ID + "=" + mArg + " AND " +
+                        MediaStore.Audio.Media.IS_MUSIC + "=1";
+                sortOrder = MediaStore.Audio.Media.TRACK;
+                break;
+            case PLAYLIST:
+                uri = MediaStore.Audio.Playlists.Members.getContentUri("external", mArg);
+                idColumn = MediaStore.Audio.Playlists.Members.AUDIO_ID;
+                sortOrder = MediaStore.Audio.Playlists.Members.DEFAULT_SORT_ORDER;
+                break;
+            case GENRE:
+                uri = MediaStore.Audio.Genres.Members.getContentUri("external", mArg);
+                idColumn = MediaStore.Audio.Genres.Members.AUDIO_ID;
+                where = MediaStore.Audio.Media.IS_MUSIC + "=1";
+                sortOrder = MediaStore.Audio.Genres.Members.DEFAULT_SORT_ORDER;
+                break;
+            case RECENTLY_ADDED:
+                long since = System.currentTimeMillis() / 1000 - mArg * (3600 * 24 * 7);
+                where = MediaStore.MediaColumns.DATE_ADDED + ">" + since;
+                sortOrder = MediaStore.Audio.Media.DEFAULT_SORT_ORDER;
+                break;
+            case PODCASTS:
+                where = MediaStore.Audio.Media.IS_PODCAST + "=1";
+                sortOrder = MediaStore.Audio.Media.DEFAULT_SORT_ORDER;
+                break;
+            default:
+                return null;
+        }
+        try {
+            return resolver.query(uri, new String [] { idColumn }, where, null, sortOrder);
+        } catch (UnsupportedOperationException ex) {
+        } catch (SQLiteException ex) {
+        }
+        return null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CollectionQuery)) {
+            return false;
+        }
+        CollectionQuery other = (CollectionQuery) o;
+        return mType == other.mType && mArg == other.mArg;
+    }
+
+    @Override
+    public int hashCode() {
+        return mType * 31 + (int) (mArg ^ (mArg >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "CollectionQuery{type=" + mType + ", arg=" + mArg + "}";
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mType);
+        dest.writeLong(mArg);
+    }
+
+    public static final Parcelable.Creator<CollectionQuery> CREATOR =
+            new Parcelable.Creator<CollectionQuery>() {
+        public CollectionQuery createFromParcel(Parcel in) {
+            return new CollectionQuery(in.readInt(), in.readLong());
+        }
+
+        public CollectionQuery[] newArray(int size) {
+            return new CollectionQuery[size];
+        }
+    };
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import java.util.Arrays;
+
+/**
+ * A map from non-negative ints to ints, using open addressing with
+ * linear probing, so that neither keys nor values need to be boxed.
+ *
+ * This class is not thread-safe.
+ */
+public class IntIntMap extends LinearProbingTable {
+    private static final int EMPTY = -1;
+
+    private int [] mKeys;
+    private int [] mValues;
+    private int mSize;
+
+    public IntIntMap() {
+        allocate(16);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean containsKey(int key) {
+        return key >= 0 && mKeys[find(key)] == key;
+    }
+
+    /**
+     * Returns the value for 'key', or 'defaultValue' if there is none.
+     */
+    public int get(int key, int defaultValue) {
+        if (key < 0) {
+            return defaultValue;
+        }
+        int i = find(key);
+        return mKeys[i] == key ? mValues[i] : defaultValue;
+    }
+
+    public void put(int key, int value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("key " + key);
+        }
+        int i = find(key);
+        if (mKeys[i] != key) {
+            if ((mSize + 1) * 4 > mKeys.length * 3) {
+                grow();
+                i = find(key);
+            }
+            mKeys[i] = key;
+            mSize++;
+        }
+        mValues[i] = value;
+    }
+
+    public void remove(int key) {
+        if (key < 0) {
+            return;
+        }
+        int i = find(key);
+        if (mKeys[i] != key) {
+            return;
+        }
+        removeSlot(i, mKeys.length - 1);
+        mSize--;
+    }
+
+    public void clear() {
+        if (mSize > 0) {
+            Arrays.fill(mKeys, EMPTY);
+            mSize = 0;
+        }
+    }
+
+    // Returns the slot holding 'key', or the empty slot where it would go.
+    private int find(int key) {
+        int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mKeys[i] != key && mKeys[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    @Override
+    boolean isEmptySlot(int i) {
+        return mKeys[i] == EMPTY;
+    }
+
+    @Override
+    int hashOfSlot(int i) {
+        return hash(mKeys[i]);
+    }
+
+    @Override
+    void moveSlot(int from, int to) {
+        mKeys[to] = mKeys[from];
+        mValues[to] = mValues[from];
+    }
+
+    @Override
+    void clearSlot(int i) {
+        mKeys[i] = EMPTY;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new int[capacity];
+        mValues = new int[capacity];
+        Arrays.fill(mKeys, EMPTY);
+    }
+
+    private void grow() {
+        int [] keys = mKeys;
+        int [] values = mValues;
+        allocate(keys.length * 2);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                int j = find(keys[i]);
+                mKeys[j] = keys[i];
+                mValues[j] = values[i];
+            }
+        }
+    }
+}
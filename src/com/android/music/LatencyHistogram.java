@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects durations in milliseconds, such as how long it took to open a
+ * track, so they can be summed up in a dump.
+ *
+ * Durations are counted in buckets that grow exponentially, four to each
+ * power of two, so percentiles are accurate to within a quarter while a
+ * few hundred bytes cover everything up to a quarter of an hour. Counting
+ * takes no lock, so it can be done from any thread, including with the
+ * service locked.
+ */
+public class LatencyHistogram {
+    // durations below this get a bucket of their own
+    private static final int LINEAR = 4;
+    // the highest power of two counted; longer durations go in the last bucket
+    private static final int MAX_SHIFT = 20;
+    private static final int BUCKETS = LINEAR + (MAX_SHIFT - 2) * LINEAR + 1;
+
+    private final String mName;
+    private final AtomicIntegerArray mBuckets = new AtomicIntegerArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    /**
+     * Counts a duration. Negative ones, which a clock change can cause,
+     * are counted as 0.
+     */
+    public void add(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        mBuckets.incrementAndGet(bucket(millis));
+        mCount.incrementAndGet();
+        mSum.addAndGet(millis);
+        long max;
+        do {
+            max = mMax.get();
+        } while (millis > max && !mMax.compareAndSet(max, millis));
+    }
+
+    /**
+     * Counts the time since 'start', which was taken from the same clock
+     * as SystemClock.elapsedRealtime().
+     */
+    public void addSince(long start) {
+        add(SystemClock.elapsedRealtime() - start);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Returns the duration that 'percent' percent of the counted durations
+     * didn't exceed, rounded up to the bucket it falls in, or -1 if nothing
+     * was counted.
+     */
+    public long getPercentile(int percent) {
+        long count = mCount.get();
+        if (count == 0) {
+            return -1;
+        }
+        // the buckets can be a little ahead of the count; that's fine here
+        long rank = (count * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    public void dump(PrintWriter writer) {
+        long count = mCount.get();
+        if (count == 0) {
+            writer.println(mName + ": no samples");
+            return;
+        }
+        writer.println(mName + ": " + count + " samples, mean " + (mSum.get() / count)
+                + " ms, 50% <= " + getPercentile(50)
+                + " ms, 90% <= " + getPercentile(90)
+                + " ms, 99% <= " + getPercentile(99)
+                + " ms, max " + mMax.get() + " ms");
+    }
+
+    private static int bucket(long millis) {
+        if (millis < LINEAR) {
+            return (int) millis;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(millis);
+        if (shift >= MAX_SHIFT) {
+            return BUCKETS - 1;
+        }
+        // the two bits below the highest one pick the bucket within
+        // this power of two
+        int sub = (int) (millis >>> (shift - 2)) & (LINEAR - 1);
+        return LINEAR + (shift - 2) * LINEAR + sub;
+    }
+
+    // Returns the longest duration that goes into bucket 'i'.
+    private static long upperBound(int i) {
+        if (i < LINEAR) {
+            return i;
+        }
+        if (i == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        int shift = (i - LINEAR) / LINEAR + 2;
+        int sub = (i - LINEAR) % LINEAR;
+        return ((long) (LINEAR + sub + 1) << (shift - 2)) - 1;
+    }
+}
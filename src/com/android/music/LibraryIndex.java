@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * The ids of all music tracks in the media database, in ascending order,
+ * kept in a LongArrayStore so they survive restarts.
+ *
+ * The index is brought up to date on a background thread. Rather than
+ * reading all ids again, an update reads the ids above the highest one
+ * in the index, and finds removed tracks by counting the tracks in ranges
+ * of the index: a range whose count still matches is left alone, and one
+ * that doesn't is split until the ranges are small enough to read again.
+ * The media provider never gives out an id below the highest one in use,
+ * so new tracks can't show up in between.
+ *
+ * The index belongs to one card; it is read again from scratch when the
+ * card changes.
+ *
+ * The methods may be called from any thread.
+ */
+public class LibraryIndex {
+    /**
+     * Receives a call on the background thread whenever an update changed
+     * the index.
+     */
+    public interface Listener {
+        void onIndexChanged();
+    }
+
+    private static final String WHERE = MediaStore.Audio.Media.IS_MUSIC + "=1";
+    private static final int META_CARDID = 0;
+    // ranges of the index this small are read again rather than split
+    private static final int LEAF_SIZE = 256;
+    // past this many queries, reading all ids is quicker than going on
+    private static final int MAX_DIFF_QUERIES = 32;
+    // the media provider sends a burst of notifications while scanning
+    private static final int UPDATE_DELAY = 2000;
+
+    private final LongArrayStore mStore;
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private int mCardId;
+    private boolean mUpdatePending;
+    // held while updating, so the store isn't closed under the update
+    private final Object mUpdateLock = new Object();
+    // snapshots that still read from the store
+    private final ArrayList<Snapshot> mSnapshots = new ArrayList<Snapshot>();
+    // the ids an update found, while it is building them
+    private long [] mOut;
+    private int mOutLen;
+    private int mQueriesLeft;
+
+    private final Runnable mUpdate = new Runnable() {
+        public void run() {
+            update();
+        }
+    };
+
+    /**
+     * A copy of the index as it was when the snapshot was taken. It costs
+     * nothing until the index changes, at which point the old contents
+     * are copied for it.
+     */
+    public class Snapshot implements PlaybackQueue.Source {
+        private final int mSize;
+        private long [] mCopy;
+        private boolean mReleased;
+
+        private Snapshot(int size) {
+            mSize = size;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public long get(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+            }
+            synchronized (LibraryIndex.this) {
+                return mCopy != null ? mCopy[index] : mStore.get(index);
+            }
+        }
+
+        public void release() {
+            synchronized (LibraryIndex.this) {
+                if (!mReleased) {
+                    mReleased = true;
+                    mSnapshots.remove(this);
+                    mCopy = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param looper the thread to update the index on
+     */
+    public LibraryIndex(File file, ContentResolver resolver, Looper looper, Listener listener) {
+        mStore = new LongArrayStore(file);
+        mResolver = resolver;
+        mHandler = new Handler(looper);
+        mListener = listener;
+    }
+
+    /**
+     * Maps the file the index is kept in, and brings the index up to date
+     * in the background.
+     * @param cardId the card the index should be for
+     */
+    public synchronized void open(int cardId) {
+        mStore.open();
+        mCardId = cardId;
+        requestUpdate(true);
+    }
+
+    /**
+     * Unmaps the file, waiting for an update that is underway to finish.
+     */
+    public void close() {
+        synchronized (mUpdateLock) {
+            synchronized (this) {
+                mHandler.removeCallbacks(mUpdate);
+                mUpdatePending = false;
+                mStore.close();
+            }
+        }
+    }
+
+    /**
+     * Switches to another card. The index is empty until it was read for it.
+     */
+    public synchronized void setCardId(int cardId) {
+        if (cardId != mCardId) {
+            mCardId = cardId;
+            requestUpdate(true);
+        }
+    }
+
+    /**
+     * Has the index brought up to date in the background.
+     * @param now false to wait a little, so a burst of changes is only
+     * looked at once
+     */
+    public synchronized void requestUpdate(boolean now) {
+        if (now) {
+            mHandler.removeCallbacks(mUpdate);
+            mHandler.post(mUpdate);
+            mUpdatePending = true;
+        } else if (!mUpdatePending) {
+            mHandler.postDelayed(mUpdate, UPDATE_DELAY);
+            mUpdatePending = true;
+        }
+    }
+
+    /**
+     * Returns the number of tracks in the index, which is 0 until it
+     * has been read for the current card.
+     */
+    public synchronized int size() {
+        return isCurrent() ? mStore.length() : 0;
+    }
+
+    /**
+     * Returns the id at 'index', or -1 if there's none, which can happen
+     * when the card changed since size() was called.
+     */
+    public synchronized long get(int index) {
+        if (index < 0 || index >= size()) {
+            return -1;
+        }
+        return mStore.get(index);
+    }
+
+    /**
+     * Returns a snapshot of the index, which has to be released when it
+     * is no longer used.
+     */
+    public synchronized Snapshot snapshot() {
+        Snapshot s = new Snapshot(size());
+        if (s.mSize > 0) {
+            mSnapshots.add(s);
+        } else {
+            s.mCopy = new long[0];
+        }
+        return s;
+    }
+
+    private boolean isCurrent() {
+        return mStore.isValid() && mStore.getMeta(META_CARDID) == mCardId;
+    }
+
+    private void update() {
+        synchronized (mUpdateLock) {
+            updateLocked();
+        }
+    }
+
+    // Runs on the background thread. That is the only thread that changes
+    // the store, so it can read the store without the lock.
+    private void updateLocked() {
+        int cardId;
+        boolean rebuild;
+        synchronized (this) {
+            mUpdatePending = false;
+            if (!mStore.isOpen()) {
+                return;
+            }
+            cardId = mCardId;
+            rebuild = !isCurrent() || mStore.length() == 0;
+        }
+        int len = mStore.length();
+        mOut = new long[Math.max(len, 16)];
+        mOutLen = 0;
+        boolean ok;
+        if (rebuild) {
+            ok = readIds(null);
+        } else {
+            // the ranges that lost tracks, and then the tracks that are new
+            mQueriesLeft = MAX_DIFF_QUERIES;
+            ok = diff(0, len);
+            if (ok) {
+                ok = readIds(MediaStore.Audio.Media._ID + ">" + mStore.get(len - 1));
+            } else if (mQueriesLeft < 0) {
+                // tracks were removed all over the place
+                mOutLen = 0;
+                ok = readIds(null);
+            }
+        }
+        long [] ids = mOut;
+        int count = mOutLen;
+        mOut = null;
+        if (!ok) {
+            // most likely the card went away; try again on the next change
+            return;
+        }
+        int first = 0;
+        while (first < count && first < len && ids[first] == mStore.get(first)) {
+            first++;
+        }
+        if (!rebuild && first == count && count == len) {
+            return;
+        }
+        synchronized (this) {
+            if (cardId != mCardId) {
+                // read for the wrong card; another update is on its way
+                return;
+            }
+            // the snapshots keep what they have seen
+            long [] copy = null;
+            for (int i = 0; i < mSnapshots.size(); i++) {
+                Snapshot s = mSnapshots.get(i);
+                if (s.mCopy == null) {
+                    if (copy == null) {
+                        copy = new long[s.mSize];
+                        mStore.read(0, copy, 0, s.mSize);
+                    }
+                    s.mCopy = copy;
+                }
+            }
+            mSnapshots.clear();
+            if (count < len) {
+                mStore.setLength(count);
+            }
+            mStore.write(first, ids, first, count - first);
+            mStore.setMeta(META_CARDID, cardId);
+            mStore.commit();
+        }
+        mListener.onIndexChanged();
+    }
+
+    // Adds the ids that are now in the database between the ids at 'from'
+    // and 'to' - 1 in the index.
+    private boolean diff(int from, int to) {
+        if (--mQueriesLeft < 0) {
+            return false;
+        }
+        long lo = mStore.get(from);
+        long hi = mStore.get(to - 1);
+        String where = MediaStore.Audio.Media._ID + " BETWEEN " + lo + " AND " + hi;
+        if (to - from > LEAF_SIZE) {
+            int count = countIds(where);
+            if (count < 0) {
+                return false;
+            }
+            if (count == to - from) {
+                // nothing was removed here
+                ensureOut(count);
+                mStore.read(from, mOut, mOutLen, count);
+                mOutLen += count;
+                return true;
+            }
+            int mid = (from + to) >>> 1;
+            return diff(from, mid) && diff(mid, to);
+        }
+        return readIds(where);
+    }
+
+    // Returns the number of music tracks matching 'where', or -1.
+    private int countIds(String where) {
+        Cursor c = query(new String [] { "count(*)" }, where, null);
+        if (c == null) {
+            return -1;
+        }
+        try {
+            return c.moveToFirst() ? c.getInt(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    // Adds the ids of the music tracks matching 'where', in ascending order.
+    private boolean readIds(String where) {
+        Cursor c = query(new String [] { MediaStore.Audio.Media._ID }, where,
+                MediaStore.Audio.Media._ID);
+        if (c == null) {
+            return false;
+        }
+        try {
+            ensureOut(c.getCount());
+            while (c.moveToNext()) {
+                ensureOut(1);
+                mOut[mOutLen++] = c.getLong(0);
+            }
+            return true;
+        } finally {
+            c.close();
+        }
+    }
+
+    private void ensureOut(int more) {
+        if (mOutLen + more > mOut.length) {
+            long [] out = new long[Math.max(mOutLen + more, mOut.length * 2)];
+            System.arraycopy(mOut, 0, out, 0, mOutLen);
+            mOut = out;
+        }
+    }
+
+    private Cursor query(String [] projection, String where, String sortOrder) {
+        where = where != null ? WHERE + " AND " + where : WHERE;
+        try {
+            return mResolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection,
+                    where, null, sortOrder);
+        } catch (UnsupportedOperationException ex) {
+        } catch (SQLiteException ex) {
+        }
+        return null;
+    }
+}
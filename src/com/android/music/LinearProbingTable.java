@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+/**
+ * What the hash tables of IntIntMap, LongIntMap, LongHashSet,
+ * LongIntListMap and LongLruCache have in common: they use open
+ * addressing with linear probing over a power-of-two number of slots, and
+ * remove entries by shifting back the ones that follow, so lookups don't
+ * need tombstones.
+ *
+ * Subclasses keep the slots in whatever arrays suit them, and tell
+ * removeSlot() how to look at and move them.
+ */
+abstract class LinearProbingTable {
+    /**
+     * Mixes a key into a well-distributed int, whose low bits pick its
+     * home slot.
+     */
+    static int hash(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Returns whether slot 'i' is empty.
+     */
+    abstract boolean isEmptySlot(int i);
+
+    /**
+     * Returns hash() of the key in slot 'i', which isn't empty.
+     */
+    abstract int hashOfSlot(int i);
+
+    /**
+     * Moves the entry in slot 'from' to slot 'to', which is empty.
+     */
+    abstract void moveSlot(int from, int to);
+
+    /**
+     * Makes slot 'i' empty.
+     */
+    abstract void clearSlot(int i);
+
+    /**
+     * Empties slot 'i' of a table with 'mask' + 1 slots, shifting back the
+     * entries that follow in the same run into the hole.
+     */
+    final void removeSlot(int i, int mask) {
+        int hole = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (isEmptySlot(j)) {
+                break;
+            }
+            int home = hashOfSlot(j) & mask;
+            // move the entry into the hole unless its home slot lies
+            // cyclically between the hole and where it is now
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                moveSlot(j, hole);
+                hole = j;
+            }
+        }
+        clearSlot(hole);
+    }
+}
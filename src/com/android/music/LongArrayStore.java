@@ -0,0 +1,506 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent array of longs, kept in a memory-mapped file.
+ *
+ * The file starts with a fixed-size little-endian header holding a magic
+ * number, a format version, the number of valid entries, a checksum over
+ * those entries and a few "meta" slots the owner can use for whatever it
+ * needs to keep alongside the data. The entries follow the header.
+ *
+ * The checksum is a sum of per-entry hashes that depend on both the value
+ * and its index, so overwriting a range of entries only costs as much as
+ * the range itself. Writes go straight into the mapping and only become
+ * valid once commit() has updated the header.
+ *
+ * So that a crash before a commit is complete doesn't leave entries that
+ * don't match the header, the committed header and the committed entries
+ * about to be overwritten are first saved to an undo file next to the
+ * store, and synced. commit() deletes the undo file once the new contents
+ * are on disk; if open() finds one, it puts the saved values back, which
+ * gives the state of the last complete commit.
+ */
+public class LongArrayStore {
+    private static final String TAG = "LongArrayStore";
+
+    private static final int MAGIC = 0x4c41534d; // "MSAL" in little-endian
+    private static final int VERSION = 1;
+
+    /** Number of general purpose slots available through getMeta()/setMeta() */
+    public static final int META_SLOTS = 4;
+
+    // header layout, all values little-endian
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_LENGTH = 8;
+    private static final int OFFSET_CHECKSUM = 16;
+    private static final int OFFSET_META = 24;
+    // keep this a multiple of 8, so the entries are aligned
+    private static final int HEADER_SIZE = OFFSET_META + META_SLOTS * 8;
+
+    private static final int MIN_CAPACITY = 256;
+
+    private static final int UNDO_MAGIC = 0x4c41534e; // "NSAL" in little-endian
+
+    private final File mFile;
+    private final File mUndoFile;
+    // open from the first change after a commit until the next one
+    private FileOutputStream mUndo;
+    private final CRC32 mCrc = new CRC32();
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+    private LongBuffer mEntries;
+    private int mCapacity;
+    private int mLength;
+    private long mChecksum;
+    private final long [] mMeta = new long[META_SLOTS];
+    private boolean mValid;
+    // whether anything changed since the last commit
+    private boolean mDirty;
+
+    public LongArrayStore(File file) {
+        mFile = file;
+        mUndoFile = new File(file.getPath() + "-undo");
+    }
+
+    /**
+     * Maps the backing file and validates its contents.
+     * @return true if the file contained a valid array, false if the store
+     * was empty, corrupt or could not be opened. In the latter cases the store
+     * starts out empty.
+     */
+    public boolean open() {
+        close();
+        mValid = false;
+        mDirty = false;
+        mLength = 0;
+        mChecksum = 0;
+        for (int i = 0; i < META_SLOTS; i++) {
+            mMeta[i] = 0;
+        }
+        try {
+            mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+            mChannel = mRandomAccessFile.getChannel();
+            long size = mChannel.size();
+            int capacity = size > HEADER_SIZE ? (int) ((size - HEADER_SIZE) / 8) : 0;
+            map(Math.max(capacity, MIN_CAPACITY));
+        } catch (IOException ex) {
+            Log.e(TAG, "couldn't map " + mFile + ": " + ex);
+            close();
+            return false;
+        }
+        rollBack();
+
+        if (mBuffer.getInt(OFFSET_MAGIC) != MAGIC || mBuffer.getInt(OFFSET_VERSION) != VERSION) {
+            // new file, or one written by an incompatible version
+            writeHeader();
+            return false;
+        }
+        int len = mBuffer.getInt(OFFSET_LENGTH);
+        if (len < 0 || len > mCapacity) {
+            writeHeader();
+            return false;
+        }
+        long sum = 0;
+        for (int i = 0; i < len; i++) {
+            sum += hash(i, mEntries.get(i));
+        }
+        if (sum != mBuffer.getLong(OFFSET_CHECKSUM)) {
+            Log.w(TAG, "checksum mismatch in " + mFile + ", discarding contents");
+            writeHeader();
+            return false;
+        }
+        mLength = len;
+        mChecksum = sum;
+        for (int i = 0; i < META_SLOTS; i++) {
+            mMeta[i] = mBuffer.getLong(OFFSET_META + i * 8);
+        }
+        mValid = true;
+        return true;
+    }
+
+    /**
+     * Unmaps the file. The store can be reopened with open().
+     */
+    public void close() {
+        // uncommitted changes are rolled back when the store is opened again
+        closeUndo();
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+        mBuffer = null;
+        mEntries = null;
+        mCapacity = 0;
+        if (mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException ex) {
+            }
+            mRandomAccessFile = null;
+            mChannel = null;
+        }
+    }
+
+    public boolean isOpen() {
+        return mBuffer != null;
+    }
+
+    /**
+     * Returns whether the file held valid data when it was opened, or
+     * anything has been committed since.
+     */
+    public boolean isValid() {
+        return mValid;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public long get(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        }
+        return mEntries.get(index);
+    }
+
+    /**
+     * Copies 'count' entries starting at 'from' into 'dst'.
+     */
+    public void read(int from, long [] dst, int dstOffset, int count) {
+        if (from < 0 || count < 0 || from + count > mLength) {
+            throw new IndexOutOfBoundsException("from " + from + ", count " + count
+                    + ", length " + mLength);
+        }
+        LongBuffer entries = mEntries.duplicate();
+        entries.position(from);
+        entries.get(dst, dstOffset, count);
+    }
+
+    public long getMeta(int slot) {
+        return mMeta[slot];
+    }
+
+    /**
+     * Sets one of the meta slots. Like entry writes, the new value
+     * is only persisted by commit().
+     */
+    public void setMeta(int slot, long value) {
+        if (mMeta[slot] != value) {
+            mMeta[slot] = value;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Overwrites (or appends) 'count' entries starting at 'index'. The length
+     * of the array grows if needed, but never shrinks; use setLength() for that.
+     */
+    public void write(int index, long [] src, int srcOffset, int count) {
+        if (mBuffer == null) {
+            return;
+        }
+        if (index < 0 || index > mLength || count < 0) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        }
+        if (count == 0) {
+            return;
+        }
+        int end = index + count;
+        if (!ensureCapacity(end)) {
+            return;
+        }
+        int committed = Math.min(mBuffer.getInt(OFFSET_LENGTH), mCapacity);
+        saveUndo(index, Math.min(end, committed) - index);
+        long sum = mChecksum;
+        int overlap = Math.min(end, mLength);
+        for (int i = index; i < overlap; i++) {
+            sum -= hash(i, mEntries.get(i));
+        }
+        for (int i = 0; i < count; i++) {
+            sum += hash(index + i, src[srcOffset + i]);
+        }
+        LongBuffer entries = mEntries.duplicate();
+        entries.position(index);
+        entries.put(src, srcOffset, count);
+        mChecksum = sum;
+        if (end > mLength) {
+            mLength = end;
+        }
+        mDirty = true;
+    }
+
+    /**
+     * Changes the number of valid entries. Growing the array fills
+     * the new entries with 0.
+     */
+    public void setLength(int length) {
+        if (mBuffer == null || length < 0 || length == mLength) {
+            return;
+        }
+        saveUndo(0, 0);
+        mDirty = true;
+        if (length < mLength) {
+            long sum = mChecksum;
+            for (int i = length; i < mLength; i++) {
+                sum -= hash(i, mEntries.get(i));
+            }
+            mChecksum = sum;
+            mLength = length;
+        } else if (length > mLength) {
+            if (!ensureCapacity(length)) {
+                return;
+            }
+            // after shrinking, the new entries can be committed ones
+            int committed = Math.min(mBuffer.getInt(OFFSET_LENGTH), mCapacity);
+            saveUndo(mLength, Math.min(length, committed) - mLength);
+            long sum = mChecksum;
+            for (int i = mLength; i < length; i++) {
+                mEntries.put(i, 0);
+                sum += hash(i, 0);
+            }
+            mChecksum = sum;
+            mLength = length;
+        }
+    }
+
+    /**
+     * Makes everything written so far valid, by updating the header, and
+     * waits for it to reach the disk. Does nothing if nothing changed.
+     */
+    public void commit() {
+        if (mBuffer == null || (!mDirty && mValid)) {
+            return;
+        }
+        saveUndo(0, 0);
+        writeHeader();
+        mBuffer.force();
+        // the commit is complete once the old state can't be restored
+        closeUndo();
+        mUndoFile.delete();
+        mDirty = false;
+        mValid = true;
+    }
+
+    /**
+     * The same as commit(), which already waits for the data to reach
+     * the disk.
+     */
+    public void sync() {
+        commit();
+    }
+
+    // Saves the 'count' committed entries from 'index' on to the undo file,
+    // which is started with the committed header if there isn't one yet,
+    // and waits for them to reach the disk, so they can be overwritten.
+    private void saveUndo(int index, int count) {
+        if (count < 0) {
+            count = 0;
+        }
+        if (mUndo != null && count == 0) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            if (mUndo == null) {
+                byte [] header = new byte[HEADER_SIZE];
+                ByteBuffer buffer = mBuffer.duplicate();
+                buffer.position(0);
+                buffer.get(header);
+                out.writeInt(UNDO_MAGIC);
+                writeUndoRecord(out, header);
+                mUndo = new FileOutputStream(mUndoFile);
+            }
+            if (count > 0) {
+                ByteArrayOutputStream values = new ByteArrayOutputStream(8 + count * 8);
+                DataOutputStream record = new DataOutputStream(values);
+                record.writeInt(index);
+                record.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    record.writeLong(mEntries.get(index + i));
+                }
+                writeUndoRecord(out, values.toByteArray());
+            }
+            mUndo.write(bytes.toByteArray());
+            mUndo.getFD().sync();
+        } catch (IOException ex) {
+            // go ahead anyway; only a crash before the commit would hurt
+            Log.e(TAG, "couldn't write " + mUndoFile + ": " + ex);
+        }
+    }
+
+    // Each record is framed by its length and followed by a CRC, so that
+    // one that was only partially written is recognized, and skipped: the
+    // entries it was for hadn't been overwritten yet.
+    private void writeUndoRecord(DataOutputStream out, byte [] record) throws IOException {
+        mCrc.reset();
+        mCrc.update(record, 0, record.length);
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeInt((int) mCrc.getValue());
+    }
+
+    private byte [] readUndoRecord(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len <= 0 || len > HEADER_SIZE + 8 + mCapacity * 8L) {
+            return null;
+        }
+        byte [] record = new byte[len];
+        in.readFully(record);
+        int sum = in.readInt();
+        mCrc.reset();
+        mCrc.update(record, 0, len);
+        return sum == (int) mCrc.getValue() ? record : null;
+    }
+
+    // Puts back the header and entries saved in the undo file, if any,
+    // newest first, so each entry ends up with the value it had when the
+    // first record of it was written.
+    private void rollBack() {
+        if (!mUndoFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        byte [] header = null;
+        ArrayList<byte []> records = new ArrayList<byte []>();
+        try {
+            in = new DataInputStream(new FileInputStream(mUndoFile));
+            if (in.readInt() == UNDO_MAGIC) {
+                header = readUndoRecord(in);
+                while (header != null && header.length == HEADER_SIZE) {
+                    byte [] record = readUndoRecord(in);
+                    if (record == null) {
+                        break;
+                    }
+                    records.add(record);
+                }
+            }
+        } catch (EOFException ex) {
+            // a partially written record, which nothing was overwritten for
+        } catch (IOException ex) {
+            Log.e(TAG, "couldn't read " + mUndoFile + ": " + ex);
+            header = null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+        if (header != null && header.length == HEADER_SIZE) {
+            Log.w(TAG, "rolling back an incomplete commit to " + mFile);
+            for (int r = records.size() - 1; r >= 0; r--) {
+                ByteBuffer record = ByteBuffer.wrap(records.get(r));
+                int index = record.getInt();
+                int count = record.getInt();
+                for (int i = 0; i < count && index + i < mCapacity; i++) {
+                    mEntries.put(index + i, record.getLong());
+                }
+            }
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(0);
+            buffer.put(header);
+            mBuffer.force();
+        }
+        mUndoFile.delete();
+    }
+
+    private void closeUndo() {
+        if (mUndo != null) {
+            try {
+                mUndo.close();
+            } catch (IOException ex) {
+            }
+            mUndo = null;
+        }
+    }
+
+    private void writeHeader() {
+        mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+        mBuffer.putInt(OFFSET_VERSION, VERSION);
+        mBuffer.putInt(OFFSET_LENGTH, mLength);
+        mBuffer.putLong(OFFSET_CHECKSUM, mChecksum);
+        for (int i = 0; i < META_SLOTS; i++) {
+            mBuffer.putLong(OFFSET_META + i * 8, mMeta[i]);
+        }
+    }
+
+    private boolean ensureCapacity(int size) {
+        if (size <= mCapacity) {
+            return true;
+        }
+        int capacity = mCapacity;
+        while (capacity < size) {
+            capacity *= 2;
+        }
+        try {
+            map(capacity);
+            return true;
+        } catch (IOException ex) {
+            Log.e(TAG, "couldn't grow " + mFile + ": " + ex);
+            return false;
+        }
+    }
+
+    private void map(int capacity) throws IOException {
+        // mapping beyond the end of the file grows the file
+        MappedByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_WRITE,
+                0, HEADER_SIZE + (long) capacity * 8);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(HEADER_SIZE);
+        ByteBuffer entries = buffer.slice();
+        entries.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(0);
+        mBuffer = buffer;
+        mEntries = entries.asLongBuffer();
+        mCapacity = capacity;
+    }
+
+    // Mixes an entry and its index into a well-distributed 64 bit value.
+    // The checksum is the (wrapping) sum of these, so it can be updated
+    // one entry at a time.
+    private static long hash(int index, long value) {
+        long h = value ^ (index * 0x9e3779b97f4a7c15L);
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
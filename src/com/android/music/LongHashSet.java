@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import java.util.Arrays;
+
+/**
+ * A set of non-negative longs, such as track ids, using open addressing
+ * with linear probing, so that the values don't need to be boxed.
+ *
+ * This class is not thread-safe.
+ */
+public class LongHashSet extends LinearProbingTable {
+    private static final long EMPTY = -1;
+
+    private long [] mKeys;
+    private int mSize;
+
+    public LongHashSet() {
+        allocate(16);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean contains(long key) {
+        return key >= 0 && mKeys[find(key)] == key;
+    }
+
+    /**
+     * Adds 'key' to the set.
+     * @return false if it was in the set already
+     */
+    public boolean add(long key) {
+        if (key < 0) {
+            throw new IllegalArgumentException("key " + key);
+        }
+        int i = find(key);
+        if (mKeys[i] == key) {
+            return false;
+        }
+        if ((mSize + 1) * 4 > mKeys.length * 3) {
+            grow();
+            i = find(key);
+        }
+        mKeys[i] = key;
+        mSize++;
+        return true;
+    }
+
+    /**
+     * Removes 'key' from the set.
+     * @return false if it wasn't in the set
+     */
+    public boolean remove(long key) {
+        if (key < 0) {
+            return false;
+        }
+        int i = find(key);
+        if (mKeys[i] != key) {
+            return false;
+        }
+        removeSlot(i, mKeys.length - 1);
+        mSize--;
+        return true;
+    }
+
+    public void clear() {
+        if (mSize > 0) {
+            Arrays.fill(mKeys, EMPTY);
+            mSize = 0;
+        }
+    }
+
+    // Returns the slot holding 'key', or the empty slot where it would go.
+    private int find(long key) {
+        int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mKeys[i] != key && mKeys[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    @Override
+    boolean isEmptySlot(int i) {
+        return mKeys[i] == EMPTY;
+    }
+
+    @Override
+    int hashOfSlot(int i) {
+        return hash(mKeys[i]);
+    }
+
+    @Override
+    void moveSlot(int from, int to) {
+        mKeys[to] = mKeys[from];
+    }
+
+    @Override
+    void clearSlot(int i) {
+        mKeys[i] = EMPTY;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        Arrays.fill(mKeys, EMPTY);
+    }
+
+    private void grow() {
+        long [] keys = mKeys;
+        allocate(keys.length * 2);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                mKeys[find(keys[i])] = keys[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import java.util.Arrays;
+
+/**
+ * A map from longs to lists of non-negative ints, such as from track ids
+ * to the queue positions they're at, without boxing either.
+ *
+ * The keys are kept with open addressing and linear probing. The values
+ * are nodes of linked lists in a shared pool, so adding a value doesn't
+ * allocate anything until the pool has to grow.
+ *
+ * This class is not thread-safe.
+ */
+public class LongIntListMap extends LinearProbingTable {
+    private static final int NONE = -1;
+
+    private long [] mKeys;
+    // first node of the list of each key, or NONE for an empty slot
+    private int [] mHeads;
+    private int mKeyCount;
+    // the pool of list nodes; free ones have a value of NONE
+    private int [] mValues = new int[16];
+    private int [] mNext = new int[16];
+    private int mNodeCount;
+    private int mFree = NONE;
+    private int mSize;
+
+    public LongIntListMap() {
+        allocate(16);
+    }
+
+    /**
+     * Returns the number of values, counting those of all keys.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public boolean containsKey(long key) {
+        return mHeads[find(key)] != NONE;
+    }
+
+    /**
+     * Returns the number of values 'key' has.
+     */
+    public int count(long key) {
+        int n = 0;
+        for (int node = mHeads[find(key)]; node != NONE; node = mNext[node]) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Returns the smallest value of 'key' that is at least 'from',
+     * or -1 if there is none.
+     */
+    public int first(long key, int from) {
+        int min = NONE;
+        for (int node = mHeads[find(key)]; node != NONE; node = mNext[node]) {
+            int value = mValues[node];
+            if (value >= from && (min == NONE || value < min)) {
+                min = value;
+            }
+        }
+        return min;
+    }
+
+    public void add(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value " + value);
+        }
+        int i = find(key);
+        if (mHeads[i] == NONE) {
+            if ((mKeyCount + 1) * 4 > mKeys.length * 3) {
+                grow();
+                i = find(key);
+            }
+            mKeys[i] = key;
+            mKeyCount++;
+        }
+        int node = newNode();
+        mValues[node] = value;
+        mNext[node] = mHeads[i];
+        mHeads[i] = node;
+        mSize++;
+    }
+
+    /**
+     * Removes one occurrence of 'value' from the values of 'key'.
+     * @return false if there was none
+     */
+    public boolean remove(long key, int value) {
+        int i = find(key);
+        int prev = NONE;
+        for (int node = mHeads[i]; node != NONE; node = mNext[node]) {
+            if (mValues[node] == value) {
+                if (prev == NONE) {
+                    mHeads[i] = mNext[node];
+                } else {
+                    mNext[prev] = mNext[node];
+                }
+                freeNode(node);
+                mSize--;
+                if (mHeads[i] == NONE) {
+                    removeSlot(i, mKeys.length - 1);
+                    mKeyCount--;
+                }
+                return true;
+            }
+            prev = node;
+        }
+        return false;
+    }
+
+    public void clear() {
+        if (mKeyCount > 0) {
+            Arrays.fill(mHeads, NONE);
+            mKeyCount = 0;
+        }
+        mNodeCount = 0;
+        mFree = NONE;
+        mSize = 0;
+    }
+
+    private int newNode() {
+        if (mFree != NONE) {
+            int node = mFree;
+            mFree = mNext[node];
+            return node;
+        }
+        if (mNodeCount == mValues.length) {
+            int [] values = new int[mNodeCount * 2];
+            System.arraycopy(mValues, 0, values, 0, mNodeCount);
+            mValues = values;
+            int [] next = new int[mNodeCount * 2];
+            System.arraycopy(mNext, 0, next, 0, mNodeCount);
+            mNext = next;
+        }
+        return mNodeCount++;
+    }
+
+    private void freeNode(int node) {
+        mValues[node] = NONE;
+        mNext[node] = mFree;
+        mFree = node;
+    }
+
+    // Returns the slot holding 'key', or the empty slot where it would go.
+    private int find(long key) {
+        int mask = mKeys.length - 1;
+        int i = hash(key) & mask;
+        while (mHeads[i] != NONE && mKeys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    @Override
+    boolean isEmptySlot(int i) {
+        return mHeads[i] == NONE;
+    }
+
+    @Override
+    int hashOfSlot(int i) {
+        return hash(mKeys[i]);
+    }
+
+    @Override
+    void moveSlot(int from, int to) {
+        mKeys[to] = mKeys[from];
+        mHeads[to] = mHeads[from];
+    }
+
+    @Override
+    void clearSlot(int i) {
+        mHeads[i] = NONE;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mHeads = new int[capacity];
+        Arrays.fill(mHeads, NONE);
+    }
+
+    private void grow() {
+        long [] keys = mKeys;
+        int [] heads = mHeads;
+        allocate(keys.length * 2);
+        for (int i = 0; i < keys.length; i++) {
+            if (heads[i] != NONE) {
+                int j = find(keys[i]);
+                mKeys[j] = keys[i];
+                mHeads[j] = heads[i];
+            }
+        }
+    }
+}
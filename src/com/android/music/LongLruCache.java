@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import java.util.Arrays;
+
+/**
+ * A cache from non-negative longs, such as track ids, to values, which
+ * drops the least recently used value once it's full. Unlike a
+ * LinkedHashMap, looking up a value doesn't box the key or allocate
+ * anything, so it can be done for every row a list binds.
+ *
+ * The values are kept in a fixed number of slots, linked in the order
+ * they were used, and found through an open addressing table of slot
+ * numbers.
+ *
+ * This class is not thread-safe.
+ */
+public class LongLruCache<V> extends LinearProbingTable {
+    private static final int NONE = -1;
+
+    private final long [] mKeys;
+    private final Object [] mValues;
+    // the slots in the order they were used, most recent first
+    private final int [] mPrev;
+    private final int [] mNext;
+    private int mHead = NONE;
+    private int mTail = NONE;
+    private int mSize;
+    // slot numbers by hash of their key, or NONE
+    private final int [] mTable;
+
+    public LongLruCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mPrev = new int[capacity];
+        mNext = new int[capacity];
+        int tableSize = 4;
+        while (tableSize < capacity * 2) {
+            tableSize *= 2;
+        }
+        mTable = new int[tableSize];
+        Arrays.fill(mTable, NONE);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the value of 'key' and marks it as the most recently used,
+     * or returns null if it isn't cached.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int slot = mTable[find(key)];
+        if (slot == NONE) {
+            return null;
+        }
+        if (slot != mHead) {
+            unlink(slot);
+            linkFirst(slot);
+        }
+        return (V) mValues[slot];
+    }
+
+    /**
+     * Returns whether 'key' is cached, without counting it as used.
+     */
+    public boolean containsKey(long key) {
+        return mTable[find(key)] != NONE;
+    }
+
+    /**
+     * Caches 'value' for 'key', dropping the least recently used value
+     * if the cache is full.
+     */
+    public void put(long key, V value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("key " + key);
+        }
+        int i = find(key);
+        int slot = mTable[i];
+        if (slot != NONE) {
+            unlink(slot);
+        } else {
+            if (mSize < mKeys.length) {
+                slot = mSize++;
+            } else {
+                slot = mTail;
+                unlink(slot);
+                removeSlot(find(mKeys[slot]), mTable.length - 1);
+                i = find(key);
+            }
+            mKeys[slot] = key;
+            mTable[i] = slot;
+        }
+        mValues[slot] = value;
+        linkFirst(slot);
+    }
+
+    public void clear() {
+        Arrays.fill(mTable, NONE);
+        Arrays.fill(mValues, null);
+        mHead = NONE;
+        mTail = NONE;
+        mSize = 0;
+    }
+
+    private void unlink(int slot) {
+        int prev = mPrev[slot];
+        int next = mNext[slot];
+        if (prev != NONE) {
+            mNext[prev] = next;
+        } else {
+            mHead = next;
+        }
+        if (next != NONE) {
+            mPrev[next] = prev;
+        } else {
+            mTail = prev;
+        }
+    }
+
+    private void linkFirst(int slot) {
+        mPrev[slot] = NONE;
+        mNext[slot] = mHead;
+        if (mHead != NONE) {
+            mPrev[mHead] = slot;
+        } else {
+            mTail = slot;
+        }
+        mHead = slot;
+    }
+
+    // Returns the table entry for 'key', or the empty one where it would go.
+    private int find(long key) {
+        int mask = mTable.length - 1;
+        int i = hash(key) & mask;
+        while (mTable[i] != NONE && mKeys[mTable[i]] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    // The slots of the hash table are the entries of mTable, which hold
+    // the numbers of the slots the values are kept in.
+
+    @Override
+    boolean isEmptySlot(int i) {
+        return mTable[i] == NONE;
+    }
+
+    @Override
+    int hashOfSlot(int i) {
+        return hash(mKeys[mTable[i]]);
+    }
+
+    @Override
+    void moveSlot(int from, int to) {
+        mTable[to] = mTable[from];
+    }
+
+    @Override
+    void clearSlot(int i) {
+        mTable[i] = NONE;
+    }
+}
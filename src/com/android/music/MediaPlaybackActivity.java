@@ -22,14 +22,12 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.KeyguardManager;
 import android.app.SearchManager;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.ResolveInfo;
 import android.content.res.Configuration;
@@ -461,7 +459,12 @@ public class MediaPlaybackActivity extends Activity implements MusicUtils.Defs,
     public void onStop() {
         paused = true;
         mHandler.removeMessages(REFRESH);
-        unregisterReceiver(mStatusListener);
+        if (mService != null) {
+            try {
+                mService.unregisterCallback(mCallback);
+            } catch (RemoteException ex) {
+            }
+        }
         MusicUtils.unbindFromService(mToken);
         mService = null;
         super.onStop();
@@ -478,10 +481,6 @@ public class MediaPlaybackActivity extends Activity implements MusicUtils.Defs,
             mHandler.sendEmptyMessage(QUIT);
         }
         
-        IntentFilter f = new IntentFilter();
-        f.addAction(MediaPlaybackService.PLAYSTATE_CHANGED);
-        f.addAction(MediaPlaybackService.META_CHANGED);
-        registerReceiver(mStatusListener, new IntentFilter(f));
         updateTrackInfo();
         long next = refreshNow();
         queueNextRefresh(next);
@@ -1045,6 +1044,10 @@ public class MediaPlaybackActivity extends Activity implements MusicUtils.Defs,
     private ServiceConnection osc = new ServiceConnection() {
             public void onServiceConnected(ComponentName classname, IBinder obj) {
                 mService = IMediaPlaybackService.Stub.asInterface(obj);
+                try {
+                    mService.registerCallback(mCallback);
+                } catch (RemoteException ex) {
+                }
                 startPlayback();
                 try {
                     // Assume something is playing when the service says it is,
@@ -1116,14 +1119,18 @@ public class MediaPlaybackActivity extends Activity implements MusicUtils.Defs,
     
     private void setPauseButtonImage() {
         try {
-            if (mService != null && mService.isPlaying()) {
-                mPauseButton.setImageResource(android.R.drawable.ic_media_pause);
-            } else {
-                mPauseButton.setImageResource(android.R.drawable.ic_media_play);
-            }
+            setPauseButtonImage(mService != null && mService.isPlaying());
         } catch (RemoteException ex) {
         }
     }
+
+    private void setPauseButtonImage(boolean playing) {
+        if (playing) {
+            mPauseButton.setImageResource(android.R.drawable.ic_media_pause);
+        } else {
+            mPauseButton.setImageResource(android.R.drawable.ic_media_play);
+        }
+    }
     
     private ImageView mAlbum;
     private TextView mCurrentTime;
@@ -1135,6 +1142,10 @@ public class MediaPlaybackActivity extends Activity implements MusicUtils.Defs,
     private long mPosOverride = -1;
     private boolean mFromTouch = false;
     private long mDuration;
+    // version of the service state last shown
+    private long mStateVersion = -1;
+    // the last state the service sent
+    private PlaybackSnapshot mSnapshot;
     private int seekmethod;
     private boolean paused;
 
@@ -1142,45 +1153,84 @@ public class MediaPlaybackActivity extends Activity implements MusicUtils.Defs,
     private static final int QUIT = 2;
     private static final int GET_ALBUM_ART = 3;
     private static final int ALBUM_ART_DECODED = 4;
+    private static final int SNAPSHOT = 5;
 
     private void queueNextRefresh(long delay) {
-        if (!paused) {
+        if (!paused && delay >= 0) {
             Message msg = mHandler.obtainMessage(REFRESH);
             mHandler.removeMessages(REFRESH);
             mHandler.sendMessageDelayed(msg, delay);
         }
     }
 
+    /**
+     * Updates the progress from the last snapshot the service sent, working
+     * out the current position locally.
+     * @return the number of milliseconds until the display needs to change
+     * again, or -1 if it won't change until the service sends an update.
+     */
     private long refreshNow() {
-        if(mService == null)
-            return 500;
-        try {
-            long pos = mPosOverride < 0 ? mService.position() : mPosOverride;
-            long remaining = 1000 - (pos % 1000);
-            if ((pos >= 0) && (mDuration > 0)) {
-                mCurrentTime.setText(MusicUtils.makeTimeString(this, pos / 1000));
-                
-                if (mService.isPlaying()) {
-                    mCurrentTime.setVisibility(View.VISIBLE);
-                } else {
-                    // blink the counter
-                    int vis = mCurrentTime.getVisibility();
-                    mCurrentTime.setVisibility(vis == View.INVISIBLE ? View.VISIBLE : View.INVISIBLE);
-                    remaining = 500;
+        PlaybackSnapshot snapshot = mSnapshot;
+        if (mService == null || snapshot == null) {
+            return -1;
+        }
+        long pos = mPosOverride < 0 ?
+                snapshot.getPosition(SystemClock.elapsedRealtime()) : mPosOverride;
+        long remaining = -1;
+        if ((pos >= 0) && (mDuration > 0)) {
+            mCurrentTime.setText(MusicUtils.makeTimeString(this, pos / 1000));
+            
+            if (snapshot.playing) {
+                mCurrentTime.setVisibility(View.VISIBLE);
+                if (snapshot.rate > 0) {
+                    // the number of milliseconds until the next full second, so
+                    // the counter can be updated at just the right time
+                    remaining = 1000 - (pos % 1000);
                 }
-
-                mProgress.setProgress((int) (1000 * pos / mDuration));
             } else {
-                mCurrentTime.setText("--:--");
-                mProgress.setProgress(1000);
+                // blink the counter
+                int vis = mCurrentTime.getVisibility();
+                mCurrentTime.setVisibility(vis == View.INVISIBLE ? View.VISIBLE : View.INVISIBLE);
+                remaining = 500;
             }
-            // return the number of milliseconds until the next full second, so
-            // the counter can be updated at just the right time
-            return remaining;
-        } catch (RemoteException ex) {
+
+            mProgress.setProgress((int) (1000 * pos / mDuration));
+        } else {
+            mCurrentTime.setText("--:--");
+            mProgress.setProgress(1000);
         }
-        return 500;
+        return remaining;
     }
+
+    /**
+     * Shows a snapshot the service sent, or one that was asked for.
+     */
+    private void onSnapshot(PlaybackSnapshot snapshot) {
+        mSnapshot = snapshot;
+        if (snapshot.version != mStateVersion) {
+            // something besides the position changed
+            updateTrackInfo(snapshot);
+            setPauseButtonImage(snapshot.playing);
+        }
+        queueNextRefresh(refreshNow());
+    }
+
+    private final IMediaPlaybackCallback.Stub mCallback = new IMediaPlaybackCallback.Stub() {
+        // These are called on a binder thread, so hand the snapshots
+        // over to the UI thread.
+        public void onStateChanged(PlaybackSnapshot snapshot) {
+            mHandler.obtainMessage(SNAPSHOT, snapshot).sendToTarget();
+        }
+        public void onMetaChanged(PlaybackSnapshot snapshot) {
+            mHandler.obtainMessage(SNAPSHOT, snapshot).sendToTarget();
+        }
+        public void onQueueChanged(PlaybackSnapshot snapshot) {
+            mHandler.obtainMessage(SNAPSHOT, snapshot).sendToTarget();
+        }
+        public void onPositionChanged(PlaybackSnapshot snapshot) {
+            mHandler.obtainMessage(SNAPSHOT, snapshot).sendToTarget();
+        }
+    };
     
     private final Handler mHandler = new Handler() {
         @Override
@@ -1195,6 +1245,12 @@ public class MediaPlaybackActivity extends Activity implements MusicUtils.Defs,
                     long next = refreshNow();
                     queueNextRefresh(next);
                     break;
+
+                case SNAPSHOT:
+                    if (!paused) {
+                        onSnapshot((PlaybackSnapshot) msg.obj);
+                    }
+                    break;
                     
                 case QUIT:
                     // This can be moved back to onCreate once the bug that prevents
@@ -1218,22 +1274,6 @@ public class MediaPlaybackActivity extends Activity implements MusicUtils.Defs,
         }
     };
 
-    private BroadcastReceiver mStatusListener = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            if (action.equals(MediaPlaybackService.META_CHANGED)) {
-                // redraw the artist/title info and
-                // set new max for progress bar
-                updateTrackInfo();
-                setPauseButtonImage();
-                queueNextRefresh(1);
-            } else if (action.equals(MediaPlaybackService.PLAYSTATE_CHANGED)) {
-                setPauseButtonImage();
-            }
-        }
-    };
-
     private static class AlbumSongIdWrapper {
         public long albumid;
         public long songid;
@@ -1248,48 +1288,54 @@ public class MediaPlaybackActivity extends Activity implements MusicUtils.Defs,
             return;
         }
         try {
-            String path = mService.getPath();
-            if (path == null) {
-                finish();
-                return;
-            }
-            
-            long songid = mService.getAudioId(); 
-            if (songid < 0 && path.toLowerCase().startsWith("http://")) {
-                // Once we can get album art and meta data from MediaPlayer, we
-                // can show that info again when streaming.
-                ((View) mArtistName.getParent()).setVisibility(View.INVISIBLE);
-                ((View) mAlbumName.getParent()).setVisibility(View.INVISIBLE);
-                mAlbum.setVisibility(View.GONE);
-                mTrackName.setText(path);
-                mAlbumArtHandler.removeMessages(GET_ALBUM_ART);
-                mAlbumArtHandler.obtainMessage(GET_ALBUM_ART, new AlbumSongIdWrapper(-1, -1)).sendToTarget();
-            } else {
-                ((View) mArtistName.getParent()).setVisibility(View.VISIBLE);
-                ((View) mAlbumName.getParent()).setVisibility(View.VISIBLE);
-                String artistName = mService.getArtistName();
-                if (MediaStore.UNKNOWN_STRING.equals(artistName)) {
-                    artistName = getString(R.string.unknown_artist_name);
-                }
-                mArtistName.setText(artistName);
-                String albumName = mService.getAlbumName();
-                long albumid = mService.getAlbumId();
-                if (MediaStore.UNKNOWN_STRING.equals(albumName)) {
-                    albumName = getString(R.string.unknown_album_name);
-                    albumid = -1;
-                }
-                mAlbumName.setText(albumName);
-                mTrackName.setText(mService.getTrackName());
-                mAlbumArtHandler.removeMessages(GET_ALBUM_ART);
-                mAlbumArtHandler.obtainMessage(GET_ALBUM_ART, new AlbumSongIdWrapper(albumid, songid)).sendToTarget();
-                mAlbum.setVisibility(View.VISIBLE);
-            }
-            mDuration = mService.duration();
-            mTotalTime.setText(MusicUtils.makeTimeString(this, mDuration / 1000));
+            mSnapshot = mService.getSnapshot();
+            updateTrackInfo(mSnapshot);
         } catch (RemoteException ex) {
             finish();
         }
     }
+
+    private void updateTrackInfo(PlaybackSnapshot snapshot) {
+        mStateVersion = snapshot.version;
+        String path = snapshot.path;
+        if (path == null) {
+            finish();
+            return;
+        }
+        
+        long songid = snapshot.audioId;
+        if (songid < 0 && path.toLowerCase().startsWith("http://")) {
+            // Once we can get album art and meta data from MediaPlayer, we
+            // can show that info again when streaming.
+            ((View) mArtistName.getParent()).setVisibility(View.INVISIBLE);
+            ((View) mAlbumName.getParent()).setVisibility(View.INVISIBLE);
+            mAlbum.setVisibility(View.GONE);
+            mTrackName.setText(path);
+            mAlbumArtHandler.removeMessages(GET_ALBUM_ART);
+            mAlbumArtHandler.obtainMessage(GET_ALBUM_ART, new AlbumSongIdWrapper(-1, -1)).sendToTarget();
+        } else {
+            ((View) mArtistName.getParent()).setVisibility(View.VISIBLE);
+            ((View) mAlbumName.getParent()).setVisibility(View.VISIBLE);
+            String artistName = snapshot.artistName;
+            if (MediaStore.UNKNOWN_STRING.equals(artistName)) {
+                artistName = getString(R.string.unknown_artist_name);
+            }
+            mArtistName.setText(artistName);
+            String albumName = snapshot.albumName;
+            long albumid = snapshot.albumId;
+            if (MediaStore.UNKNOWN_STRING.equals(albumName)) {
+                albumName = getString(R.string.unknown_album_name);
+                albumid = -1;
+            }
+            mAlbumName.setText(albumName);
+            mTrackName.setText(snapshot.trackName);
+            mAlbumArtHandler.removeMessages(GET_ALBUM_ART);
+            mAlbumArtHandler.obtainMessage(GET_ALBUM_ART, new AlbumSongIdWrapper(albumid, songid)).sendToTarget();
+            mAlbum.setVisibility(View.VISIBLE);
+        }
+        mDuration = snapshot.duration;
+        mTotalTime.setText(MusicUtils.makeTimeString(this, mDuration / 1000));
+    }
     
     public class AlbumArtHandler extends Handler {
         private long mAlbumId = -1;
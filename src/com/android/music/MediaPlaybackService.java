@@ -30,6 +30,7 @@ import android.content.IntentFilter;
 import android.content.BroadcastReceiver;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.media.AudioManager;
@@ -37,9 +38,13 @@ import android.media.AudioManager.OnAudioFocusChangeListener;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.Process;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.PowerManager.WakeLock;
 import android.provider.MediaStore;
@@ -47,12 +52,15 @@ import android.util.Log;
 import android.widget.RemoteViews;
 import android.widget.Toast;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.Random;
-import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Provides "background" audio playback capabilities, allowing the
@@ -100,43 +108,139 @@ public class MediaPlaybackService extends Service {
     private static final int FOCUSCHANGE = 4;
     private static final int FADEDOWN = 5;
     private static final int FADEUP = 6;
+    private static final int TRACK_WENT_TO_NEXT = 7;
+    private static final int TRACK_PREPARED = 8;
+    private static final int TRACK_OPEN_FAILED = 9;
+    private static final int AUTO_SHUFFLE_READY = 10;
+    private static final int LIBRARY_CHANGED = 11;
+    // default number of played tracks remembered for shuffling and going back,
+    // can be overridden with the "historysize" preference
     private static final int MAX_HISTORY_SIZE = 100;
+    // meta slots used in the persisted queue file
+    private static final int QUEUE_META_CARDID = 0;
+    private static final int QUEUE_META_GENERATION = 1;
+    // meta slots used in the persisted shuffle order
+    private static final int SHUFFLE_META_CURSOR = 0;
+    private static final int SHUFFLE_META_QUEUE_LENGTH = 1;
+    private static final int SHUFFLE_META_CARDID = 2;
+    // the queue journal is compacted into a new snapshot once it grows
+    // past this size, or past the size of the queue itself
+    private static final int JOURNAL_COMPACT_SIZE = 64 * 1024;
+    // message for mPersistHandler
+    private static final int SAVE_STATE = 1;
+    // default time to collect state changes before saving them,
+    // can be overridden with the "savedelay" preference
+    private static final int SAVE_DELAY = 500;
     
     private MultiPlayer mPlayer;
     private String mFileToPlay;
-    private int mShuffleMode = SHUFFLE_NONE;
-    private int mRepeatMode = REPEAT_NONE;
-    private int mMediaMountedCount = 0;
-    private long [] mAutoShuffleList = null;
-    private long [] mPlayList = null;
-    private int mPlayListLen = 0;
-    private Vector<Integer> mHistory = new Vector<Integer>(MAX_HISTORY_SIZE);
-    private Cursor mCursor;
+    private volatile int mShuffleMode = SHUFFLE_NONE;
+    private volatile int mRepeatMode = REPEAT_NONE;
+    private volatile int mMediaMountedCount = 0;
+    private LibraryIndex mLibraryIndex;
+    private AutoShuffleSource mAutoShuffle;
+    // set while waiting for the first tracks of party shuffle to be picked
+    private boolean mAutoShuffleStarting = false;
+    private final PlaybackQueue mPlayList = new PlaybackQueue();
+    // 16k ids, or 128 KB, per transaction
+    private static final int MAX_QUEUE_SLICE = 16 * 1024;
+    // tells queue versions of this instance of the service from earlier ones
+    private final int mQueueEpoch = new Random().nextInt();
+    // the most recent changes to the queue, for getQueueDeltas(); like the
+    // queue itself, guarded by mPlayList
+    private static final int MAX_QUEUE_DELTAS = 32;
+    private final PlaybackQueueDelta [] mQueueDeltas = new PlaybackQueueDelta[MAX_QUEUE_DELTAS];
+    private int mQueueDeltaCount;
+    private long mQueueHash;
+    private int mQueueHashModCount;
+    private boolean mQueueHashValid = false;
+    // lowest index in mPlayList that changed since the queue was last saved
+    private int mQueueDirtyFrom = 0;
+    private LongArrayStore mQueueStore;
+    private QueueJournal mQueueJournal;
+    // set when the queue became one that is read from a query, which is
+    // saved as just the query; the queue files are out of date then, and
+    // the next time the queue is saved as ids it needs a complete snapshot
+    private boolean mQueueFilesStale = false;
+    private HandlerThread mPersistThread;
+    private Handler mPersistHandler;
+    // held while state is being saved, and while the queue files are read
+    private final Object mSaveLock = new Object();
+    private final AtomicBoolean mSaveScheduled = new AtomicBoolean();
+    private final AtomicBoolean mSaveFullPending = new AtomicBoolean();
+    private final AtomicLong mSaveRequestCount = new AtomicLong();
+    private final AtomicLong mSaveCount = new AtomicLong();
+    // where the time goes when changing tracks; reported by dump()
+    private final LatencyHistogram mOpenLatency = new LatencyHistogram("open");
+    private final LatencyHistogram mPrepareLatency = new LatencyHistogram("prepare");
+    private final LatencyHistogram mGapLatency = new LatencyHistogram("track change gap");
+    private final LatencyHistogram mSaveLatency = new LatencyHistogram("save");
+    // changes whenever the state shown by clients does,
+    // apart from the playback position
+    private final AtomicLong mStateVersion = new AtomicLong();
+    private final RemoteCallbackList<IMediaPlaybackCallback> mCallbacks =
+            new RemoteCallbackList<IMediaPlaybackCallback>();
+    private static final int CALLBACK_STATE = 0;
+    private static final int CALLBACK_META = 1;
+    private static final int CALLBACK_QUEUE = 2;
+    private static final int CALLBACK_POSITION = 3;
+    private int mSaveDelay = SAVE_DELAY;
+    private final ShuffleOrder mShuffleOrder = new ShuffleOrder();
+    private LongArrayStore mShuffleStore;
+    // the track at mPlayPos, or null
+    private TrackMetadata mCurrentTrack;
+    // what clients are told is playing; see publishState()
+    private volatile NowPlaying mNowPlaying = new NowPlaying();
+    private TrackMetadata.Cache mTrackCache;
     private int mPlayPos = -1;
+    // queue position of the track prepared to follow the current one, or -1
+    private int mNextPlayPos = -1;
     private static final String LOGTAG = "MediaPlaybackService";
     private final Shuffler mRand = new Shuffler();
     private int mOpenFailedCounter = 0;
-    String[] mCursorCols = new String[] {
-            "audio._id AS _id",             // index must match IDCOLIDX below
-            MediaStore.Audio.Media.ARTIST,
-            MediaStore.Audio.Media.ALBUM,
-            MediaStore.Audio.Media.TITLE,
-            MediaStore.Audio.Media.DATA,
-            MediaStore.Audio.Media.MIME_TYPE,
-            MediaStore.Audio.Media.ALBUM_ID,
-            MediaStore.Audio.Media.ARTIST_ID,
-            MediaStore.Audio.Media.IS_PODCAST, // index must match PODCASTCOLIDX below
-            MediaStore.Audio.Media.BOOKMARK    // index must match BOOKMARKCOLIDX below
-    };
-    private final static int IDCOLIDX = 0;
-    private final static int PODCASTCOLIDX = 8;
-    private final static int BOOKMARKCOLIDX = 9;
+    private static final int TRACK_CACHE_SIZE = 100;
+    // number of queue entries after the current one whose metadata
+    // is loaded along with it
+    private static final int TRACK_PREFETCH_COUNT = 8;
     private BroadcastReceiver mUnmountReceiver = null;
+    // changes to the audio table made by saveBookmarkIfNeeded() that
+    // mMediaObserver hasn't been told about yet, by track id, and how many
+    // there are in all; guarded by mOwnMediaChanges
+    private final LongIntMap mOwnMediaChanges = new LongIntMap();
+    private int mOwnMediaChangeCount;
+    private ContentObserver mMediaObserver = new ContentObserver(null) {
+        // Called instead of onChange(boolean) from API 16 on, which tells
+        // which row changed, so only our own bookmark writes are left out.
+        public void onChange(boolean selfChange, Uri uri) {
+            if (uri != null && consumeOwnMediaChange(trackIdOf(uri))) {
+                // a bookmark, whose track was already dropped from the
+                // cache, and which the library index doesn't keep
+                return;
+            }
+            // the current track keeps the metadata it was opened with
+            mTrackCache.invalidate();
+            mLibraryIndex.requestUpdate(false);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            // There's no telling which row changed, so even a change that
+            // looks like a bookmark of ours can be someone else's, and the
+            // cache has to go anyway. The index doesn't keep bookmarks, so
+            // it's only updated for the other changes.
+            mTrackCache.invalidate();
+            if (!consumeOwnMediaChange(-1)) {
+                mLibraryIndex.requestUpdate(false);
+            }
+        }
+    };
     private WakeLock mWakeLock;
     private int mServiceStartId = -1;
     private boolean mServiceInUse = false;
-    private boolean mIsSupposedToBePlaying = false;
+    private volatile boolean mIsSupposedToBePlaying = false;
     private boolean mQuietMode = false;
+    // the value of mQuietMode when the current file was opened
+    private boolean mOpenQuietly = false;
     private AudioManager mAudioManager;
     private boolean mQueueIsSaveable = true;
     // used to track what type of audio focus loss caused the playback to pause
@@ -195,6 +299,26 @@ public class MediaPlaybackService extends Service {
                         next(false);
                     }
                     break;
+                case TRACK_WENT_TO_NEXT:
+                    onTrackWentToNext((String) msg.obj);
+                    break;
+                case TRACK_PREPARED:
+                    synchronized (MediaPlaybackService.this) {
+                        mOpenFailedCounter = 0;
+                    }
+                    // the duration is known now, and the position advances
+                    mStateVersion.incrementAndGet();
+                    dispatchCallbacks(CALLBACK_STATE);
+                    break;
+                case TRACK_OPEN_FAILED:
+                    onOpenFailed((String) msg.obj);
+                    break;
+                case AUTO_SHUFFLE_READY:
+                    onAutoShuffleReady();
+                    break;
+                case LIBRARY_CHANGED:
+                    refreshQuerySegment(true);
+                    break;
                 case RELEASE_WAKELOCK:
                     mWakeLock.release();
                     break;
@@ -299,9 +423,50 @@ public class MediaPlaybackService extends Service {
       
         mPreferences = getSharedPreferences("Music", MODE_WORLD_READABLE | MODE_WORLD_WRITEABLE);
         mCardId = MusicUtils.getCardId(this);
+        mSaveDelay = mPreferences.getInt("savedelay", SAVE_DELAY);
+        // finding a track in the queue is frequent enough to keep an index
+        mPlayList.setIndexed(true);
+        mQueueStore = new LongArrayStore(new File(getFilesDir(), "queue"));
+        mQueueStore.open();
+        mQueueJournal = new QueueJournal(new File(getFilesDir(), "queue.journal"));
+        mShuffleStore = new LongArrayStore(new File(getFilesDir(), "shuffle"));
+        mShuffleStore.open();
+        mPersistThread = new HandlerThread("MediaPlaybackService persistence",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mPersistThread.start();
+        // the index of all music tracks is kept up to date on the persistence
+        // thread, and party shuffle picks its tracks from it there too
+        mLibraryIndex = new LibraryIndex(new File(getFilesDir(), "library"),
+                getContentResolver(), mPersistThread.getLooper(), new LibraryIndex.Listener() {
+            public void onIndexChanged() {
+                mMediaplayerHandler.sendEmptyMessage(LIBRARY_CHANGED);
+            }
+        });
+        mLibraryIndex.open(mCardId);
+        int historySize = mPreferences.getInt("historysize", MAX_HISTORY_SIZE);
+        mAutoShuffle = new AutoShuffleSource(mLibraryIndex, mPersistThread.getLooper(),
+                historySize > 0 ? historySize : MAX_HISTORY_SIZE,
+                new AutoShuffleSource.Listener() {
+            public void onTracksReady() {
+                mMediaplayerHandler.sendEmptyMessage(AUTO_SHUFFLE_READY);
+            }
+        });
+        mPersistHandler = new Handler(mPersistThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == SAVE_STATE) {
+                    mSaveScheduled.set(false);
+                    performSave(mSaveFullPending.getAndSet(false));
+                }
+            }
+        };
         
         registerExternalStorageListener();
 
+        mTrackCache = new TrackMetadata.Cache(getContentResolver(), TRACK_CACHE_SIZE);
+        getContentResolver().registerContentObserver(
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mMediaObserver);
+
         // Needs to be done in this thread, since otherwise ApplicationContext.getPowerManager() crashes.
         mPlayer = new MultiPlayer();
         mPlayer.setHandler(mMediaplayerHandler);
@@ -334,6 +499,9 @@ public class MediaPlaybackService extends Service {
         if (isPlaying()) {
             Log.e(LOGTAG, "Service being destroyed while still playing.");
         }
+        // write out whatever is still waiting for the debounce window
+        flushSave(true);
+        mPersistThread.quit();
         // release all MediaPlayer resources, including the native player and wakelocks
         mPlayer.release();
         mPlayer = null;
@@ -344,10 +512,13 @@ public class MediaPlaybackService extends Service {
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         mMediaplayerHandler.removeCallbacksAndMessages(null);
 
-        if (mCursor != null) {
-            mCursor.close();
-            mCursor = null;
+        getContentResolver().unregisterContentObserver(mMediaObserver);
+        mCallbacks.kill();
+        synchronized (this) {
+            // closes the cursor of a queue that is read from a query
+            mPlayList.clear();
         }
+        mLibraryIndex.close();
 
         unregisterReceiver(mIntentReceiver);
         if (mUnmountReceiver != null) {
@@ -355,6 +526,11 @@ public class MediaPlaybackService extends Service {
             mUnmountReceiver = null;
         }
         mWakeLock.release();
+        synchronized (mSaveLock) {
+            mQueueJournal.close();
+            mQueueStore.close();
+            mShuffleStore.close();
+        }
         super.onDestroy();
     }
     
@@ -365,79 +541,271 @@ public class MediaPlaybackService extends Service {
             'c', 'd', 'e', 'f'
     };
 
-    private void saveQueue(boolean full) {
+    /**
+     * Asks for the service state to be saved. Requests are collected for
+     * mSaveDelay ms and then written out together on the persistence thread,
+     * so a burst of changes only costs a single write.
+     * @param full true if the queue and history need to be saved as well
+     */
+    private void requestSave(boolean full) {
+        mSaveRequestCount.incrementAndGet();
+        if (full) {
+            mSaveFullPending.set(true);
+        }
+        if (mSaveScheduled.compareAndSet(false, true)) {
+            mPersistHandler.sendEmptyMessageDelayed(SAVE_STATE, mSaveDelay);
+        }
+    }
+
+    /**
+     * Makes a pending save happen right away instead of at the end of the
+     * debounce window. Unlike flushSave(), this doesn't wait for the write,
+     * so it can be called with the service locked.
+     */
+    private void expediteSave() {
+        if (mSaveScheduled.get()) {
+            mPersistHandler.removeMessages(SAVE_STATE);
+            mPersistHandler.sendEmptyMessage(SAVE_STATE);
+        }
+    }
+
+    /**
+     * Synchronously saves the service state, including anything still waiting
+     * for the debounce window. This must not be called with the service locked.
+     */
+    private void flushSave(boolean full) {
+        mPersistHandler.removeMessages(SAVE_STATE);
+        mSaveScheduled.set(false);
+        performSave(mSaveFullPending.getAndSet(false) || full);
+    }
+
+    private void performSave(boolean full) {
+        synchronized (mSaveLock) {
+            SavedState state;
+            synchronized (this) {
+                state = captureState(full);
+            }
+            if (state != null) {
+                long start = SystemClock.elapsedRealtime();
+                writeState(state);
+                mSaveLatency.addSince(start);
+                mSaveCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The part of the service state that gets saved, copied out so that it
+     * can be written without holding the service lock.
+     */
+    private static class SavedState {
+        boolean full;
+        byte [] journal;
+        CollectionQuery segment;
+        long [] queue;
+        int queueFrom;
+        int queueLen;
+        int cardId;
+        boolean compact;
+        long [] shuffleOrder;
+        int shuffleFrom;
+        int shufflePlayed;
+        int shuffleCursor;
+        int shuffleQueueLength;
+        String history;
+        int curpos;
+        long curid;
+        long seekpos;
+        int repeatmode;
+        int shufflemode;
+    }
+
+    // Must be called with the service and mSaveLock locked.
+    private SavedState captureState(boolean full) {
         if (!mQueueIsSaveable) {
-            return;
+            return null;
         }
 
-        Editor ed = mPreferences.edit();
-        //long start = System.currentTimeMillis();
+        SavedState state = new SavedState();
+        state.full = full;
+        state.cardId = mCardId;
         if (full) {
-            StringBuilder q = new StringBuilder();
-            
-            // The current playlist is saved as a list of "reverse hexadecimal"
-            // numbers, which we can generate faster than normal decimal or
-            // hexadecimal numbers, which in turn allows us to save the playlist
-            // more often without worrying too much about performance.
-            // (saving the full state takes about 40 ms under no-load conditions
-            // on the phone)
-            int len = mPlayListLen;
-            for (int i = 0; i < len; i++) {
-                long n = mPlayList[i];
-                if (n < 0) {
-                    continue;
-                } else if (n == 0) {
-                    q.append("0;");
-                } else {
-                    while (n != 0) {
-                        int digit = (int)(n & 0xf);
-                        n >>>= 4;
-                        q.append(hexdigits[digit]);
-                    }
-                    q.append(";");
+            QuerySegment segment = getQuerySegment();
+            if (segment != null) {
+                // Save the query instead of the ids. The edits of the previous
+                // queue that weren't written yet don't matter anymore.
+                mQueueJournal.takePending();
+                state.segment = segment.getQuery();
+            } else {
+                state.journal = mQueueJournal.takePending();
+                long generation = mQueueJournal.getGeneration();
+                boolean compact = !mQueueFilesStale && generation >= 0
+                        && mQueueJournal.size() + state.journal.length
+                        > Math.max(JOURNAL_COMPACT_SIZE, mPlayList.size() * 8L);
+                if (generation < 0 || compact || mQueueFilesStale) {
+                    // Either there's no journal to append to yet (first run, or the
+                    // saved queue couldn't be restored), it got too long, or the
+                    // queue was last saved as a query. In all cases write a new
+                    // snapshot, starting at the first entry that changed since
+                    // the last one.
+                    int len = mPlayList.size();
+                    int from = mQueueFilesStale ? 0 : Math.min(mQueueDirtyFrom, len);
+                    state.queue = new long[len - from];
+                    mPlayList.copyTo(from, state.queue, 0, len - from);
+                    state.queueFrom = from;
+                    state.queueLen = len;
+                    state.compact = compact;
+                    mQueueDirtyFrom = Integer.MAX_VALUE;
+                    mQueueFilesStale = false;
                 }
             }
-            //Log.i("@@@@ service", "created queue string in " + (System.currentTimeMillis() - start) + " ms");
-            ed.putString("queue", q.toString());
-            ed.putInt("cardid", mCardId);
-            if (mShuffleMode != SHUFFLE_NONE) {
-                // In shuffle mode we need to save the history too
-                len = mHistory.size();
-                q.setLength(0);
-                for (int i = 0; i < len; i++) {
-                    int n = mHistory.get(i);
+            // Save the shuffle order along with the queue, so they match
+            // when restored. Only the newly played tracks need writing,
+            // unless the queue was edited.
+            int played = mShuffleOrder.getPlayedCount();
+            int from = Math.min(mShuffleOrder.markClean(), played);
+            state.shuffleOrder = new long[played - from];
+            for (int i = from; i < played; i++) {
+                state.shuffleOrder[i - from] = mShuffleOrder.getPlayed(i);
+            }
+            state.shuffleFrom = from;
+            state.shufflePlayed = played;
+            state.shuffleCursor = mShuffleOrder.getCursor();
+            state.shuffleQueueLength = mPlayList.size();
+            if (mShuffleMode == SHUFFLE_AUTO) {
+                // In party shuffle mode we need to save the ids of the
+                // recently picked tracks too, so they aren't picked again
+                // right away. They're saved as a list of "reverse
+                // hexadecimal" numbers, which we can generate faster than
+                // normal decimal or hexadecimal numbers.
+                StringBuilder q = new StringBuilder();
+                long [] recent = mAutoShuffle.getRecent();
+                for (int i = 0; i < recent.length; i++) {
+                    long n = recent[i];
                     if (n == 0) {
                         q.append("0;");
                     } else {
                         while (n != 0) {
-                            int digit = (n & 0xf);
+                            int digit = (int) (n & 0xf);
                             n >>>= 4;
                             q.append(hexdigits[digit]);
                         }
                         q.append(";");
                     }
                 }
-                ed.putString("history", q.toString());
+                state.history = q.toString();
             }
         }
-        ed.putInt("curpos", mPlayPos);
-        if (mPlayer.isInitialized()) {
-            ed.putLong("seekpos", mPlayer.position());
-        }
-        ed.putInt("repeatmode", mRepeatMode);
-        ed.putInt("shufflemode", mShuffleMode);
+        state.curpos = mPlayPos;
+        state.curid = mPlayPos >= 0 && mPlayPos < mPlayList.size()
+                ? mPlayList.get(mPlayPos) : -1;
+        state.seekpos = mPlayer.isInitialized() ? mPlayer.position() : -1;
+        state.repeatmode = mRepeatMode;
+        state.shufflemode = mShuffleMode;
+        return state;
+    }
+
+    // Must be called with mSaveLock locked.
+    private void writeState(SavedState state) {
+        //long start = System.currentTimeMillis();
+        if (state.full) {
+            if (state.segment != null) {
+                // the queue files aren't used while the queue is a query
+            } else if (state.queue == null) {
+                mQueueJournal.append(state.journal);
+            } else {
+                long generation = Math.max(mQueueJournal.getGeneration(),
+                        mQueueStore.getMeta(QUEUE_META_GENERATION)) + 1;
+                if (state.compact) {
+                    // Until the snapshot is complete, the rotated journal
+                    // is still needed to reconstruct the queue.
+                    mQueueJournal.append(state.journal);
+                    mQueueJournal.rotate(generation);
+                }
+                writeQueueStore(state.queue, 0, state.queueFrom, state.queue.length,
+                        state.queueLen, state.cardId, generation);
+                if (state.compact) {
+                    mQueueJournal.deleteOld();
+                } else {
+                    // the snapshot covers everything that was journaled so far
+                    mQueueJournal.reset(generation);
+                }
+            }
+            // only write the shuffle state if any of it changed, so a save
+            // without shuffle doesn't cost a commit of the store
+            if (mShuffleStore.isOpen() && (state.shuffleOrder.length > 0
+                    || state.shufflePlayed != mShuffleStore.length()
+                    || state.shuffleCursor != mShuffleStore.getMeta(SHUFFLE_META_CURSOR)
+                    || state.shuffleQueueLength
+                            != mShuffleStore.getMeta(SHUFFLE_META_QUEUE_LENGTH)
+                    || state.cardId != mShuffleStore.getMeta(SHUFFLE_META_CARDID))) {
+                mShuffleStore.write(state.shuffleFrom, state.shuffleOrder, 0,
+                        state.shuffleOrder.length);
+                mShuffleStore.setLength(state.shufflePlayed);
+                mShuffleStore.setMeta(SHUFFLE_META_CURSOR, state.shuffleCursor);
+                mShuffleStore.setMeta(SHUFFLE_META_QUEUE_LENGTH, state.shuffleQueueLength);
+                mShuffleStore.setMeta(SHUFFLE_META_CARDID, state.cardId);
+                mShuffleStore.commit();
+            }
+        }
+        //Log.i("@@@@ service", "saved queue in " + (System.currentTimeMillis() - start) + " ms");
+
+        Editor ed = mPreferences.edit();
+        if (state.queue != null) {
+            // the queue used to be kept here, see migrateLegacyQueue()
+            ed.remove("queue");
+            ed.remove("cardid");
+            ed.remove("segmenttype");
+        }
+        if (state.segment != null) {
+            ed.putInt("segmenttype", state.segment.getType());
+            ed.putLong("segmentarg", state.segment.getArg());
+            ed.putInt("segmentcardid", state.cardId);
+        }
+        if (state.history != null) {
+            ed.putString("history", state.history);
+        }
+        ed.putInt("curpos", state.curpos);
+        ed.putLong("curid", state.curid);
+        if (state.seekpos >= 0) {
+            ed.putLong("seekpos", state.seekpos);
+        }
+        ed.putInt("repeatmode", state.repeatmode);
+        ed.putInt("shufflemode", state.shufflemode);
         SharedPreferencesCompat.apply(ed);
 
         //Log.i("@@@@ service", "saved state in " + (System.currentTimeMillis() - start) + " ms");
     }
 
-    private void reloadQueue() {
+    // Must be called with mSaveLock locked.
+    private void writeQueueStore(long [] src, int srcOffset, int from, int count, int len,
+            int cardId, long generation) {
+        if (!mQueueStore.isOpen()) {
+            return;
+        }
+        mQueueStore.write(from, src, srcOffset, count);
+        mQueueStore.setLength(len);
+        mQueueStore.setMeta(QUEUE_META_CARDID, cardId);
+        mQueueStore.setMeta(QUEUE_META_GENERATION, generation);
+        mQueueStore.commit();
+    }
+
+    private void markQueueDirty(int from) {
+        if (from < mQueueDirtyFrom) {
+            mQueueDirtyFrom = from;
+        }
+    }
+
+    /**
+     * Older versions kept the queue in the preferences, as a string of
+     * "reverse hexadecimal" numbers. Parse that into mPlayList. The next
+     * full save moves it over to the queue file and removes the old entry.
+     * @return the length of the restored queue, or -1 if there was none
+     */
+    private int migrateLegacyQueue() {
         String q = null;
-        
-        boolean newstyle = false;
         int id = mCardId;
         if (mPreferences.contains("cardid")) {
-            newstyle = true;
             id = mPreferences.getInt("cardid", ~mCardId);
         }
         if (id == mCardId) {
@@ -445,17 +813,17 @@ public class MediaPlaybackService extends Service {
             // the same one as when the playlist was saved
             q = mPreferences.getString("queue", "");
         }
+        int plen = -1;
         int qlen = q != null ? q.length() : 0;
         if (qlen > 1) {
-            //Log.i("@@@@ service", "loaded queue: " + q);
-            int plen = 0;
+            plen = 0;
             int n = 0;
             int shift = 0;
+            mPlayList.clear();
             for (int i = 0; i < qlen; i++) {
                 char c = q.charAt(i);
                 if (c == ';') {
-                    ensurePlayListCapacity(plen + 1);
-                    mPlayList[plen] = n;
+                    mPlayList.add(n);
                     plen++;
                     n = 0;
                     shift = 0;
@@ -467,117 +835,274 @@ public class MediaPlaybackService extends Service {
                     } else {
                         // bogus playlist data
                         plen = 0;
+                        mPlayList.clear();
                         break;
                     }
                     shift += 4;
                 }
             }
-            mPlayListLen = plen;
+            mQueueDirtyFrom = 0;
+            mShuffleOrder.reset(mPlayList.size());
+        }
+        return plen;
+    }
+
+    /**
+     * Restores a queue that was saved as the query it was read from.
+     * @return the length of the restored queue, or -1 if there was none
+     */
+    private int reloadQuerySegment() {
+        if (mPreferences.getInt("segmentcardid", ~mCardId) != mCardId) {
+            return -1;
+        }
+        CollectionQuery query = CollectionQuery.valueOf(mPreferences.getInt("segmenttype", -1),
+                mPreferences.getLong("segmentarg", 0));
+        if (query == null) {
+            return -1;
+        }
+        QuerySegment segment = newQuerySegment(query);
+        int len = segment.size();
+        if (len == 0) {
+            segment.release();
+            return -1;
+        }
+        mPlayList.setSource(segment);
+        mShuffleOrder.reset(len);
+        return len;
+    }
+
+    // Takes mSaveLock and then the service lock, in the same order as
+    // performSave(), except while waiting for the media provider.
+    private void reloadQueue() {
+        long id;
+        int modCount;
+        synchronized (mSaveLock) {
+            synchronized (this) {
+                if (!reloadQueuePosition()) {
+                    return;
+                }
+                id = mPlayList.get(mPlayPos);
+                modCount = mPlayList.getModCount();
+            }
+        }
+
+        // When reloadQueue is called in response to a card-insertion,
+        // we might not be able to query the media provider right away.
+        // To deal with this, try querying for the current file, and if
+        // that fails, wait a while and try again. If that too fails,
+        // assume there is a problem and don't restore the state.
+        Cursor crsr = MusicUtils.query(this,
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    new String [] {"_id"}, "_id=" + id , null, null);
+        if (crsr == null || crsr.getCount() == 0) {
+            // wait a bit and try again
+            SystemClock.sleep(3000);
+            crsr = getContentResolver().query(
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    new String [] {"_id"}, "_id=" + id , null, null);
+        }
+        if (crsr != null) {
+            crsr.close();
+        }
+
+        synchronized (mSaveLock) {
+            synchronized (this) {
+                if (mPlayList.getModCount() != modCount || mPlayList.size() <= mPlayPos
+                        || mPlayList.get(mPlayPos) != id) {
+                    // something else was played meanwhile, so leave it be
+                    return;
+                }
+                reloadPlaybackState();
+            }
+        }
+    }
 
+    // Restores the queue and the position in it, and returns false if there
+    // was no saved queue to restore. Must be called with mSaveLock and the
+    // service locked.
+    private boolean reloadQueuePosition() {
+        int plen = -1;
+        boolean restored = false;
+        boolean fromQuery = false;
+        if (mPreferences.contains("segmenttype")) {
+            // The queue files are out of date when the queue was saved as
+            // a query, so don't fall back to them if it can't be restored.
+            restored = true;
+            plen = reloadQuerySegment();
+            fromQuery = plen >= 0;
+            mQueueFilesStale = true;
+        }
+        // Only restore the saved playlist if the card is still
+        // the same one as when the playlist was saved
+        if (!restored && mQueueStore.isValid()
+                && mQueueStore.getMeta(QUEUE_META_CARDID) == mCardId) {
+            int len = mQueueStore.length();
+            long [] buf = new long[Math.min(len, 1024)];
+            mPlayList.clear();
+            for (int i = 0; i < len; i += buf.length) {
+                int n = Math.min(buf.length, len - i);
+                mQueueStore.read(i, buf, 0, n);
+                mPlayList.insert(i, buf, 0, n);
+            }
+            mShuffleOrder.reset(len);
+            mQueueDirtyFrom = Integer.MAX_VALUE;
+            // apply the edits made since the snapshot was written
+            if (!mQueueJournal.replay(mQueueStore.getMeta(QUEUE_META_GENERATION),
+                    mJournalReplayer)) {
+                Log.w(LOGTAG, "couldn't replay queue journal");
+            }
+            restored = true;
+            if (mPlayList.size() > 0) {
+                plen = mPlayList.size();
+            }
+        }
+        if (!restored && mPreferences.contains("queue")) {
+            plen = migrateLegacyQueue();
+        }
+        if (plen >= 0) {
             int pos = mPreferences.getInt("curpos", 0);
-            if (pos < 0 || pos >= mPlayListLen) {
+            long id = mPreferences.getLong("curid", -1);
+            if (fromQuery && id >= 0
+                    && (pos < 0 || pos >= mPlayList.size() || mPlayList.get(pos) != id)) {
+                // the query found different tracks than when it was saved,
+                // so look for the one that was playing
+                int i = mPlayList.indexOf(id, 0);
+                if (i >= 0) {
+                    pos = i;
+                }
+            }
+            if (pos < 0 || pos >= mPlayList.size()) {
                 // The saved playlist is bogus, discard it
-                mPlayListLen = 0;
-                return;
+                clearPlayList();
+                return false;
             }
             mPlayPos = pos;
-            
-            // When reloadQueue is called in response to a card-insertion,
-            // we might not be able to query the media provider right away.
-            // To deal with this, try querying for the current file, and if
-            // that fails, wait a while and try again. If that too fails,
-            // assume there is a problem and don't restore the state.
-            Cursor crsr = MusicUtils.query(this,
-                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                        new String [] {"_id"}, "_id=" + mPlayList[mPlayPos] , null, null);
-            if (crsr == null || crsr.getCount() == 0) {
-                // wait a bit and try again
-                SystemClock.sleep(3000);
-                crsr = getContentResolver().query(
-                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                        mCursorCols, "_id=" + mPlayList[mPlayPos] , null, null);
-            }
-            if (crsr != null) {
-                crsr.close();
-            }
-
-            // Make sure we don't auto-skip to the next song, since that
-            // also starts playback. What could happen in that case is:
-            // - music is paused
-            // - go to UMS and delete some files, including the currently playing one
-            // - come back from UMS
-            // (time passes)
-            // - music app is killed for some reason (out of memory)
-            // - music service is restarted, service restores state, doesn't find
-            //   the "current" file, goes to the next and: playback starts on its
-            //   own, potentially at some random inconvenient time.
-            mOpenFailedCounter = 20;
-            mQuietMode = true;
-            openCurrent();
-            mQuietMode = false;
-            if (!mPlayer.isInitialized()) {
-                // couldn't restore the saved state
-                mPlayListLen = 0;
-                return;
-            }
-            
-            long seekpos = mPreferences.getLong("seekpos", 0);
-            seek(seekpos >= 0 && seekpos < duration() ? seekpos : 0);
-            Log.d(LOGTAG, "restored queue, currently at position "
-                    + position() + "/" + duration()
-                    + " (requested " + seekpos + ")");
-            
-            int repmode = mPreferences.getInt("repeatmode", REPEAT_NONE);
-            if (repmode != REPEAT_ALL && repmode != REPEAT_CURRENT) {
-                repmode = REPEAT_NONE;
-            }
-            mRepeatMode = repmode;
-
-            int shufmode = mPreferences.getInt("shufflemode", SHUFFLE_NONE);
-            if (shufmode != SHUFFLE_AUTO && shufmode != SHUFFLE_NORMAL) {
-                shufmode = SHUFFLE_NONE;
-            }
-            if (shufmode != SHUFFLE_NONE) {
-                // in shuffle mode we need to restore the history too
-                q = mPreferences.getString("history", "");
-                qlen = q != null ? q.length() : 0;
-                if (qlen > 1) {
-                    plen = 0;
-                    n = 0;
-                    shift = 0;
-                    mHistory.clear();
-                    for (int i = 0; i < qlen; i++) {
-                        char c = q.charAt(i);
-                        if (c == ';') {
-                            if (n >= mPlayListLen) {
-                                // bogus history data
-                                mHistory.clear();
-                                break;
-                            }
-                            mHistory.add(n);
-                            n = 0;
-                            shift = 0;
-                        } else {
-                            if (c >= '0' && c <= '9') {
-                                n += ((c - '0') << shift);
-                            } else if (c >= 'a' && c <= 'f') {
-                                n += ((10 + c - 'a') << shift);
-                            } else {
-                                // bogus history data
-                                mHistory.clear();
-                                break;
-                            }
-                            shift += 4;
-                        }
-                    }
+            return true;
+        }
+        return false;
+    }
+
+    // Opens the current track and restores the rest of the playback state
+    // that goes with the queue. Must be called with mSaveLock and the
+    // service locked.
+    private void reloadPlaybackState() {
+        // Make sure we don't auto-skip to the next song, since that
+        // also starts playback. What could happen in that case is:
+        // - music is paused
+        // - go to UMS and delete some files, including the currently playing one
+        // - come back from UMS
+        // (time passes)
+        // - music app is killed for some reason (out of memory)
+        // - music service is restarted, service restores state, doesn't find
+        //   the "current" file, goes to the next and: playback starts on its
+        //   own, potentially at some random inconvenient time.
+        mOpenFailedCounter = 20;
+        mQuietMode = true;
+        openCurrent();
+        mQuietMode = false;
+        if (!mPlayer.isInitialized()) {
+            // couldn't restore the saved state
+            clearPlayList();
+            return;
+        }
+        
+        long seekpos = mPreferences.getLong("seekpos", 0);
+        // the player ignores the seek once it's prepared if this is
+        // past the end of the track
+        seek(seekpos >= 0 ? seekpos : 0);
+        Log.d(LOGTAG, "restored queue, currently at position "
+                + position() + "/" + duration()
+                + " (requested " + seekpos + ")");
+        
+        int repmode = mPreferences.getInt("repeatmode", REPEAT_NONE);
+        if (repmode != REPEAT_ALL && repmode != REPEAT_CURRENT) {
+            repmode = REPEAT_NONE;
+        }
+        mRepeatMode = repmode;
+
+        int shufmode = mPreferences.getInt("shufflemode", SHUFFLE_NONE);
+        if (shufmode != SHUFFLE_AUTO && shufmode != SHUFFLE_NORMAL) {
+            shufmode = SHUFFLE_NONE;
+        }
+        long [] history = null;
+        if (shufmode != SHUFFLE_NONE) {
+            // in shuffle mode we need to restore the history too
+            history = parseHistory(mPreferences.getString("history", ""));
+        }
+        if (shufmode == SHUFFLE_AUTO) {
+            // the ids of the tracks party shuffle picked recently
+            mAutoShuffle.setRecent(history);
+            mAutoShuffle.requestRefill();
+        }
+        if (shufmode == SHUFFLE_NORMAL && !reloadShuffleOrder()) {
+            // Older versions only kept a history of played tracks,
+            // so start from that instead.
+            mShuffleOrder.reset(mPlayList.size());
+            for (int i = 0; i < history.length; i++) {
+                if (history[i] >= mPlayList.size()) {
+                    // bogus history data
+                    mShuffleOrder.reset(mPlayList.size());
+                    break;
                 }
+                mShuffleOrder.jumpTo((int) history[i]);
             }
-            if (shufmode == SHUFFLE_AUTO) {
-                if (! makeAutoShuffleList()) {
-                    shufmode = SHUFFLE_NONE;
+        }
+        if (shufmode == SHUFFLE_NORMAL) {
+            mShuffleOrder.jumpTo(mPlayPos);
+        }
+        mShuffleMode = shufmode;
+    }
+
+    /**
+     * Parses a history saved as "reverse hexadecimal" numbers.
+     * @return the numbers, or an empty array if the data is bogus
+     */
+    private static long [] parseHistory(String q) {
+        int qlen = q != null ? q.length() : 0;
+        long [] list = new long[qlen];
+        int len = 0;
+        long n = 0;
+        int shift = 0;
+        for (int i = 0; i < qlen; i++) {
+            char c = q.charAt(i);
+            if (c == ';') {
+                list[len++] = n;
+                n = 0;
+                shift = 0;
+            } else {
+                if (c >= '0' && c <= '9') {
+                    n += ((long) (c - '0') << shift);
+                } else if (c >= 'a' && c <= 'f') {
+                    n += ((long) (10 + c - 'a') << shift);
+                } else {
+                    // bogus history data
+                    return new long[0];
                 }
+                shift += 4;
             }
-            mShuffleMode = shufmode;
+        }
+        long [] history = new long[len];
+        System.arraycopy(list, 0, history, 0, len);
+        return history;
+    }
+
+    private boolean reloadShuffleOrder() {
+        synchronized (mSaveLock) {
+            int len = mPlayList.size();
+            if (!mShuffleStore.isValid()
+                    || mShuffleStore.getMeta(SHUFFLE_META_CARDID) != mCardId
+                    || mShuffleStore.getMeta(SHUFFLE_META_QUEUE_LENGTH) != len) {
+                return false;
+            }
+            int played = mShuffleStore.length();
+            long [] saved = new long[played];
+            mShuffleStore.read(0, saved, 0, played);
+            int [] order = new int[played];
+            for (int i = 0; i < played; i++) {
+                order[i] = (int) saved[i];
+            }
+            return mShuffleOrder.restore(order, played,
+                    (int) mShuffleStore.getMeta(SHUFFLE_META_CURSOR), len);
         }
     }
     
@@ -645,7 +1170,7 @@ public class MediaPlaybackService extends Service {
         mServiceInUse = false;
 
         // Take a snapshot of the current playlist
-        saveQueue(true);
+        requestSave(true);
 
         if (isPlaying() || mPausedByTransientLossOfFocus) {
             // something is currently playing, or will be playing once 
@@ -656,7 +1181,7 @@ public class MediaPlaybackService extends Service {
         // If there is a playlist but playback is paused, then wait a while
         // before stopping the service, so that pause/resume isn't slow.
         // Also delay stopping the service if we're transitioning between tracks.
-        if (mPlayListLen > 0  || mMediaplayerHandler.hasMessages(TRACK_ENDED)) {
+        if (mPlayList.size() > 0  || mMediaplayerHandler.hasMessages(TRACK_ENDED)) {
             Message msg = mDelayedStopHandler.obtainMessage();
             mDelayedStopHandler.sendMessageDelayed(msg, IDLE_DELAY);
             return true;
@@ -678,7 +1203,7 @@ public class MediaPlaybackService extends Service {
             // save the queue again, because it might have changed
             // since the user exited the music app (because of
             // party-shuffle or because the play-position changed)
-            saveQueue(true);
+            flushSave(true);
             stopSelf(mServiceStartId);
         }
     };
@@ -707,12 +1232,18 @@ public class MediaPlaybackService extends Service {
                 public void onReceive(Context context, Intent intent) {
                     String action = intent.getAction();
                     if (action.equals(Intent.ACTION_MEDIA_EJECT)) {
-                        saveQueue(true);
+                        flushSave(true);
                         mQueueIsSaveable = false;
                         closeExternalStorageFiles(intent.getData().getPath());
+                    } else if (action.equals(Intent.ACTION_MEDIA_SCANNER_FINISHED)) {
+                        // queues read from the index are refreshed once
+                        // the index has caught up
+                        mLibraryIndex.requestUpdate(true);
+                        refreshQuerySegment(false);
                     } else if (action.equals(Intent.ACTION_MEDIA_MOUNTED)) {
                         mMediaMountedCount++;
                         mCardId = MusicUtils.getCardId(MediaPlaybackService.this);
+                        mLibraryIndex.setCardId(mCardId);
                         reloadQueue();
                         mQueueIsSaveable = true;
                         notifyChange(QUEUE_CHANGED);
@@ -723,6 +1254,7 @@ public class MediaPlaybackService extends Service {
             IntentFilter iFilter = new IntentFilter();
             iFilter.addAction(Intent.ACTION_MEDIA_EJECT);
             iFilter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+            iFilter.addAction(Intent.ACTION_MEDIA_SCANNER_FINISHED);
             iFilter.addDataScheme("file");
             registerReceiver(mUnmountReceiver, iFilter);
         }
@@ -749,72 +1281,187 @@ public class MediaPlaybackService extends Service {
      */
     private void notifyChange(String what) {
 
+        mStateVersion.incrementAndGet();
+        publishState();
+        NowPlaying now = mNowPlaying;
         Intent i = new Intent(what);
-        i.putExtra("id", Long.valueOf(getAudioId()));
-        i.putExtra("artist", getArtistName());
-        i.putExtra("album",getAlbumName());
-        i.putExtra("track", getTrackName());
-        i.putExtra("playing", isPlaying());
+        // lets clients tell whether they've already seen this change
+        i.putExtra("version", now.version);
+        if (what.equals(QUEUE_CHANGED)) {
+            // lets clients tell whether their copy of the queue is current
+            i.putExtra("queueversion", getQueueVersion());
+        }
+        i.putExtra("id", Long.valueOf(now.audioId));
+        i.putExtra("artist", now.track != null ? now.track.artist : null);
+        i.putExtra("album", now.track != null ? now.track.album : null);
+        i.putExtra("track", now.track != null ? now.track.title : null);
+        i.putExtra("playing", now.playing);
         sendStickyBroadcast(i);
 
         if (what.equals(PLAYSTATE_CHANGED)) {
         } else if (what.equals(META_CHANGED)) {
         } else if (what.equals(QUEUE_CHANGED)) {
-            saveQueue(true);
+            synchronized (this) {
+                // the track after the current one might be a different one now
+                setNextTrack();
+            }
+            requestSave(true);
         } else {
-            saveQueue(false);
+            requestSave(false);
         }
         
+        if (what.equals(PLAYSTATE_CHANGED)) {
+            dispatchCallbacks(CALLBACK_STATE);
+        } else if (what.equals(META_CHANGED)) {
+            dispatchCallbacks(CALLBACK_META);
+        } else if (what.equals(QUEUE_CHANGED)) {
+            dispatchCallbacks(CALLBACK_QUEUE);
+        }
+
         // Share this notification directly with our widgets
         mAppWidgetProvider.notifyChange(this, what);
     }
 
-    private void ensurePlayListCapacity(int size) {
-        if (mPlayList == null || size > mPlayList.length) {
-            // reallocate at 2x requested size so we don't
-            // need to grow and copy the array for every
-            // insert
-            long [] newlist = new long[size * 2];
-            int len = mPlayList != null ? mPlayList.length : mPlayListLen;
-            for (int i = 0; i < len; i++) {
-                newlist[i] = mPlayList[i];
+    /**
+     * Tells the registered callbacks about a change.
+     * @param event one of the CALLBACK_ constants
+     */
+    private void dispatchCallbacks(int event) {
+        // Take the snapshot first, so the service lock is never acquired
+        // while holding mCallbacks.
+        publishState();
+        PlaybackSnapshot snapshot = getSnapshot();
+        synchronized (mCallbacks) {
+            int n = mCallbacks.beginBroadcast();
+            for (int i = 0; i < n; i++) {
+                IMediaPlaybackCallback callback = mCallbacks.getBroadcastItem(i);
+                try {
+                    switch (event) {
+                        case CALLBACK_STATE:
+                            callback.onStateChanged(snapshot);
+                            break;
+                        case CALLBACK_META:
+                            callback.onMetaChanged(snapshot);
+                            break;
+                        case CALLBACK_QUEUE:
+                            callback.onQueueChanged(snapshot);
+                            break;
+                        case CALLBACK_POSITION:
+                            callback.onPositionChanged(snapshot);
+                            break;
+                    }
+                } catch (RemoteException ex) {
+                    // the list drops callbacks whose process died
+                }
             }
-            mPlayList = newlist;
+            mCallbacks.finishBroadcast();
         }
-        // FIXME: shrink the array when the needed size is much smaller
-        // than the allocated size
     }
-    
+
     // insert the list of songs at the specified position in the playlist
     private void addToPlayList(long [] list, int position) {
-        int addlen = list.length;
         if (position < 0) { // overwrite
-            mPlayListLen = 0;
+            mPlayList.clear();
+            mShuffleOrder.reset(0);
             position = 0;
+            mQueueJournal.logReplace(list, list.length);
+        } else {
+            if (position > mPlayList.size()) {
+                position = mPlayList.size();
+            }
+            mQueueJournal.logInsert(list, position);
         }
-        ensurePlayListCapacity(mPlayListLen + addlen);
-        if (position > mPlayListLen) {
-            position = mPlayListLen;
-        }
-        
-        // move part of list after insertion point
-        int tailsize = mPlayListLen - position;
-        for (int i = tailsize ; i > 0 ; i--) {
-            mPlayList[position + i] = mPlayList[position + i - addlen]; 
-        }
-        
-        // copy list into playlist
-        for (int i = 0; i < addlen; i++) {
-            mPlayList[position + i] = list[i];
-        }
-        mPlayListLen += addlen;
-        if (mPlayListLen == 0) {
-            mCursor.close();
-            mCursor = null;
+        insertIntoPlayList(list, position);
+        if (mPlayList.size() == 0) {
+            mCurrentTrack = null;
             notifyChange(META_CHANGED);
         }
     }
     
+    // The following methods only change the contents of the play list. They
+    // are used both for making changes and for replaying the queue journal.
+
+    private void insertIntoPlayList(long [] list, int position) {
+        if (position < 0) {
+            position = 0;
+        } else if (position > mPlayList.size()) {
+            position = mPlayList.size();
+        }
+        markQueueDirty(position);
+        synchronized (mPlayList) {
+            long version = getQueueVersion();
+            mPlayList.insert(position, list);
+            if (list.length <= MAX_QUEUE_SLICE) {
+                recordQueueDelta(version, PlaybackQueueDelta.INSERT, position, position, list);
+            }
+        }
+        mShuffleOrder.insert(position, list.length);
+    }
+
+    private void movePlayListItem(int index1, int index2) {
+        if (index1 < 0 || index2 < 0 || index1 >= mPlayList.size() || index2 >= mPlayList.size()) {
+            return;
+        }
+        markQueueDirty(Math.min(index1, index2));
+        synchronized (mPlayList) {
+            long version = getQueueVersion();
+            mPlayList.move(index1, index2);
+            recordQueueDelta(version, PlaybackQueueDelta.MOVE, index1, index2, null);
+        }
+        mShuffleOrder.move(index1, index2);
+    }
+
+    private void removeFromPlayList(int first, int last) {
+        if (first < 0) first = 0;
+        if (last >= mPlayList.size()) last = mPlayList.size() - 1;
+        if (last < first) return;
+        markQueueDirty(first);
+        synchronized (mPlayList) {
+            long version = getQueueVersion();
+            mPlayList.remove(first, last);
+            recordQueueDelta(version, PlaybackQueueDelta.REMOVE, first, last, null);
+        }
+        mShuffleOrder.remove(first, last);
+    }
+
+    private void clearPlayList() {
+        mPlayList.clear();
+        mShuffleOrder.reset(0);
+        mQueueJournal.logReplace(new long[0], 0);
+    }
+
+    // Keeps a change that took the queue from 'previousVersion' to what it
+    // is now. Changes that aren't kept, such as replacing the queue, leave a
+    // gap between the versions, which tells clients to read it all again.
+    private void recordQueueDelta(long previousVersion, int type, int from, int to,
+            long [] ids) {
+        PlaybackQueueDelta delta = new PlaybackQueueDelta();
+        delta.previousVersion = previousVersion;
+        delta.version = getQueueVersion();
+        delta.type = type;
+        delta.from = from;
+        delta.to = to;
+        delta.ids = ids;
+        mQueueDeltas[mQueueDeltaCount++ % MAX_QUEUE_DELTAS] = delta;
+    }
+
+    private final QueueJournal.Target mJournalReplayer = new QueueJournal.Target() {
+        public void insert(long [] list, int position) {
+            insertIntoPlayList(list, position);
+        }
+        public void move(int from, int to) {
+            movePlayListItem(from, to);
+        }
+        public void remove(int first, int last) {
+            removeFromPlayList(first, last);
+        }
+        public void replace(long [] list) {
+            mPlayList.clear();
+            mShuffleOrder.reset(0);
+            insertIntoPlayList(list, 0);
+        }
+    };
+
     /**
      * Appends a list of tracks to the current playlist.
      * If nothing is playing currently, playback will be started at
@@ -826,15 +1473,15 @@ public class MediaPlaybackService extends Service {
      */
     public void enqueue(long [] list, int action) {
         synchronized(this) {
-            if (action == NEXT && mPlayPos + 1 < mPlayListLen) {
+            if (action == NEXT && mPlayPos + 1 < mPlayList.size()) {
                 addToPlayList(list, mPlayPos + 1);
                 notifyChange(QUEUE_CHANGED);
             } else {
-                // action == LAST || action == NOW || mPlayPos + 1 == mPlayListLen
+                // action == LAST || action == NOW || mPlayPos + 1 == mPlayList.size()
                 addToPlayList(list, Integer.MAX_VALUE);
                 notifyChange(QUEUE_CHANGED);
                 if (action == NOW) {
-                    mPlayPos = mPlayListLen - list.length;
+                    mPlayPos = mPlayList.size() - list.length;
                     openCurrent();
                     play();
                     notifyChange(META_CHANGED);
@@ -850,6 +1497,44 @@ public class MediaPlaybackService extends Service {
         }
     }
 
+    /**
+     * Like enqueue(), but leaves out the tracks that are in the queue
+     * already, as well as repeats within the list.
+     * @return the number of tracks that were added
+     */
+    public int enqueueMissing(long [] list, int action) {
+        synchronized (this) {
+            LongHashSet seen = new LongHashSet();
+            long [] missing = new long[list.length];
+            int n = 0;
+            for (int i = 0; i < list.length; i++) {
+                long id = list[i];
+                if (id >= 0 && !mPlayList.contains(id) && seen.add(id)) {
+                    missing[n++] = id;
+                }
+            }
+            if (n == 0) {
+                return 0;
+            }
+            if (n < list.length) {
+                long [] shorter = new long[n];
+                System.arraycopy(missing, 0, shorter, 0, n);
+                missing = shorter;
+            }
+            enqueue(missing, action);
+            return n;
+        }
+    }
+
+    /**
+     * Returns whether the track with the given id is in the playlist.
+     */
+    public boolean isQueued(long id) {
+        synchronized (this) {
+            return mPlayList.contains(id);
+        }
+    }
+
     /**
      * Replaces the current playlist with a new list,
      * and prepares for starting playback at the specified
@@ -862,125 +1547,346 @@ public class MediaPlaybackService extends Service {
             if (mShuffleMode == SHUFFLE_AUTO) {
                 mShuffleMode = SHUFFLE_NORMAL;
             }
-            long oldId = getAudioId();
-            int listlength = list.length;
-            boolean newlist = true;
-            if (mPlayListLen == listlength) {
-                // possible fast path: list might be the same
-                newlist = false;
-                for (int i = 0; i < listlength; i++) {
-                    if (list[i] != mPlayList[i]) {
-                        newlist = true;
-                        break;
-                    }
-                }
-            }
-            if (newlist) {
+            long oldId = currentAudioId();
+            // possible fast path: list might be the same
+            boolean changed = !mPlayList.contentEquals(list);
+            if (changed) {
                 addToPlayList(list, -1);
-                notifyChange(QUEUE_CHANGED);
             }
             int oldpos = mPlayPos;
             if (position >= 0) {
                 mPlayPos = position;
             } else {
-                mPlayPos = mRand.nextInt(mPlayListLen);
+                mPlayPos = mRand.nextInt(mPlayList.size());
+            }
+            mShuffleOrder.reset(mPlayList.size());
+            if (changed) {
+                // only now that mPlayPos is within the new queue
+                notifyChange(QUEUE_CHANGED);
             }
-            mHistory.clear();
 
             saveBookmarkIfNeeded();
             openCurrent();
-            if (oldId != getAudioId()) {
+            if (oldId != currentAudioId()) {
                 notifyChange(META_CHANGED);
             }
         }
     }
-    
+
     /**
-     * Moves the item at index1 to index2.
-     * @param index1
-     * @param index2
+     * Replaces the current playlist with the tracks of a collection in the
+     * media database, and starts at 'position', or at a random track if
+     * 'shuffle' is set. Asking for the track that is already playing, in
+     * the queue that is already loaded, leaves playback alone.
+     * @return the number of tracks in the collection. The queue isn't
+     * touched if that is 0.
      */
-    public void moveQueueItem(int index1, int index2) {
-        synchronized (this) {
-            if (index1 >= mPlayListLen) {
-                index1 = mPlayListLen - 1;
-            }
-            if (index2 >= mPlayListLen) {
-                index2 = mPlayListLen - 1;
-            }
-            if (index1 < index2) {
-                long tmp = mPlayList[index1];
-                for (int i = index1; i < index2; i++) {
-                    mPlayList[i] = mPlayList[i+1];
-                }
-                mPlayList[index2] = tmp;
-                if (mPlayPos == index1) {
-                    mPlayPos = index2;
-                } else if (mPlayPos >= index1 && mPlayPos <= index2) {
-                        mPlayPos--;
-                }
-            } else if (index2 < index1) {
-                long tmp = mPlayList[index1];
-                for (int i = index1; i > index2; i--) {
-                    mPlayList[i] = mPlayList[i-1];
-                }
-                mPlayList[index2] = tmp;
-                if (mPlayPos == index1) {
-                    mPlayPos = index2;
-                } else if (mPlayPos >= index2 && mPlayPos <= index1) {
-                        mPlayPos++;
-                }
-            }
-            notifyChange(QUEUE_CHANGED);
+    public int openCollection(CollectionQuery query, int position, boolean shuffle) {
+        // the query doesn't need the lock, and can take a while for a
+        // large collection
+        QuerySegment segment = newQuerySegment(query);
+        int len = segment.size();
+        if (len == 0) {
+            segment.release();
+            return 0;
+        }
+        if (shuffle) {
+            setShuffleMode(SHUFFLE_NORMAL);
+        } else if (position < 0 || position >= len) {
+            position = 0;
         }
+        synchronized (this) {
+            QuerySegment current = getQuerySegment();
+            // the current segment is read through mPlayList, which keeps
+            // queue readers on other threads from using it at the same time
+            if (!shuffle && position == mPlayPos && mPlayer.isInitialized()
+                    && current != null && current.getQuery().equals(query)
+                    && mPlayList.size() == len && mPlayList.get(position) == segment.get(position)) {
+                segment.release();
+                return len;
+            }
+            openQuerySegment(segment, shuffle ? -1 : position);
+        }
+        return len;
     }
 
     /**
-     * Returns the current play list
-     * @return An array of integers containing the IDs of the tracks in the play list
+     * Like open(long [], int), for a queue that is read from a query.
+     * The ids are never copied into the queue, unless it is edited later.
      */
-    public long [] getQueue() {
+    private void openQuerySegment(QuerySegment segment, int position) {
         synchronized (this) {
-            int len = mPlayListLen;
-            long [] list = new long[len];
-            for (int i = 0; i < len; i++) {
-                list[i] = mPlayList[i];
+            if (mShuffleMode == SHUFFLE_AUTO) {
+                mShuffleMode = SHUFFLE_NORMAL;
+            }
+            long oldId = currentAudioId();
+            mPlayList.setSource(segment);
+            mQueueFilesStale = true;
+            int len = segment.size();
+            mPlayPos = position >= 0 ? position : mRand.nextInt(len);
+            mShuffleOrder.reset(len);
+            notifyChange(QUEUE_CHANGED);
+
+            saveBookmarkIfNeeded();
+            openCurrent();
+            if (oldId != currentAudioId()) {
+                notifyChange(META_CHANGED);
             }
-            return list;
         }
     }
 
-    private void openCurrent() {
+    /**
+     * Runs the query a queue is read from again, after the media scanner
+     * changed the database. The current track keeps playing, and stays
+     * current if the query still finds it.
+     * @param fromIndex whether to refresh a queue read from the library
+     * index, or one read from the database
+     */
+    private void refreshQuerySegment(boolean fromIndex) {
+        QuerySegment segment;
         synchronized (this) {
-            if (mCursor != null) {
-                mCursor.close();
-                mCursor = null;
+            segment = getQuerySegment();
+            if (segment == null || segment.isFromIndex() != fromIndex) {
+                return;
             }
+        }
+        QuerySegment fresh = newQuerySegment(segment.getQuery());
+        synchronized (this) {
+            if (getQuerySegment() != segment) {
+                // the queue was replaced or edited in the meantime
+                fresh.release();
+                return;
+            }
+            long id = mPlayPos >= 0 ? mPlayList.get(mPlayPos) : -1;
+            int len = fresh.size();
+            if (len == 0) {
+                fresh.release();
+                clearPlayList();
+                stop(true);
+                mPlayPos = -1;
+                mCurrentTrack = null;
+                notifyChange(QUEUE_CHANGED);
+                notifyChange(META_CHANGED);
+                return;
+            }
+            mPlayList.setSource(fresh);
+            int pos = -1;
+            if (id >= 0) {
+                if (mPlayPos < len && mPlayList.get(mPlayPos) == id) {
+                    pos = mPlayPos;
+                } else {
+                    pos = mPlayList.indexOf(id, 0);
+                }
+            }
+            if (pos >= 0) {
+                mPlayPos = pos;
+            } else if (mPlayPos >= len) {
+                mPlayPos = len - 1;
+            }
+            // the positions of the tracks played so far may not be theirs
+            // anymore, so start a new pass from here
+            mShuffleOrder.reset(len);
+            if (mShuffleMode == SHUFFLE_NORMAL) {
+                mShuffleOrder.jumpTo(mPlayPos);
+            }
+            notifyChange(QUEUE_CHANGED);
+        }
+    }
+
+    // Reads all songs from the library index once it's there, and runs
+    // the query for anything else.
+    private QuerySegment newQuerySegment(CollectionQuery query) {
+        if (query.getType() == CollectionQuery.ALL_SONGS && mLibraryIndex.size() > 0) {
+            return new QuerySegment(query, mLibraryIndex.snapshot());
+        }
+        return new QuerySegment(getContentResolver(), query);
+    }
+
+    // Returns the query the queue is read from, or null if the queue holds
+    // its own ids.
+    private QuerySegment getQuerySegment() {
+        PlaybackQueue.Source source = mPlayList.getSource();
+        return source instanceof QuerySegment ? (QuerySegment) source : null;
+    }
+    
+    /**
+     * Moves the item at index1 to index2.
+     * @param index1
+     * @param index2
+     */
+    public void moveQueueItem(int index1, int index2) {
+        synchronized (this) {
+            if (index1 >= mPlayList.size()) {
+                index1 = mPlayList.size() - 1;
+            }
+            if (index2 >= mPlayList.size()) {
+                index2 = mPlayList.size() - 1;
+            }
+            if (index1 != index2) {
+                mQueueJournal.logMove(index1, index2);
+                movePlayListItem(index1, index2);
+            }
+            if (index1 < index2) {
+                if (mPlayPos == index1) {
+                    mPlayPos = index2;
+                } else if (mPlayPos >= index1 && mPlayPos <= index2) {
+                        mPlayPos--;
+                }
+            } else if (index2 < index1) {
+                if (mPlayPos == index1) {
+                    mPlayPos = index2;
+                } else if (mPlayPos >= index2 && mPlayPos <= index1) {
+                        mPlayPos++;
+                }
+            }
+            notifyChange(QUEUE_CHANGED);
+        }
+    }
+
+    /**
+     * Returns the current play list
+     * @return An array of integers containing the IDs of the tracks in the play list
+     */
+    public long [] getQueue() {
+        // The queue has a lock of its own, so reading it doesn't wait for
+        // the service lock; that is only needed to change the queue.
+        synchronized (mPlayList) {
+            return mPlayList.toArray();
+        }
+    }
+
+    public int getQueueLength() {
+        return mPlayList.size();
+    }
+
+    /**
+     * Returns part of the play list. Very large queues don't fit into a
+     * single Binder transaction, so no more than MAX_QUEUE_SLICE ids are
+     * returned at a time.
+     * @param offset The position in the queue of the first id to return
+     * @param count The number of ids wanted
+     * @return The ids; fewer than 'count' if the queue ends first
+     */
+    public long [] getQueueSlice(int offset, int count) {
+        synchronized (mPlayList) {
+            int size = mPlayList.size();
+            offset = Math.max(0, Math.min(offset, size));
+            count = Math.max(0, Math.min(Math.min(count, MAX_QUEUE_SLICE), size - offset));
+            long [] slice = new long[count];
+            mPlayList.copyTo(offset, slice, 0, count);
+            return slice;
+        }
+    }
+
+    /**
+     * Returns a number that changes whenever the play list does, including
+     * across restarts of the service.
+     */
+    public long getQueueVersion() {
+        return ((long) mQueueEpoch << 32) | (mPlayList.getModCount() & 0xffffffffL);
+    }
 
-            if (mPlayListLen == 0) {
+    /**
+     * Returns the changes made to the play list since getQueueVersion()
+     * returned 'version', oldest first, so that clients with a copy of it
+     * can keep that up to date without reading it all again.
+     * @return the changes, or null if they aren't all known any more, in
+     * which case the whole play list has to be read again
+     */
+    public PlaybackQueueDelta [] getQueueDeltas(long version) {
+        synchronized (mPlayList) {
+            long current = getQueueVersion();
+            if (version == current) {
+                return new PlaybackQueueDelta[0];
+            }
+            int kept = Math.min(mQueueDeltaCount, MAX_QUEUE_DELTAS);
+            int oldest = mQueueDeltaCount - kept;
+            int start = -1;
+            for (int i = oldest; i < mQueueDeltaCount; i++) {
+                if (mQueueDeltas[i % MAX_QUEUE_DELTAS].previousVersion == version) {
+                    start = i;
+                    break;
+                }
+            }
+            if (start < 0) {
+                return null;
+            }
+            PlaybackQueueDelta [] deltas = new PlaybackQueueDelta[mQueueDeltaCount - start];
+            for (int i = 0; i < deltas.length; i++) {
+                deltas[i] = mQueueDeltas[(start + i) % MAX_QUEUE_DELTAS];
+                if (deltas[i].previousVersion != version) {
+                    // the queue was changed in a way that wasn't kept
+                    return null;
+                }
+                version = deltas[i].version;
+            }
+            return version == current ? deltas : null;
+        }
+    }
+
+    /**
+     * Returns PlaybackQueue.hash() of the play list, so that clients can
+     * check whether it holds a given list without fetching it.
+     */
+    public long getQueueHash() {
+        synchronized (mPlayList) {
+            int modCount = mPlayList.getModCount();
+            if (!mQueueHashValid || mQueueHashModCount != modCount) {
+                mQueueHash = mPlayList.hash();
+                mQueueHashModCount = modCount;
+                mQueueHashValid = true;
+            }
+            return mQueueHash;
+        }
+    }
+
+    private void openCurrent() {
+        synchronized (this) {
+            mCurrentTrack = null;
+
+            if (mPlayList.size() == 0) {
                 return;
             }
+            long start = SystemClock.elapsedRealtime();
+            if (mShuffleMode == SHUFFLE_NORMAL) {
+                // keep the shuffle order in step when the user picks a track
+                mShuffleOrder.jumpTo(mPlayPos);
+            }
             stop(false);
 
-            String id = String.valueOf(mPlayList[mPlayPos]);
-            
-            mCursor = getContentResolver().query(
-                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                    mCursorCols, "_id=" + id , null, null);
-            if (mCursor != null) {
-                mCursor.moveToFirst();
-                open(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI + "/" + id);
-                // go to bookmark if needed
-                if (isPodcast()) {
-                    long bookmark = getBookmark();
-                    // Start playing a little bit before the bookmark,
-                    // so it's easier to get back in to the narrative.
-                    seek(bookmark - 5000);
-                }
+            // if the track is gone from the database, opening it
+            // fails, and the failure handling moves on to the next one
+            long id = mPlayList.get(mPlayPos);
+            mCurrentTrack = getTrack(mPlayPos);
+            openPath(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI + "/" + id);
+            // the query and setting the data source; preparing is counted
+            // by the player
+            mOpenLatency.addSince(start);
+            // go to bookmark if needed
+            if (isPodcast()) {
+                long bookmark = getBookmark();
+                // Start playing a little bit before the bookmark,
+                // so it's easier to get back in to the narrative.
+                seek(bookmark - 5000);
             }
+            setNextTrack();
         }
     }
 
+    /**
+     * Returns the metadata of the track at queue position 'pos', or null.
+     * If it isn't cached, the tracks that follow it in the queue are loaded
+     * along with it, so that moving on to them doesn't need a query.
+     */
+    private TrackMetadata getTrack(int pos) {
+        int count = Math.min(TRACK_PREFETCH_COUNT, mPlayList.size() - pos - 1);
+        long [] prefetch = new long[Math.max(count, 0)];
+        for (int i = 0; i < prefetch.length; i++) {
+            prefetch[i] = mPlayList.get(pos + 1 + i);
+        }
+        return mTrackCache.get(mPlayList.get(pos), prefetch);
+    }
+
     /**
      * Opens the specified file and readies it for playback.
      *
@@ -992,8 +1898,8 @@ public class MediaPlaybackService extends Service {
                 return;
             }
             
-            // if mCursor is null, try to associate path with a database cursor
-            if (mCursor == null) {
+            // if there is no current track, try to associate path with one
+            if (mCurrentTrack == null) {
 
                 ContentResolver resolver = getContentResolver();
                 Uri uri;
@@ -1010,40 +1916,64 @@ public class MediaPlaybackService extends Service {
                 }
                 
                 try {
-                    mCursor = resolver.query(uri, mCursorCols, where, selectionArgs, null);
-                    if  (mCursor != null) {
-                        if (mCursor.getCount() == 0) {
-                            mCursor.close();
-                            mCursor = null;
-                        } else {
-                            mCursor.moveToNext();
-                            ensurePlayListCapacity(1);
-                            mPlayListLen = 1;
-                            mPlayList[0] = mCursor.getLong(IDCOLIDX);
+                    Cursor c = resolver.query(uri, TrackMetadata.COLUMNS, where, selectionArgs, null);
+                    if  (c != null) {
+                        if (c.moveToFirst()) {
+                            mCurrentTrack = new TrackMetadata(c);
+                            mTrackCache.put(mCurrentTrack);
+                            long id = mCurrentTrack.id;
+                            mPlayList.clear();
+                            mPlayList.add(id);
+                            mShuffleOrder.reset(1);
+                            markQueueDirty(0);
+                            mQueueJournal.logReplace(new long [] { id }, 1);
                             mPlayPos = 0;
                         }
+                        c.close();
                     }
                 } catch (UnsupportedOperationException ex) {
                 }
             }
+            openPath(path);
+        }
+    }
+
+    private void openPath(String path) {
+        synchronized (this) {
             mFileToPlay = path;
+            mOpenQuietly = mQuietMode;
             mPlayer.setDataSource(mFileToPlay);
             if (! mPlayer.isInitialized()) {
-                stop(true);
-                if (mOpenFailedCounter++ < 10 &&  mPlayListLen > 1) {
-                    // beware: this ends up being recursive because next() calls open() again.
-                    next(false);
-                }
-                if (! mPlayer.isInitialized() && mOpenFailedCounter != 0) {
-                    // need to make sure we only shows this once
-                    mOpenFailedCounter = 0;
-                    if (!mQuietMode) {
-                        Toast.makeText(this, R.string.playback_failed, Toast.LENGTH_SHORT).show();
-                    }
-                    Log.d(LOGTAG, "Failed to open file for playback");
-                }
-            } else {
+                // Failures while preparing are reported later on, so handle
+                // this one the same way, rather than skipping to the next
+                // track from in here.
+                mMediaplayerHandler.obtainMessage(TRACK_OPEN_FAILED, path).sendToTarget();
+            }
+        }
+    }
+
+    /**
+     * Called when the current file couldn't be opened. Skips to the next
+     * track, unless too many tracks in a row failed. Each skip opens the
+     * next track, whose failure is handled by another call, so this walks
+     * through the queue one message at a time instead of recursing.
+     */
+    private void onOpenFailed(String path) {
+        synchronized (this) {
+            if (!path.equals(mFileToPlay) || mPlayer.isInitialized()) {
+                // playback was stopped or moved on in the meantime
+                return;
+            }
+            stop(true);
+            if (mOpenFailedCounter++ < 10 &&  mPlayList.size() > 1) {
+                next(false);
+            } else if (mOpenFailedCounter != 0) {
+                // need to make sure we only shows this once
                 mOpenFailedCounter = 0;
+                if (!mOpenQuietly) {
+                    Toast.makeText(this, R.string.playback_failed, Toast.LENGTH_SHORT).show();
+                }
+                Log.d(LOGTAG, "Failed to open file for playback");
             }
         }
     }
@@ -1071,42 +2001,13 @@ public class MediaPlaybackService extends Service {
             mMediaplayerHandler.removeMessages(FADEDOWN);
             mMediaplayerHandler.sendEmptyMessage(FADEUP);
 
-            RemoteViews views = new RemoteViews(getPackageName(), R.layout.statusbar);
-            views.setImageViewResource(R.id.icon, R.drawable.stat_notify_musicplayer);
-            if (getAudioId() < 0) {
-                // streaming
-                views.setTextViewText(R.id.trackname, getPath());
-                views.setTextViewText(R.id.artistalbum, null);
-            } else {
-                String artist = getArtistName();
-                views.setTextViewText(R.id.trackname, getTrackName());
-                if (artist == null || artist.equals(MediaStore.UNKNOWN_STRING)) {
-                    artist = getString(R.string.unknown_artist_name);
-                }
-                String album = getAlbumName();
-                if (album == null || album.equals(MediaStore.UNKNOWN_STRING)) {
-                    album = getString(R.string.unknown_album_name);
-                }
-                
-                views.setTextViewText(R.id.artistalbum,
-                        getString(R.string.notification_artist_album, artist, album)
-                        );
-            }
-            
-            Notification status = new Notification();
-            status.contentView = views;
-            status.flags |= Notification.FLAG_ONGOING_EVENT;
-            status.icon = R.drawable.stat_notify_musicplayer;
-            status.contentIntent = PendingIntent.getActivity(this, 0,
-                    new Intent("com.android.music.PLAYBACK_VIEWER")
-                    .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK), 0);
-            startForeground(PLAYBACKSERVICE_STATUS, status);
+            updateNotification();
             if (!mIsSupposedToBePlaying) {
                 mIsSupposedToBePlaying = true;
                 notifyChange(PLAYSTATE_CHANGED);
             }
 
-        } else if (mPlayListLen <= 0) {
+        } else if (mPlayList.size() <= 0) {
             // This is mostly so that if you press 'play' on a bluetooth headset
             // without every having played anything before, it will still play
             // something.
@@ -1114,15 +2015,55 @@ public class MediaPlaybackService extends Service {
         }
     }
     
+    private void updateNotification() {
+        RemoteViews views = new RemoteViews(getPackageName(), R.layout.statusbar);
+        views.setImageViewResource(R.id.icon, R.drawable.stat_notify_musicplayer);
+        TrackMetadata track;
+        String path;
+        long id;
+        synchronized (this) {
+            // this is called before the change is announced
+            track = mCurrentTrack;
+            path = mFileToPlay;
+            id = currentAudioId();
+        }
+        if (id < 0 || track == null) {
+            // streaming
+            views.setTextViewText(R.id.trackname, path);
+            views.setTextViewText(R.id.artistalbum, null);
+        } else {
+            String artist = track.artist;
+            views.setTextViewText(R.id.trackname, track.title);
+            if (artist == null || artist.equals(MediaStore.UNKNOWN_STRING)) {
+                artist = getString(R.string.unknown_artist_name);
+            }
+            String album = track.album;
+            if (album == null || album.equals(MediaStore.UNKNOWN_STRING)) {
+                album = getString(R.string.unknown_album_name);
+            }
+            
+            views.setTextViewText(R.id.artistalbum,
+                    getString(R.string.notification_artist_album, artist, album)
+                    );
+        }
+        
+        Notification status = new Notification();
+        status.contentView = views;
+        status.flags |= Notification.FLAG_ONGOING_EVENT;
+        status.icon = R.drawable.stat_notify_musicplayer;
+        status.contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent("com.android.music.PLAYBACK_VIEWER")
+                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK), 0);
+        startForeground(PLAYBACKSERVICE_STATUS, status);
+    }
+
     private void stop(boolean remove_status_icon) {
         if (mPlayer.isInitialized()) {
             mPlayer.stop();
         }
+        mNextPlayPos = -1;
         mFileToPlay = null;
-        if (mCursor != null) {
-            mCursor.close();
-            mCursor = null;
-        }
+        mCurrentTrack = null;
         if (remove_status_icon) {
             gotoIdleState();
         } else {
@@ -1185,28 +2126,31 @@ public class MediaPlaybackService extends Service {
         the final play order might be 1-2-3-4-5-8-10-6-9-7.
         When hitting 'prev' 8 times while playing track 7 in this example, the
         user will go to tracks 9-6-10-8-5-4-3-2. If the user then hits 'next',
-        a random track will be picked again. If at any time user disables shuffling
-        the next/previous track will be picked in sequential order again.
+        the same order is followed forward again, until the last played track is
+        reached and a random unplayed track is picked. If at any time user disables
+        shuffling the next/previous track will be picked in sequential order again.
      */
 
     public void prev() {
         synchronized (this) {
             if (mShuffleMode == SHUFFLE_NORMAL) {
-                // go to previously-played track and remove it from the history
-                int histsize = mHistory.size();
-                if (histsize == 0) {
+                // go to the previously-played track
+                int pos = mShuffleOrder.prev();
+                if (pos < 0) {
                     // prev is a no-op
                     return;
                 }
-                Integer pos = mHistory.remove(histsize - 1);
-                mPlayPos = pos.intValue();
+                mPlayPos = pos;
             } else {
                 if (mPlayPos > 0) {
                     mPlayPos--;
                 } else {
-                    mPlayPos = mPlayListLen - 1;
+                    mPlayPos = mPlayList.size() - 1;
                 }
             }
+            if (mIsSupposedToBePlaying) {
+                mPlayer.markTrackChange();
+            }
             saveBookmarkIfNeeded();
             stop(false);
             openCurrent();
@@ -1217,51 +2161,20 @@ public class MediaPlaybackService extends Service {
 
     public void next(boolean force) {
         synchronized (this) {
-            if (mPlayListLen <= 0) {
+            if (mPlayList.size() <= 0) {
                 Log.d(LOGTAG, "No play queue");
                 return;
             }
 
             if (mShuffleMode == SHUFFLE_NORMAL) {
                 // Pick random next track from the not-yet-played ones
-                // TODO: make it work right after adding/removing items in the queue.
-
-                // Store the current file in the history, but keep the history at a
-                // reasonable size
-                if (mPlayPos >= 0) {
-                    mHistory.add(mPlayPos);
-                }
-                if (mHistory.size() > MAX_HISTORY_SIZE) {
-                    mHistory.removeElementAt(0);
-                }
-
-                int numTracks = mPlayListLen;
-                int[] tracks = new int[numTracks];
-                for (int i=0;i < numTracks; i++) {
-                    tracks[i] = i;
-                }
-
-                int numHistory = mHistory.size();
-                int numUnplayed = numTracks;
-                for (int i=0;i < numHistory; i++) {
-                    int idx = mHistory.get(i).intValue();
-                    if (idx < numTracks && tracks[idx] >= 0) {
-                        numUnplayed--;
-                        tracks[idx] = -1;
-                    }
-                }
-
-                // 'numUnplayed' now indicates how many tracks have not yet
-                // been played, and 'tracks' contains the indices of those
-                // tracks.
-                if (numUnplayed <=0) {
+                int pos = mShuffleOrder.next(-1);
+                if (pos < 0) {
                     // everything's already been played
                     if (mRepeatMode == REPEAT_ALL || force) {
-                        //pick from full set
-                        numUnplayed = numTracks;
-                        for (int i=0;i < numTracks; i++) {
-                            tracks[i] = i;
-                        }
+                        // start over, but not with the track that just played
+                        mShuffleOrder.reset(mPlayList.size());
+                        pos = mShuffleOrder.next(mPlayPos);
                     } else {
                         // all done
                         gotoIdleState();
@@ -1272,22 +2185,20 @@ public class MediaPlaybackService extends Service {
                         return;
                     }
                 }
-                int skip = mRand.nextInt(numUnplayed);
-                int cnt = -1;
-                while (true) {
-                    while (tracks[++cnt] < 0)
-                        ;
-                    skip--;
-                    if (skip < 0) {
-                        break;
-                    }
-                }
-                mPlayPos = cnt;
+                mPlayPos = pos;
             } else if (mShuffleMode == SHUFFLE_AUTO) {
                 doAutoShuffleUpdate();
+                if (mPlayPos + 1 >= mPlayList.size()) {
+                    // nothing was picked in time, which only happens if
+                    // the library went away
+                    gotoIdleState();
+                    mIsSupposedToBePlaying = false;
+                    notifyChange(PLAYSTATE_CHANGED);
+                    return;
+                }
                 mPlayPos++;
             } else {
-                if (mPlayPos >= mPlayListLen - 1) {
+                if (mPlayPos >= mPlayList.size() - 1) {
                     // we're at the end of the list
                     if (mRepeatMode == REPEAT_NONE && !force) {
                         // all done
@@ -1302,6 +2213,9 @@ public class MediaPlaybackService extends Service {
                     mPlayPos++;
                 }
             }
+            if (mIsSupposedToBePlaying) {
+                mPlayer.markTrackChange();
+            }
             saveBookmarkIfNeeded();
             stop(false);
             openCurrent();
@@ -1309,12 +2223,94 @@ public class MediaPlaybackService extends Service {
             notifyChange(META_CHANGED);
         }
     }
+
+    /**
+     * Returns the queue position that next(false) would move to, without
+     * moving there, or -1 if there's none or it can't be known in advance.
+     */
+    private int getNextPosition() {
+        if (mRepeatMode == REPEAT_CURRENT) {
+            // handled by restarting the current player
+            return -1;
+        }
+        if (mShuffleMode == SHUFFLE_NORMAL) {
+            return mShuffleOrder.peek();
+        } else if (mShuffleMode == SHUFFLE_AUTO) {
+            return mPlayPos + 1 < mPlayList.size() ? mPlayPos + 1 : -1;
+        } else if (mPlayPos + 1 < mPlayList.size()) {
+            return mPlayPos + 1;
+        }
+        return mRepeatMode == REPEAT_ALL ? 0 : -1;
+    }
+
+    /**
+     * Prepares the track that will follow the current one, so that playback
+     * can continue without a gap. This needs to be called again whenever
+     * the queue, or the shuffle or repeat mode changes.
+     */
+    private void setNextTrack() {
+        mNextPlayPos = -1;
+        if (mPlayer.isInitialized() && mPlayPos >= 0 && !isPodcast()) {
+            // podcasts need their bookmarks saved and restored on the way
+            mNextPlayPos = getNextPosition();
+        }
+        if (mNextPlayPos >= 0) {
+            TrackMetadata next = getTrack(mNextPlayPos);
+            if (next == null || next.isPodcast) {
+                // let openCurrent() open it, which seeks to the bookmark;
+                // a track that's gone fails there and is skipped
+                mNextPlayPos = -1;
+            }
+        }
+        if (mNextPlayPos >= 0) {
+            mPlayer.setNextDataSource(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI + "/"
+                    + mPlayList.get(mNextPlayPos));
+        } else {
+            mPlayer.setNextDataSource(null);
+        }
+    }
+
+    /**
+     * Called when the player moved on to the track prepared by setNextTrack().
+     * @param path the track it's playing now
+     */
+    private void onTrackWentToNext(String path) {
+        synchronized (this) {
+            if (mNextPlayPos < 0 || mNextPlayPos >= mPlayList.size()
+                    || !path.equals(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI + "/"
+                            + mPlayList.get(mNextPlayPos))) {
+                // the queue changed while the message was on its way, so
+                // it's no longer clear where that track is; play what's there
+                next(false);
+                return;
+            }
+            mPlayPos = mNextPlayPos;
+            if (mShuffleMode == SHUFFLE_NORMAL) {
+                // moves on to the track that was peeked at
+                mShuffleOrder.next(-1);
+            }
+            mCurrentTrack = getTrack(mPlayPos);
+            mFileToPlay = path;
+            if (mShuffleMode == SHUFFLE_AUTO) {
+                doAutoShuffleUpdate();
+            }
+            updateNotification();
+            notifyChange(META_CHANGED);
+            setNextTrack();
+        }
+    }
     
     private void gotoIdleState() {
+        // nothing is going to start, so there's no gap to measure
+        mPlayer.clearTrackChange();
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         Message msg = mDelayedStopHandler.obtainMessage();
         mDelayedStopHandler.sendMessageDelayed(msg, IDLE_DELAY);
         stopForeground(true);
+        // the process may well be killed while idle, so don't hold
+        // on to unsaved state (like the play position) any longer
+        requestSave(false);
+        expediteSave();
     }
     
     private void saveBookmarkIfNeeded() {
@@ -1337,14 +2333,69 @@ public class MediaPlaybackService extends Service {
                 // write 'pos' to the bookmark field
                 ContentValues values = new ContentValues();
                 values.put(MediaStore.Audio.Media.BOOKMARK, pos);
+                long id = mCurrentTrack.id;
                 Uri uri = ContentUris.withAppendedId(
-                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, mCursor.getLong(IDCOLIDX));
-                getContentResolver().update(uri, values, null, null);
+                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, id);
+                // so mMediaObserver doesn't drop every cached track for it
+                synchronized (mOwnMediaChanges) {
+                    mOwnMediaChanges.put(id, mOwnMediaChanges.get(id, 0) + 1);
+                    mOwnMediaChangeCount++;
+                }
+                boolean updated = false;
+                try {
+                    updated = getContentResolver().update(uri, values, null, null) > 0;
+                } finally {
+                    if (!updated) {
+                        consumeOwnMediaChange(id);
+                    }
+                }
+                mTrackCache.remove(id);
             }
         } catch (SQLiteException ex) {
         }
     }
 
+    // Returns whether a change saveBookmarkIfNeeded() made to track 'id' is
+    // still to be reported to mMediaObserver, and counts it as reported. An
+    // 'id' of -1 stands for whichever track it was.
+    private boolean consumeOwnMediaChange(long id) {
+        synchronized (mOwnMediaChanges) {
+            if (mOwnMediaChangeCount == 0) {
+                return false;
+            }
+            if (id >= 0) {
+                int count = mOwnMediaChanges.get(id, 0);
+                if (count == 0) {
+                    return false;
+                }
+                if (count > 1) {
+                    mOwnMediaChanges.put(id, count - 1);
+                } else {
+                    mOwnMediaChanges.remove(id);
+                }
+            }
+            if (--mOwnMediaChangeCount == 0) {
+                // so ids whose changes were counted off as -1 don't linger
+                mOwnMediaChanges.clear();
+            }
+            return true;
+        }
+    }
+
+    // Returns the id of the track 'uri' stands for, or -1 if it isn't the
+    // uri of a single track.
+    private static long trackIdOf(Uri uri) {
+        try {
+            long id = ContentUris.parseId(uri);
+            if (id >= 0 && uri.equals(ContentUris.withAppendedId(
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, id))) {
+                return id;
+            }
+        } catch (NumberFormatException ex) {
+        }
+        return -1;
+    }
+
     // Make sure there are at least 5 items after the currently playing item
     // and no more than 10 items before.
     private void doAutoShuffleUpdate() {
@@ -1356,25 +2407,17 @@ public class MediaPlaybackService extends Service {
             notify = true;
         }
         // add new entries if needed
-        int to_add = 7 - (mPlayListLen - (mPlayPos < 0 ? -1 : mPlayPos));
+        int to_add = 7 - (mPlayList.size() - (mPlayPos < 0 ? -1 : mPlayPos));
         for (int i = 0; i < to_add; i++) {
-            // pick something at random from the list
-
-            int lookback = mHistory.size();
-            int idx = -1;
-            while(true) {
-                idx = mRand.nextInt(mAutoShuffleList.length);
-                if (!wasRecentlyUsed(idx, lookback)) {
-                    break;
-                }
-                lookback /= 2;
-            }
-            mHistory.add(idx);
-            if (mHistory.size() > MAX_HISTORY_SIZE) {
-                mHistory.remove(0);
-            }
-            ensurePlayListCapacity(mPlayListLen + 1);
-            mPlayList[mPlayListLen++] = mAutoShuffleList[idx];
+            // the picks are made in the background; if none is ready
+            // yet, the queue is topped up when they are
+            long id = mAutoShuffle.take();
+            if (id < 0) {
+                break;
+            }
+            long [] list = new long [] { id };
+            mQueueJournal.logInsert(list, mPlayList.size());
+            insertIntoPlayList(list, mPlayList.size());
             notify = true;
         }
         if (notify) {
@@ -1382,28 +2425,42 @@ public class MediaPlaybackService extends Service {
         }
     }
 
-    // check that the specified idx is not in the history (but only look at at
-    // most lookbacksize entries in the history)
-    private boolean wasRecentlyUsed(int idx, int lookbacksize) {
-
-        // early exit to prevent infinite loops in case idx == mPlayPos
-        if (lookbacksize == 0) {
-            return false;
-        }
-
-        int histsize = mHistory.size();
-        if (histsize < lookbacksize) {
-            Log.d(LOGTAG, "lookback too big");
-            lookbacksize = histsize;
-        }
-        int maxidx = histsize - 1;
-        for (int i = 0; i < lookbacksize; i++) {
-            long entry = mHistory.get(maxidx - i);
-            if (entry == idx) {
-                return true;
+    /**
+     * Called on the main thread when party shuffle has picked more tracks.
+     */
+    private void onAutoShuffleReady() {
+        synchronized (this) {
+            if (mAutoShuffleStarting) {
+                mAutoShuffleStarting = false;
+                if (mAutoShuffle.getTrackCount() <= 0) {
+                    // nothing to shuffle; stay in the current mode
+                    return;
+                }
+                mShuffleMode = SHUFFLE_AUTO;
+                mStateVersion.incrementAndGet();
+                mShuffleOrder.reset(0);
+                clearPlayList();
+                mPlayPos = -1;
+                doAutoShuffleUpdate();
+                if (mPlayList.size() == 0) {
+                    // the tracks went away while picking
+                    mShuffleMode = SHUFFLE_NONE;
+                    setNextTrack();
+                } else {
+                    mPlayPos = 0;
+                    openCurrent();
+                    play();
+                    notifyChange(META_CHANGED);
+                }
+                requestSave(false);
+            } else {
+                if (mShuffleMode == SHUFFLE_AUTO) {
+                    doAutoShuffleUpdate();
+                }
+                return;
             }
         }
-        return false;
+        dispatchCallbacks(CALLBACK_STATE);
     }
 
     // A simple variation of Random that makes sure that the
@@ -1422,33 +2479,6 @@ public class MediaPlaybackService extends Service {
         }
     };
 
-    private boolean makeAutoShuffleList() {
-        ContentResolver res = getContentResolver();
-        Cursor c = null;
-        try {
-            c = res.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                    new String[] {MediaStore.Audio.Media._ID}, MediaStore.Audio.Media.IS_MUSIC + "=1",
-                    null, null);
-            if (c == null || c.getCount() == 0) {
-                return false;
-            }
-            int len = c.getCount();
-            long [] list = new long[len];
-            for (int i = 0; i < len; i++) {
-                c.moveToNext();
-                list[i] = c.getLong(0);
-            }
-            mAutoShuffleList = list;
-            return true;
-        } catch (RuntimeException ex) {
-        } finally {
-            if (c != null) {
-                c.close();
-            }
-        }
-        return false;
-    }
-    
     /**
      * Removes the range of tracks specified from the play list. If a file within the range is
      * the file currently being played, playback will move to the next file after the
@@ -1469,7 +2499,8 @@ public class MediaPlaybackService extends Service {
         synchronized (this) {
             if (last < first) return 0;
             if (first < 0) first = 0;
-            if (last >= mPlayListLen) last = mPlayListLen - 1;
+            if (last >= mPlayList.size()) last = mPlayList.size() - 1;
+            if (last < first) return 0;
 
             boolean gotonext = false;
             if (first <= mPlayPos && mPlayPos <= last) {
@@ -1478,36 +2509,35 @@ public class MediaPlaybackService extends Service {
             } else if (mPlayPos > last) {
                 mPlayPos -= (last - first + 1);
             }
-            int num = mPlayListLen - last - 1;
-            for (int i = 0; i < num; i++) {
-                mPlayList[first + i] = mPlayList[last + 1 + i];
-            }
-            mPlayListLen -= last - first + 1;
+            mQueueJournal.logRemove(first, last);
+            removeFromPlayList(first, last);
             
             if (gotonext) {
-                if (mPlayListLen == 0) {
-                    stop(true);
-                    mPlayPos = -1;
-                    if (mCursor != null) {
-                        mCursor.close();
-                        mCursor = null;
-                    }
-                } else {
-                    if (mPlayPos >= mPlayListLen) {
-                        mPlayPos = 0;
-                    }
-                    boolean wasPlaying = isPlaying();
-                    stop(false);
-                    openCurrent();
-                    if (wasPlaying) {
-                        play();
-                    }
-                }
-                notifyChange(META_CHANGED);
+                openAfterRemoval();
             }
             return last - first + 1;
         }
     }
+
+    // Moves on to the track at mPlayPos after the current one was removed.
+    private void openAfterRemoval() {
+        if (mPlayList.size() == 0) {
+            stop(true);
+            mPlayPos = -1;
+            mCurrentTrack = null;
+        } else {
+            if (mPlayPos >= mPlayList.size()) {
+                mPlayPos = 0;
+            }
+            boolean wasPlaying = isPlaying();
+            stop(false);
+            openCurrent();
+            if (wasPlaying) {
+                play();
+            }
+        }
+        notifyChange(META_CHANGED);
+    }
     
     /**
      * Removes all instances of the track with the given id
@@ -1516,43 +2546,106 @@ public class MediaPlaybackService extends Service {
      * @return how many instances of the track were removed
      */
     public int removeTrack(long id) {
-        int numremoved = 0;
+        return removeTracks(new long [] { id });
+    }
+
+    /**
+     * Removes all instances of the tracks with the given ids from the
+     * playlist, in a single pass over it. If the file currently being
+     * played is removed, playback moves to the next file that is left.
+     * @param ids The ids to be removed
+     * @return how many tracks were removed
+     */
+    public int removeTracks(long [] ids) {
+        int numremoved;
         synchronized (this) {
-            for (int i = 0; i < mPlayListLen; i++) {
-                if (mPlayList[i] == id) {
-                    numremoved += removeTracksInternal(i, i);
-                    i--;
+            LongHashSet set = new LongHashSet();
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] >= 0) {
+                    set.add(ids[i]);
                 }
             }
+            if (set.size() == 0) {
+                return 0;
+            }
+            // without going through the queue if none of them is there
+            boolean queued = false;
+            for (int i = 0; i < ids.length && !queued; i++) {
+                queued = mPlayList.contains(ids[i]);
+            }
+            if (!queued) {
+                return 0;
+            }
+            int [] removed;
+            synchronized (mPlayList) {
+                long version = getQueueVersion();
+                removed = mPlayList.removeAll(set);
+                if (removed.length > 0 && ids.length <= MAX_QUEUE_SLICE) {
+                    recordQueueDelta(version, PlaybackQueueDelta.REMOVE_IDS, 0, 0, ids);
+                }
+            }
+            numremoved = removed.length;
+            if (numremoved == 0) {
+                return 0;
+            }
+            markQueueDirty(removed[0]);
+            mShuffleOrder.remove(removed);
+            // log the runs of removed tracks from the last one back, so
+            // each record still refers to the positions it had
+            int last = numremoved - 1;
+            while (last >= 0) {
+                int first = last;
+                while (first > 0 && removed[first - 1] == removed[first] - 1) {
+                    first--;
+                }
+                mQueueJournal.logRemove(removed[first], removed[last]);
+                last = first - 1;
+            }
+
+            int k = Arrays.binarySearch(removed, mPlayPos);
+            if (k >= 0) {
+                // the tracks after it moved down to where the first
+                // removed one of the run it was in used to be
+                while (k > 0 && removed[k - 1] == removed[k] - 1) {
+                    k--;
+                }
+                mPlayPos = removed[k] - k;
+                openAfterRemoval();
+            } else if (mPlayPos >= 0) {
+                mPlayPos -= -k - 1;
+            }
         }
-        if (numremoved > 0) {
-            notifyChange(QUEUE_CHANGED);
-        }
+        notifyChange(QUEUE_CHANGED);
         return numremoved;
     }
     
     public void setShuffleMode(int shufflemode) {
         synchronized(this) {
-            if (mShuffleMode == shufflemode && mPlayListLen > 0) {
+            if (shufflemode != SHUFFLE_AUTO) {
+                // don't switch to party shuffle after all
+                mAutoShuffleStarting = false;
+            }
+            if (mShuffleMode == shufflemode && mPlayList.size() > 0) {
+                return;
+            }
+            if (shufflemode == SHUFFLE_AUTO) {
+                // The queue is replaced once the first tracks are picked,
+                // which happens in the background; see onAutoShuffleReady().
+                mAutoShuffleStarting = true;
+                mAutoShuffle.requestRefill();
                 return;
             }
             mShuffleMode = shufflemode;
-            if (mShuffleMode == SHUFFLE_AUTO) {
-                if (makeAutoShuffleList()) {
-                    mPlayListLen = 0;
-                    doAutoShuffleUpdate();
-                    mPlayPos = 0;
-                    openCurrent();
-                    play();
-                    notifyChange(META_CHANGED);
-                    return;
-                } else {
-                    // failed to build a list of files to shuffle
-                    mShuffleMode = SHUFFLE_NONE;
-                }
+            mStateVersion.incrementAndGet();
+            // start a new pass, with the current track as the first one played
+            mShuffleOrder.reset(mPlayList.size());
+            if (mShuffleMode == SHUFFLE_NORMAL) {
+                mShuffleOrder.jumpTo(mPlayPos);
             }
-            saveQueue(false);
+            setNextTrack();
+            requestSave(false);
         }
+        dispatchCallbacks(CALLBACK_STATE);
     }
     public int getShuffleMode() {
         return mShuffleMode;
@@ -1561,8 +2654,11 @@ public class MediaPlaybackService extends Service {
     public void setRepeatMode(int repeatmode) {
         synchronized(this) {
             mRepeatMode = repeatmode;
-            saveQueue(false);
+            mStateVersion.incrementAndGet();
+            setNextTrack();
+            requestSave(false);
         }
+        dispatchCallbacks(CALLBACK_STATE);
     }
     public int getRepeatMode() {
         return mRepeatMode;
@@ -1572,12 +2668,82 @@ public class MediaPlaybackService extends Service {
         return mMediaMountedCount;
     }
 
+    /**
+     * Returns the current state in one go, without taking the service lock.
+     * Everything but the position and duration comes from one NowPlaying,
+     * so it all belongs to the same version. The position and duration are
+     * read from the player as it is now, though, so while a track change is
+     * being published they can already be those of the next track.
+     */
+    public PlaybackSnapshot getSnapshot() {
+        PlaybackSnapshot snapshot = new PlaybackSnapshot();
+        // doesn't need the service lock; the player has its own
+        NowPlaying now = mNowPlaying;
+        snapshot.version = now.version;
+        snapshot.audioId = now.audioId;
+        snapshot.queuePosition = now.queuePosition;
+        snapshot.queueLength = now.queueLength;
+        snapshot.playing = now.playing;
+        snapshot.position = position();
+        snapshot.timestamp = SystemClock.elapsedRealtime();
+        snapshot.rate = now.playing && mPlayer.isPrepared() ? 1.0f : 0.0f;
+        snapshot.duration = duration();
+        snapshot.path = now.path;
+        if (now.track != null) {
+            snapshot.trackName = now.track.title;
+            snapshot.artistName = now.track.artist;
+            snapshot.artistId = now.track.artistId;
+            snapshot.albumName = now.track.album;
+            snapshot.albumId = now.track.albumId;
+        }
+        snapshot.shuffleMode = now.shuffleMode;
+        snapshot.repeatMode = now.repeatMode;
+        return snapshot;
+    }
+
+    /**
+     * The state the read-only calls report, as of the last change that was
+     * announced. Clients poll these calls, from widgets and the lock screen
+     * among others, so they read this instead of taking the service lock,
+     * which can be held while a track is opened or the queue is edited.
+     * It is replaced as a whole, never changed.
+     */
+    private static final class NowPlaying {
+        long version;
+        int queuePosition = -1;
+        int queueLength;
+        long audioId = -1;
+        String path;
+        TrackMetadata track;
+        boolean playing;
+        int shuffleMode = SHUFFLE_NONE;
+        int repeatMode = REPEAT_NONE;
+    }
+
+    // Publishes the current state to the read-only calls. Every change
+    // clients are told about goes through here.
+    private void publishState() {
+        NowPlaying now = new NowPlaying();
+        synchronized (this) {
+            now.version = mStateVersion.get();
+            now.queuePosition = mPlayPos;
+            now.queueLength = mPlayList.size();
+            now.audioId = currentAudioId();
+            now.path = mFileToPlay;
+            now.track = mCurrentTrack;
+            now.playing = mIsSupposedToBePlaying;
+            now.shuffleMode = mShuffleMode;
+            now.repeatMode = mRepeatMode;
+            mNowPlaying = now;
+        }
+    }
+
     /**
      * Returns the path of the currently playing file, or null if
      * no file is currently playing.
      */
     public String getPath() {
-        return mFileToPlay;
+        return mNowPlaying.path;
     }
     
     /**
@@ -1585,9 +2751,14 @@ public class MediaPlaybackService extends Service {
      * no file is currently playing.
      */
     public long getAudioId() {
+        return mNowPlaying.audioId;
+    }
+
+    // Like getAudioId(), but up to date halfway through a change.
+    private long currentAudioId() {
         synchronized (this) {
             if (mPlayPos >= 0 && mPlayer.isInitialized()) {
-                return mPlayList[mPlayPos];
+                return mPlayList.get(mPlayPos);
             }
         }
         return -1;
@@ -1598,9 +2769,7 @@ public class MediaPlaybackService extends Service {
      * @return the position in the queue
      */
     public int getQueuePosition() {
-        synchronized(this) {
-            return mPlayPos;
-        }
+        return mNowPlaying.queuePosition;
     }
     
     /**
@@ -1621,65 +2790,45 @@ public class MediaPlaybackService extends Service {
     }
 
     public String getArtistName() {
-        synchronized(this) {
-            if (mCursor == null) {
-                return null;
-            }
-            return mCursor.getString(mCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST));
-        }
+        TrackMetadata track = mNowPlaying.track;
+        return track != null ? track.artist : null;
     }
     
     public long getArtistId() {
-        synchronized (this) {
-            if (mCursor == null) {
-                return -1;
-            }
-            return mCursor.getLong(mCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST_ID));
-        }
+        TrackMetadata track = mNowPlaying.track;
+        return track != null ? track.artistId : -1;
     }
 
     public String getAlbumName() {
-        synchronized (this) {
-            if (mCursor == null) {
-                return null;
-            }
-            return mCursor.getString(mCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM));
-        }
+        TrackMetadata track = mNowPlaying.track;
+        return track != null ? track.album : null;
     }
 
     public long getAlbumId() {
-        synchronized (this) {
-            if (mCursor == null) {
-                return -1;
-            }
-            return mCursor.getLong(mCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_ID));
-        }
+        TrackMetadata track = mNowPlaying.track;
+        return track != null ? track.albumId : -1;
     }
 
     public String getTrackName() {
-        synchronized (this) {
-            if (mCursor == null) {
-                return null;
-            }
-            return mCursor.getString(mCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE));
-        }
+        TrackMetadata track = mNowPlaying.track;
+        return track != null ? track.title : null;
     }
 
     private boolean isPodcast() {
         synchronized (this) {
-            if (mCursor == null) {
+            if (mCurrentTrack == null) {
                 return false;
             }
-            return (mCursor.getInt(PODCASTCOLIDX) > 0);
+            return mCurrentTrack.isPodcast;
         }
     }
     
     private long getBookmark() {
         synchronized (this) {
-            if (mCursor == null) {
+            if (mCurrentTrack == null) {
                 return 0;
             }
-            return mCursor.getLong(BOOKMARKCOLIDX);
+            return mCurrentTrack.bookmark;
         }
     }
     
@@ -1712,8 +2861,12 @@ public class MediaPlaybackService extends Service {
     public long seek(long pos) {
         if (mPlayer.isInitialized()) {
             if (pos < 0) pos = 0;
-            if (pos > mPlayer.duration()) pos = mPlayer.duration();
-            return mPlayer.seek(pos);
+            // the duration isn't known yet while the file is being prepared
+            long duration = mPlayer.duration();
+            if (duration >= 0 && pos > duration) pos = duration;
+            pos = mPlayer.seek(pos);
+            dispatchCallbacks(CALLBACK_POSITION);
+            return pos;
         }
         return -1;
     }
@@ -1721,53 +2874,194 @@ public class MediaPlaybackService extends Service {
     /**
      * Provides a unified interface for dealing with midi files and
      * other media files.
+     *
+     * Files are prepared asynchronously, so opening one never blocks the
+     * caller. While a file is being prepared, start() and seek() are
+     * remembered and carried out once it's ready, and position() and
+     * duration() report what is known so far instead of waiting for it.
      */
     private class MultiPlayer {
-        private MediaPlayer mMediaPlayer = new MediaPlayer();
+        // the states of mMediaPlayer
+        private static final int IDLE = 0;
+        private static final int PREPARING = 1;
+        private static final int PREPARED = 2;
+
+        // replaced on completion by mNextMediaPlayer, with the MultiPlayer
+        // locked; anything that calls it must hold the lock as well
+        private volatile MediaPlayer mMediaPlayer = new MediaPlayer();
+        private String mPath;
+        private volatile int mState = IDLE;
+        // whether to start playback as soon as mMediaPlayer is prepared
+        private boolean mStartWhenPrepared;
+        // where to seek to once mMediaPlayer is prepared, or -1
+        private volatile long mPendingSeek = -1;
+        private volatile long mDuration = -1;
+        // prepared to take over when mMediaPlayer completes, or null
+        private MediaPlayer mNextMediaPlayer;
+        private String mNextPath;
+        private boolean mNextPrepared;
+        // whether mMediaPlayer will start mNextMediaPlayer by itself
+        private boolean mNextLinked;
         private Handler mHandler;
-        private boolean mIsInitialized = false;
+        private float mVolume = 1.0f;
+        // when the track that's about to start was asked for, or when the
+        // one before it ended, or -1
+        private long mChangeTime = -1;
+        private long mPrepareStart;
 
         public MultiPlayer() {
             mMediaPlayer.setWakeMode(MediaPlaybackService.this, PowerManager.PARTIAL_WAKE_LOCK);
         }
 
+        /**
+         * Starts preparing the file at 'path'. If that fails right away,
+         * isInitialized() returns false afterwards; if it fails later on,
+         * TRACK_OPEN_FAILED is sent to the handler.
+         */
         public void setDataSource(String path) {
+            setNextDataSource(null);
+            synchronized (this) {
+                mStartWhenPrepared = false;
+                mPendingSeek = -1;
+                mDuration = -1;
+                mPath = path;
+                mPrepareStart = SystemClock.elapsedRealtime();
+                if (open(mMediaPlayer, path, preparedListener)) {
+                    mState = PREPARING;
+                } else {
+                    mState = IDLE;
+                }
+            }
+        }
+
+        private boolean open(MediaPlayer player, String path,
+                MediaPlayer.OnPreparedListener preparedListener) {
             try {
-                mMediaPlayer.reset();
-                mMediaPlayer.setOnPreparedListener(null);
+                player.reset();
+                player.setOnPreparedListener(preparedListener);
                 if (path.startsWith("content://")) {
-                    mMediaPlayer.setDataSource(MediaPlaybackService.this, Uri.parse(path));
+                    player.setDataSource(MediaPlaybackService.this, Uri.parse(path));
                 } else {
-                    mMediaPlayer.setDataSource(path);
+                    player.setDataSource(path);
                 }
-                mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-                mMediaPlayer.prepare();
+                player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+                player.setOnCompletionListener(listener);
+                player.setOnErrorListener(errorListener);
+                player.prepareAsync();
             } catch (IOException ex) {
                 // TODO: notify the user why the file couldn't be opened
-                mIsInitialized = false;
-                return;
+                return false;
             } catch (IllegalArgumentException ex) {
                 // TODO: notify the user why the file couldn't be opened
-                mIsInitialized = false;
-                return;
+                return false;
+            } catch (IllegalStateException ex) {
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Prepares the file to play once the current one completes, so it
+         * can follow without a gap. Passing null drops the prepared file.
+         */
+        public void setNextDataSource(String path) {
+            synchronized (this) {
+                if (path != null && path.equals(mNextPath)) {
+                    // already prepared or being prepared
+                    return;
+                }
+                if (mNextMediaPlayer != null) {
+                    if (mNextLinked) {
+                        MediaPlayerCompat.setNextMediaPlayer(mMediaPlayer, null);
+                    }
+                    mNextMediaPlayer.release();
+                    mNextMediaPlayer = null;
+                    mNextPath = null;
+                    mNextPrepared = false;
+                    mNextLinked = false;
+                }
+                if (path == null || mState == IDLE) {
+                    return;
+                }
+                MediaPlayer player = new MediaPlayer();
+                player.setWakeMode(MediaPlaybackService.this, PowerManager.PARTIAL_WAKE_LOCK);
+                if (!open(player, path, nextPreparedListener)) {
+                    player.release();
+                    return;
+                }
+                player.setVolume(mVolume, mVolume);
+                mNextMediaPlayer = player;
+                mNextPath = path;
+            }
+        }
+
+        // Lets mMediaPlayer start the next player by itself, once both
+        // are prepared. Must be called with the MultiPlayer locked.
+        private void linkNext() {
+            if (mState == PREPARED && mNextPrepared && !mNextLinked) {
+                mNextLinked = MediaPlayerCompat.setNextMediaPlayer(mMediaPlayer, mNextMediaPlayer);
             }
-            mMediaPlayer.setOnCompletionListener(listener);
-            mMediaPlayer.setOnErrorListener(errorListener);
-            mIsInitialized = true;
         }
         
+        /**
+         * Returns whether a file is loaded, even if it isn't prepared yet.
+         */
         public boolean isInitialized() {
-            return mIsInitialized;
+            return mState != IDLE;
+        }
+
+        public boolean isPrepared() {
+            return mState == PREPARED;
         }
 
         public void start() {
             MusicUtils.debugLog(new Exception("MultiPlayer.start called"));
-            mMediaPlayer.start();
+            synchronized (this) {
+                if (mState == PREPARING) {
+                    mStartWhenPrepared = true;
+                    return;
+                }
+                mMediaPlayer.start();
+                onStarted();
+            }
+        }
+
+        /**
+         * Notes that playback is moving on to another track, so the time
+         * until it starts is counted as a gap. If a change is already
+         * underway, it counts from that one.
+         */
+        public void markTrackChange() {
+            synchronized (this) {
+                if (mChangeTime < 0) {
+                    mChangeTime = SystemClock.elapsedRealtime();
+                }
+            }
+        }
+
+        public void clearTrackChange() {
+            synchronized (this) {
+                mChangeTime = -1;
+            }
+        }
+
+        // Must be called with the MultiPlayer locked.
+        private void onStarted() {
+            if (mChangeTime >= 0) {
+                mGapLatency.addSince(mChangeTime);
+                mChangeTime = -1;
+            }
         }
 
         public void stop() {
-            mMediaPlayer.reset();
-            mIsInitialized = false;
+            setNextDataSource(null);
+            synchronized (this) {
+                mMediaPlayer.reset();
+                mState = IDLE;
+                mStartWhenPrepared = false;
+                mPendingSeek = -1;
+                mDuration = -1;
+            }
         }
 
         /**
@@ -1775,19 +3069,90 @@ public class MediaPlaybackService extends Service {
          */
         public void release() {
             stop();
-            mMediaPlayer.release();
+            synchronized (this) {
+                mMediaPlayer.release();
+            }
         }
         
         public void pause() {
-            mMediaPlayer.pause();
+            synchronized (this) {
+                mChangeTime = -1;
+                if (mState == PREPARING) {
+                    mStartWhenPrepared = false;
+                    return;
+                }
+                mMediaPlayer.pause();
+            }
         }
         
         public void setHandler(Handler handler) {
             mHandler = handler;
         }
 
+        MediaPlayer.OnPreparedListener preparedListener = new MediaPlayer.OnPreparedListener() {
+            public void onPrepared(MediaPlayer mp) {
+                synchronized (MultiPlayer.this) {
+                    if (mp != mMediaPlayer || mState != PREPARING) {
+                        // the file was replaced while it was being prepared
+                        return;
+                    }
+                    mState = PREPARED;
+                    mPrepareLatency.addSince(mPrepareStart);
+                    mDuration = mp.getDuration();
+                    long seekpos = mPendingSeek;
+                    if (seekpos > 0 && seekpos < mDuration) {
+                        mp.seekTo((int) seekpos);
+                    }
+                    mPendingSeek = -1;
+                    if (mStartWhenPrepared) {
+                        mStartWhenPrepared = false;
+                        mp.start();
+                        onStarted();
+                    }
+                    linkNext();
+                }
+                mHandler.sendEmptyMessage(TRACK_PREPARED);
+            }
+        };
+
+        MediaPlayer.OnPreparedListener nextPreparedListener = new MediaPlayer.OnPreparedListener() {
+            public void onPrepared(MediaPlayer mp) {
+                synchronized (MultiPlayer.this) {
+                    if (mp != mNextMediaPlayer) {
+                        return;
+                    }
+                    mNextPrepared = true;
+                    linkNext();
+                }
+            }
+        };
+
         MediaPlayer.OnCompletionListener listener = new MediaPlayer.OnCompletionListener() {
             public void onCompletion(MediaPlayer mp) {
+                synchronized (MultiPlayer.this) {
+                    // the next track, whichever it is, follows from here
+                    mChangeTime = SystemClock.elapsedRealtime();
+                    if (mp == mMediaPlayer && mNextMediaPlayer != null && mNextPrepared) {
+                        // hand over to the prepared player, starting it
+                        // right away if the platform didn't already
+                        mMediaPlayer.release();
+                        mMediaPlayer = mNextMediaPlayer;
+                        mPath = mNextPath;
+                        mDuration = mMediaPlayer.getDuration();
+                        if (!mNextLinked) {
+                            mMediaPlayer.start();
+                        }
+                        // a linked player started before we were told,
+                        // which counts as no gap
+                        onStarted();
+                        mHandler.obtainMessage(TRACK_WENT_TO_NEXT, mNextPath).sendToTarget();
+                        mNextMediaPlayer = null;
+                        mNextPath = null;
+                        mNextPrepared = false;
+                        mNextLinked = false;
+                        return;
+                    }
+                }
                 // Acquire a temporary wakelock, since when we return from
                 // this callback the MediaPlayer will release its wakelock
                 // and allow the device to go to sleep.
@@ -1801,40 +3166,91 @@ public class MediaPlaybackService extends Service {
 
         MediaPlayer.OnErrorListener errorListener = new MediaPlayer.OnErrorListener() {
             public boolean onError(MediaPlayer mp, int what, int extra) {
+                if (mp == mNextMediaPlayer) {
+                    // just give up on gapless playback for this track
+                    Log.d("MultiPlayer", "Error in next player: " + what + "," + extra);
+                    setNextDataSource(null);
+                    return true;
+                }
                 switch (what) {
                 case MediaPlayer.MEDIA_ERROR_SERVER_DIED:
-                    mIsInitialized = false;
-                    mMediaPlayer.release();
-                    // Creating a new MediaPlayer and settings its wakemode does not
-                    // require the media service, so it's OK to do this now, while the
-                    // service is still being restarted
-                    mMediaPlayer = new MediaPlayer(); 
-                    mMediaPlayer.setWakeMode(MediaPlaybackService.this, PowerManager.PARTIAL_WAKE_LOCK);
+                    synchronized (MultiPlayer.this) {
+                        mState = IDLE;
+                        setNextDataSource(null);
+                        mMediaPlayer.release();
+                        // Creating a new MediaPlayer and settings its wakemode does not
+                        // require the media service, so it's OK to do this now, while the
+                        // service is still being restarted
+                        mMediaPlayer = new MediaPlayer(); 
+                        mMediaPlayer.setWakeMode(MediaPlaybackService.this, PowerManager.PARTIAL_WAKE_LOCK);
+                    }
                     mHandler.sendMessageDelayed(mHandler.obtainMessage(SERVER_DIED), 2000);
                     return true;
                 default:
                     Log.d("MultiPlayer", "Error: " + what + "," + extra);
+                    synchronized (MultiPlayer.this) {
+                        if (mp == mMediaPlayer && mState == PREPARING) {
+                            // the file couldn't be prepared
+                            mMediaPlayer.reset();
+                            mState = IDLE;
+                            mHandler.obtainMessage(TRACK_OPEN_FAILED, mPath).sendToTarget();
+                            return true;
+                        }
+                    }
                     break;
                 }
                 return false;
            }
         };
 
+        /**
+         * Returns the duration of the file, or -1 while it's being prepared.
+         */
         public long duration() {
-            return mMediaPlayer.getDuration();
+            synchronized (this) {
+                return mState == PREPARED ? mDuration : -1;
+            }
         }
 
+        /**
+         * Returns the playback position. While the file is being prepared,
+         * that's where playback will start.
+         */
         public long position() {
-            return mMediaPlayer.getCurrentPosition();
+            // onCompletion() can release mMediaPlayer and put the next
+            // player in its place meanwhile
+            synchronized (this) {
+                if (mState != PREPARED) {
+                    long seekpos = mPendingSeek;
+                    return seekpos > 0 ? seekpos : 0;
+                }
+                return mMediaPlayer.getCurrentPosition();
+            }
         }
 
+        /**
+         * Seeks to 'whereto'. While the file is being prepared, the seek
+         * is carried out once it's ready, unless it's past the end.
+         */
         public long seek(long whereto) {
-            mMediaPlayer.seekTo((int) whereto);
+            synchronized (this) {
+                if (mState == PREPARING) {
+                    mPendingSeek = whereto;
+                    return whereto;
+                }
+                mMediaPlayer.seekTo((int) whereto);
+            }
             return whereto;
         }
 
         public void setVolume(float vol) {
-            mMediaPlayer.setVolume(vol, vol);
+            mVolume = vol;
+            synchronized (this) {
+                mMediaPlayer.setVolume(vol, vol);
+                if (mNextMediaPlayer != null) {
+                    mNextMediaPlayer.setVolume(vol, vol);
+                }
+            }
         }
     }
 
@@ -1857,6 +3273,9 @@ public class MediaPlaybackService extends Service {
         public void open(long [] list, int position) {
             mService.get().open(list, position);
         }
+        public int openCollection(CollectionQuery query, int position, boolean shuffle) {
+            return mService.get().openCollection(query, position, shuffle);
+        }
         public int getQueuePosition() {
             return mService.get().getQueuePosition();
         }
@@ -1899,9 +3318,30 @@ public class MediaPlaybackService extends Service {
         public void enqueue(long [] list , int action) {
             mService.get().enqueue(list, action);
         }
+        public int enqueueMissing(long [] list, int action) {
+            return mService.get().enqueueMissing(list, action);
+        }
+        public boolean isQueued(long id) {
+            return mService.get().isQueued(id);
+        }
         public long [] getQueue() {
             return mService.get().getQueue();
         }
+        public int getQueueLength() {
+            return mService.get().getQueueLength();
+        }
+        public long [] getQueueSlice(int offset, int count) {
+            return mService.get().getQueueSlice(offset, count);
+        }
+        public long getQueueVersion() {
+            return mService.get().getQueueVersion();
+        }
+        public long getQueueHash() {
+            return mService.get().getQueueHash();
+        }
+        public PlaybackQueueDelta [] getQueueDeltas(long version) {
+            return mService.get().getQueueDeltas(version);
+        }
         public void moveQueueItem(int from, int to) {
             mService.get().moveQueueItem(from, to);
         }
@@ -1932,6 +3372,9 @@ public class MediaPlaybackService extends Service {
         public int removeTrack(long id) {
             return mService.get().removeTrack(id);
         }
+        public int removeTrackIds(long [] ids) {
+            return mService.get().removeTracks(ids);
+        }
         public void setRepeatMode(int repeatmode) {
             mService.get().setRepeatMode(repeatmode);
         }
@@ -1941,19 +3384,52 @@ public class MediaPlaybackService extends Service {
         public int getMediaMountedCount() {
             return mService.get().getMediaMountedCount();
         }
+        public PlaybackSnapshot getSnapshot() {
+            return mService.get().getSnapshot();
+        }
+        public void registerCallback(IMediaPlaybackCallback cb) {
+            if (cb != null) {
+                mService.get().mCallbacks.register(cb);
+            }
+        }
+        public void unregisterCallback(IMediaPlaybackCallback cb) {
+            if (cb != null) {
+                mService.get().mCallbacks.unregister(cb);
+            }
+        }
     }
 
     @Override
     protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
-        writer.println("" + mPlayListLen + " items in queue, currently at index " + mPlayPos);
+        writer.println("" + mPlayList.size() + " items in queue, currently at index " + mPlayPos);
+        QuerySegment segment = getQuerySegment();
+        if (segment != null) {
+            writer.println("queue read from " + segment.getQuery()
+                    + (segment.isFromIndex() ? " (library index)" : ""));
+        }
+        writer.println("library index: " + mLibraryIndex.size() + " tracks");
         writer.println("Currently loaded:");
         writer.println(getArtistName());
         writer.println(getAlbumName());
         writer.println(getTrackName());
         writer.println(getPath());
         writer.println("playing: " + mIsSupposedToBePlaying);
-        writer.println("actual: " + mPlayer.mMediaPlayer.isPlaying());
-        writer.println("shuffle mode: " + mShuffleMode);
+        synchronized (mPlayer) {
+            writer.println("actual: " + mPlayer.mMediaPlayer.isPlaying());
+        }
+        writer.println("player state: " + mPlayer.mState);
+        writer.println("next prepared: " + mNextPlayPos);
+        writer.println("shuffle mode: " + mShuffleMode + ", "
+                + mShuffleOrder.getPlayedCount() + " tracks played in this pass");
+        writer.println("track cache: " + mTrackCache.size() + " tracks, "
+                + mTrackCache.getQueryCount() + " queries");
+        writer.println("saves: " + mSaveCount.get() + " performed, "
+                + mSaveRequestCount.get() + " requested");
+        writer.println("latencies:");
+        mOpenLatency.dump(writer);
+        mPrepareLatency.dump(writer);
+        mGapLatency.dump(writer);
+        mSaveLatency.dump(writer);
         MusicUtils.debugDump(writer);
     }
 
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.media.MediaPlayer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Reflection utils to call MediaPlayer.setNextMediaPlayer when possible.
+ */
+public class MediaPlayerCompat {
+    private static final Method sSetNextMediaPlayerMethod = findSetNextMediaPlayerMethod();
+
+    private static Method findSetNextMediaPlayerMethod() {
+        try {
+            Class cls = MediaPlayer.class;
+            return cls.getMethod("setNextMediaPlayer", MediaPlayer.class);
+        } catch (NoSuchMethodException unused) {
+            // fall through
+        }
+        return null;
+    }
+
+    /**
+     * Makes 'next' start as soon as 'player' completes.
+     * @return false if the platform doesn't support that, in which case the
+     * caller has to start 'next' itself.
+     */
+    public static boolean setNextMediaPlayer(MediaPlayer player, MediaPlayer next) {
+        if (sSetNextMediaPlayerMethod != null) {
+            try {
+                sSetNextMediaPlayerMethod.invoke(player, next);
+                return true;
+            } catch (InvocationTargetException unused) {
+                // fall through
+            } catch (IllegalAccessException unused) {
+                // fall through
+            }
+        }
+        return false;
+    }
+}
@@ -24,13 +24,34 @@ import android.widget.AlphabetIndexer;
  * Handles comparisons in a different way because the Album, Song and Artist name
  * are stripped of some prefixes such as "a", "an", "the" and some symbols.
  *
+ * Where each section starts is worked out once per cursor, with the keys
+ * of the letters computed once and those of the rows cached while
+ * searching, so fast-scrolling only looks the sections up in a table.
  */
 class MusicAlphabetIndexer extends AlphabetIndexer {
-    
+    private static final int KEY_CACHE_SIZE = 256;
+
+    // each letter of the alphabet, and its MediaStore.Audio.keyFor()
+    private final String [] mLetters;
+    private final String [] mLetterKeys;
+    // the first position of each section, or null if not known yet
+    private int [] mSectionStarts;
+    // keys of recently compared rows, by position modulo the cache size
+    private final int [] mKeyPositions = new int[KEY_CACHE_SIZE];
+    private final String [] mKeys = new String[KEY_CACHE_SIZE];
+
     public MusicAlphabetIndexer(Cursor cursor, int sortedColumnIndex, CharSequence alphabet) {
         super(cursor, sortedColumnIndex, alphabet);
+        int length = alphabet.length();
+        mLetters = new String[length];
+        mLetterKeys = new String[length];
+        for (int i = 0; i < length; i++) {
+            mLetters[i] = Character.toString(alphabet.charAt(i));
+            mLetterKeys[i] = MediaStore.Audio.keyFor(mLetters[i]);
+        }
+        clearCache();
     }
-    
+
     @Override
     protected int compare(String word, String letter) {
         String wordKey = MediaStore.Audio.keyFor(word);
@@ -41,4 +62,130 @@ class MusicAlphabetIndexer extends AlphabetIndexer {
             return wordKey.compareTo(letterKey);
         }
     }
+
+    @Override
+    public void setCursor(Cursor cursor) {
+        super.setCursor(cursor);
+        clearCache();
+    }
+
+    @Override
+    public void onChanged() {
+        super.onChanged();
+        clearCache();
+    }
+
+    @Override
+    public void onInvalidated() {
+        super.onInvalidated();
+        clearCache();
+    }
+
+    @Override
+    public int getPositionForSection(int sectionIndex) {
+        int [] starts = getSectionStarts();
+        if (starts == null || starts.length == 0) {
+            return 0;
+        }
+        if (sectionIndex < 0) {
+            sectionIndex = 0;
+        } else if (sectionIndex >= starts.length) {
+            sectionIndex = starts.length - 1;
+        }
+        return starts[sectionIndex];
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        int [] starts = getSectionStarts();
+        if (starts == null || starts.length == 0) {
+            return 0;
+        }
+        // the last section starting at or before 'position'; sections with
+        // no rows start where the next one does, so they're passed over
+        int lo = 0;
+        int hi = starts.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= position) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private int [] getSectionStarts() {
+        if (mSectionStarts == null && mDataCursor != null && !mDataCursor.isClosed()) {
+            mSectionStarts = findSectionStarts();
+        }
+        return mSectionStarts;
+    }
+
+    // Finds the start of each section with a binary search over the rows
+    // from where the section before it starts.
+    private int [] findSectionStarts() {
+        Cursor cursor = mDataCursor;
+        int count = cursor.getCount();
+        int savedPosition = cursor.getPosition();
+        int [] starts = new int[mLetters.length];
+        int from = 0;
+        for (int section = 0; section < starts.length; section++) {
+            int lo = from;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                String key = getKey(cursor, mid);
+                if (key == null) {
+                    // the cursor went away
+                    cursor.moveToPosition(savedPosition);
+                    return null;
+                }
+                if (compareKey(key, section) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            starts[section] = lo;
+            from = lo;
+        }
+        cursor.moveToPosition(savedPosition);
+        return starts;
+    }
+
+    // The same as compare(), for a row whose key is known already.
+    private int compareKey(String wordKey, int section) {
+        if (wordKey.startsWith(mLetters[section])) {
+            return 0;
+        }
+        return wordKey.compareTo(mLetterKeys[section]);
+    }
+
+    private String getKey(Cursor cursor, int position) {
+        int slot = position % KEY_CACHE_SIZE;
+        if (mKeyPositions[slot] == position) {
+            return mKeys[slot];
+        }
+        if (!cursor.moveToPosition(position)) {
+            return null;
+        }
+        String word = cursor.getString(mColumnIndex);
+        String key = word != null ? MediaStore.Audio.keyFor(word) : null;
+        if (key == null) {
+            key = "";
+        }
+        mKeyPositions[slot] = position;
+        mKeys[slot] = key;
+        return key;
+    }
+
+    private void clearCache() {
+        mSectionStarts = null;
+        for (int i = 0; i < KEY_CACHE_SIZE; i++) {
+            mKeyPositions[i] = -1;
+            mKeys[i] = null;
+        }
+    }
 }
@@ -357,6 +357,9 @@ public class MusicPicker extends ListActivity
         }
 
         public int getSectionForPosition(int position) {
+            if (getCursor() != null && mIndexer != null) {
+                return mIndexer.getSectionForPosition(position);
+            }
             return 0;
         }
 
@@ -64,7 +64,6 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
-import java.util.Arrays;
 import java.util.Formatter;
 import java.util.HashMap;
 import java.util.Locale;
@@ -195,6 +194,7 @@ public class MusicUtils {
         if (sConnectionMap.isEmpty()) {
             // presumably there is nobody interested in the service at this point,
             // so don't hang on to the ServiceConnection
+            stopNowPlayingMirror();
             sService = null;
         }
     }
@@ -207,6 +207,7 @@ public class MusicUtils {
         
         public void onServiceConnected(ComponentName className, android.os.IBinder service) {
             sService = IMediaPlaybackService.Stub.asInterface(service);
+            startNowPlayingMirror();
             initAlbumArtCache();
             if (mCallback != null) {
                 mCallback.onServiceConnected(className, service);
@@ -218,27 +219,100 @@ public class MusicUtils {
                 mCallback.onServiceDisconnected(className);
             }
             sService = null;
+            setNowPlaying(NOT_PLAYING, true);
         }
     }
-    
-    public static long getCurrentAlbumId() {
-        if (sService != null) {
+
+    // what's playing, as far as this process knows; see getNowPlaying()
+    private static final PlaybackSnapshot NOT_PLAYING = new PlaybackSnapshot();
+    static {
+        // older than anything the service sends
+        NOT_PLAYING.version = -1;
+    }
+    private static volatile PlaybackSnapshot sNowPlaying = NOT_PLAYING;
+
+    private static final IMediaPlaybackCallback.Stub sNowPlayingCallback =
+            new IMediaPlaybackCallback.Stub() {
+        public void onStateChanged(PlaybackSnapshot snapshot) {
+            setNowPlaying(snapshot, false);
+        }
+        public void onMetaChanged(PlaybackSnapshot snapshot) {
+            setNowPlaying(snapshot, false);
+        }
+        public void onQueueChanged(PlaybackSnapshot snapshot) {
+            setNowPlaying(snapshot, false);
+        }
+        public void onPositionChanged(PlaybackSnapshot snapshot) {
+            setNowPlaying(snapshot, false);
+        }
+    };
+
+    /**
+     * Returns what the service was playing as of the last change it told
+     * this process about. This doesn't call the service, so list adapters
+     * can use it for every row they bind. It's never null, and has an
+     * audio id of -1 while not connected to the service.
+     *
+     * The fields must not be changed.
+     */
+    public static PlaybackSnapshot getNowPlaying() {
+        return sNowPlaying;
+    }
+
+    /**
+     * Makes sure getNowPlaying() is at least as recent as the change
+     * announced by 'intent', a broadcast from the service. The mirror is
+     * kept up to date by callbacks, which can arrive after the broadcast,
+     * so receivers that are about to redraw should call this first. It
+     * only calls the service if the callback is still on its way.
+     */
+    public static void syncNowPlaying(Intent intent) {
+        if (intent == null || sService == null) {
+            return;
+        }
+        long version = intent.getLongExtra("version", -1);
+        if (version > sNowPlaying.version) {
             try {
-                return sService.getAlbumId();
+                setNowPlaying(sService.getSnapshot(), false);
             } catch (RemoteException ex) {
             }
         }
-        return -1;
     }
 
-    public static long getCurrentArtistId() {
-        if (MusicUtils.sService != null) {
+    private static void startNowPlayingMirror() {
+        try {
+            // registering again is harmless, if another activity already did
+            sService.registerCallback(sNowPlayingCallback);
+            // this can be a service that was started again, whose versions
+            // start over, so don't compare them
+            setNowPlaying(sService.getSnapshot(), true);
+        } catch (RemoteException ex) {
+        }
+    }
+
+    private static void stopNowPlayingMirror() {
+        // the service is null if it was never connected, or went away
+        if (sService != null) {
             try {
-                return sService.getArtistId();
+                sService.unregisterCallback(sNowPlayingCallback);
             } catch (RemoteException ex) {
             }
         }
-        return -1;
+        setNowPlaying(NOT_PLAYING, true);
+    }
+
+    private static synchronized void setNowPlaying(PlaybackSnapshot snapshot, boolean replace) {
+        if (snapshot != null && (replace || snapshot.version >= sNowPlaying.version)) {
+            sNowPlaying = snapshot;
+        }
+    }
+    
+    public static long getCurrentAlbumId() {
+        return sNowPlaying.albumId;
+    }
+
+    public static long getCurrentArtistId() {
+        return sNowPlaying.artistId;
     }
 
     public static long getCurrentAudioId() {
@@ -251,6 +325,40 @@ public class MusicUtils {
         return -1;
     }
     
+    /**
+     * Fetches the play queue a slice at a time, since very large queues
+     * don't fit into a single Binder transaction. If the queue changes
+     * meanwhile, it's fetched again.
+     */
+    static long [] getQueue(IMediaPlaybackService service) throws RemoteException {
+        long [] queue;
+        int tries = 0;
+        while (true) {
+            long version = service.getQueueVersion();
+            queue = new long[service.getQueueLength()];
+            int n = 0;
+            while (n < queue.length) {
+                long [] slice = service.getQueueSlice(n, queue.length - n);
+                if (slice.length == 0) {
+                    break;
+                }
+                int count = Math.min(slice.length, queue.length - n);
+                System.arraycopy(slice, 0, queue, n, count);
+                n += count;
+            }
+            if ((n == queue.length && service.getQueueVersion() == version) || ++tries == 3) {
+                // give up on a consistent copy if the queue keeps changing,
+                // but don't hand out the ids it didn't get to as 0
+                if (n < queue.length) {
+                    long [] shorter = new long[n];
+                    System.arraycopy(queue, 0, shorter, 0, n);
+                    queue = shorter;
+                }
+                return queue;
+            }
+        }
+    }
+
     public static int getCurrentShuffleMode() {
         int mode = MediaPlaybackService.SHUFFLE_NONE;
         if (sService != null) {
@@ -327,77 +435,24 @@ public class MusicUtils {
     }
 
     public static long [] getSongListForArtist(Context context, long id) {
-        final String[] ccols = new String[] { MediaStore.Audio.Media._ID };
-        String where = MediaStore.Audio.Media.ARTIST_ID + "=" + id + " AND " + 
-        MediaStore.Audio.Media.IS_MUSIC + "=1";
-        Cursor cursor = query(context, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                ccols, where, null,
-                MediaStore.Audio.Media.ALBUM_KEY + ","  + MediaStore.Audio.Media.TRACK);
-        
-        if (cursor != null) {
-            long [] list = getSongListForCursor(cursor);
-            cursor.close();
-            return list;
-        }
-        return sEmptyList;
+        return CollectionQuery.artist(id).getSongList(context.getContentResolver());
     }
 
     public static long [] getSongListForAlbum(Context context, long id) {
-        final String[] ccols = new String[] { MediaStore.Audio.Media._ID };
-        String where = MediaStore.Audio.Media.ALBUM_ID + "=" + id + " AND " + 
-                MediaStore.Audio.Media.IS_MUSIC + "=1";
-        Cursor cursor = query(context, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                ccols, where, null, MediaStore.Audio.Media.TRACK);
-
-        if (cursor != null) {
-            long [] list = getSongListForCursor(cursor);
-            cursor.close();
-            return list;
-        }
-        return sEmptyList;
+        return CollectionQuery.album(id).getSongList(context.getContentResolver());
     }
 
     public static long [] getSongListForPlaylist(Context context, long plid) {
-        final String[] ccols = new String[] { MediaStore.Audio.Playlists.Members.AUDIO_ID };
-        Cursor cursor = query(context, MediaStore.Audio.Playlists.Members.getContentUri("external", plid),
-                ccols, null, null, MediaStore.Audio.Playlists.Members.DEFAULT_SORT_ORDER);
-        
-        if (cursor != null) {
-            long [] list = getSongListForCursor(cursor);
-            cursor.close();
-            return list;
-        }
-        return sEmptyList;
+        return CollectionQuery.playlist(plid).getSongList(context.getContentResolver());
     }
     
     public static void playPlaylist(Context context, long plid) {
-        long [] list = getSongListForPlaylist(context, plid);
-        if (list != null) {
-            playAll(context, list, -1, false);
-        }
+        playCollection(context, CollectionQuery.playlist(plid), -1, false);
     }
 
     public static long [] getAllSongs(Context context) {
-        Cursor c = query(context, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                new String[] {MediaStore.Audio.Media._ID}, MediaStore.Audio.Media.IS_MUSIC + "=1",
-                null, null);
-        try {
-            if (c == null || c.getCount() == 0) {
-                return null;
-            }
-            int len = c.getCount();
-            long [] list = new long[len];
-            for (int i = 0; i < len; i++) {
-                c.moveToNext();
-                list[i] = c.getLong(0);
-            }
-
-            return list;
-        } finally {
-            if (c != null) {
-                c.close();
-            }
-        }
+        long [] list = CollectionQuery.allSongs().getSongList(context.getContentResolver());
+        return list.length == 0 ? null : list;
     }
 
     /**
@@ -473,19 +528,21 @@ public class MusicUtils {
 
             // step 1: remove selected tracks from the current playlist, as well
             // as from the album art cache
-            try {
-                c.moveToFirst();
-                while (! c.isAfterLast()) {
-                    // remove from current playlist
-                    long id = c.getLong(0);
-                    sService.removeTrack(id);
-                    // remove from album art cache
-                    long artIndex = c.getLong(2);
-                    synchronized(sArtCache) {
-                        sArtCache.remove(artIndex);
-                    }
-                    c.moveToNext();
+            long [] ids = new long[c.getCount()];
+            int n = 0;
+            c.moveToFirst();
+            while (! c.isAfterLast()) {
+                ids[n++] = c.getLong(0);
+                // remove from album art cache
+                long artIndex = c.getLong(2);
+                synchronized(sArtCache) {
+                    sArtCache.remove(artIndex);
                 }
+                c.moveToNext();
+            }
+            try {
+                // all in one call
+                sService.removeTrackIds(ids);
             } catch (RemoteException ex) {
             }
 
@@ -786,14 +843,15 @@ public class MusicUtils {
             if (force_shuffle) {
                 sService.setShuffleMode(MediaPlaybackService.SHUFFLE_NORMAL);
             }
-            long curid = sService.getAudioId();
-            int curpos = sService.getQueuePosition();
+            PlaybackSnapshot snapshot = sService.getSnapshot();
+            long curid = snapshot.audioId;
+            int curpos = snapshot.queuePosition;
             if (position != -1 && curpos == position && curid == list[position]) {
                 // The selected file is the file that's currently playing;
                 // figure out if we need to restart with a new playlist,
                 // or just launch the playback activity.
-                long [] playlist = sService.getQueue();
-                if (Arrays.equals(list, playlist)) {
+                if (sService.getQueueLength() == list.length &&
+                        sService.getQueueHash() == PlaybackQueue.hash(list, 0, list.length)) {
                     // we don't need to set a new list, but we should resume playback if needed
                     sService.play();
                     return; // the 'finally' block will still run
@@ -812,6 +870,37 @@ public class MusicUtils {
         }
     }
     
+    /**
+     * Has the service look up the tracks of a collection and play them,
+     * which is cheaper than sending it the track ids.
+     * @param position the index of the track to start at. Ignored if
+     * 'force_shuffle' is set, which starts at a random track instead.
+     */
+    public static void playCollection(Context context, CollectionQuery query, int position,
+            boolean force_shuffle) {
+        if (sService == null) {
+            Log.d("MusicUtils", "attempt to play without a service");
+            String message = context.getString(R.string.emptyplaylist, 0);
+            Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        try {
+            int count = sService.openCollection(query, position, force_shuffle);
+            if (count == 0) {
+                Log.d("MusicUtils", "attempt to play empty song list");
+                // Don't try to play empty playlists. Nothing good will come of it.
+                String message = context.getString(R.string.emptyplaylist, 0);
+                Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            sService.play();
+        } catch (RemoteException ex) {
+        }
+        Intent intent = new Intent("com.android.music.PLAYBACK_VIEWER")
+            .setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        context.startActivity(intent);
+    }
+    
     public static void clearQueue() {
         try {
             sService.removeTracks(0, Integer.MAX_VALUE);
@@ -1221,33 +1310,31 @@ public class MusicUtils {
         if (nowPlayingView == null) {
             return;
         }
-        try {
-            boolean withtabs = false;
-            Intent intent = a.getIntent();
-            if (intent != null) {
-                withtabs = intent.getBooleanExtra("withtabs", false);
-            }
-            if (true && MusicUtils.sService != null && MusicUtils.sService.getAudioId() != -1) {
-                TextView title = (TextView) nowPlayingView.findViewById(R.id.title);
-                TextView artist = (TextView) nowPlayingView.findViewById(R.id.artist);
-                title.setText(MusicUtils.sService.getTrackName());
-                String artistName = MusicUtils.sService.getArtistName();
-                if (MediaStore.UNKNOWN_STRING.equals(artistName)) {
-                    artistName = a.getString(R.string.unknown_artist_name);
-                }
-                artist.setText(artistName);
-                //mNowPlayingView.setOnFocusChangeListener(mFocuser);
-                //mNowPlayingView.setOnClickListener(this);
-                nowPlayingView.setVisibility(View.VISIBLE);
-                nowPlayingView.setOnClickListener(new View.OnClickListener() {
-
-                    public void onClick(View v) {
-                        Context c = v.getContext();
-                        c.startActivity(new Intent(c, MediaPlaybackActivity.class));
-                    }});
-                return;
+        boolean withtabs = false;
+        Intent intent = a.getIntent();
+        if (intent != null) {
+            withtabs = intent.getBooleanExtra("withtabs", false);
+        }
+        PlaybackSnapshot snapshot = getNowPlaying();
+        if (sService != null && snapshot.audioId != -1) {
+            TextView title = (TextView) nowPlayingView.findViewById(R.id.title);
+            TextView artist = (TextView) nowPlayingView.findViewById(R.id.artist);
+            title.setText(snapshot.trackName);
+            String artistName = snapshot.artistName;
+            if (MediaStore.UNKNOWN_STRING.equals(artistName)) {
+                artistName = a.getString(R.string.unknown_artist_name);
             }
-        } catch (RemoteException ex) {
+            artist.setText(artistName);
+            //mNowPlayingView.setOnFocusChangeListener(mFocuser);
+            //mNowPlayingView.setOnClickListener(this);
+            nowPlayingView.setVisibility(View.VISIBLE);
+            nowPlayingView.setOnClickListener(new View.OnClickListener() {
+
+                public void onClick(View v) {
+                    Context c = v.getContext();
+                    c.startActivity(new Intent(c, MediaPlaybackActivity.class));
+                }});
+            return;
         }
         nowPlayingView.setVisibility(View.GONE);
     }
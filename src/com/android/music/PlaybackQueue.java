@@ -0,0 +1,748 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import java.util.Random;
+
+/**
+ * The list of track ids in the play queue.
+ *
+ * The ids are kept in fixed-size chunks, which are the nodes of a tree
+ * ordered by position (a treap, balanced by random priorities). Every
+ * node knows how many ids its subtree holds, so an index can be found in
+ * O(log n), and inserting, moving or removing ids only splits the tree at
+ * the affected positions and joins the pieces again, instead of shifting
+ * everything behind them.
+ *
+ * Whenever two pieces are joined and their neighbouring chunks fit into
+ * one, they're combined, so any two adjacent chunks are more than
+ * CHUNK_SIZE long together, and the memory used stays within twice the
+ * number of ids. Appended ids are collected in a separate tail chunk,
+ * which only goes into the tree once it's full.
+ *
+ * Instead of holding the ids itself, the queue can also read them from a
+ * Source, such as a query on the media database, which is only asked for
+ * the ids that are actually used. That lasts until the queue is changed,
+ * at which point the ids are copied in and the source is let go.
+ *
+ * Optionally, the queue also keeps an index from each id to the positions
+ * it's at, so finding a track doesn't mean going through the whole queue.
+ * Changes at the end of the queue keep it up to date, while changes in
+ * the middle, which move every position behind them, just drop it until
+ * the next lookup builds it again.
+ *
+ * Each method is atomic, holding the queue's own lock, so the queue can
+ * be read without holding the service lock. Anything that takes more
+ * than one call, such as reading a range of positions that has to match
+ * size(), should hold that lock around all of them.
+ */
+public class PlaybackQueue {
+    private static final int CHUNK_SIZE = 256;
+    private static final long HASH_MULTIPLIER = 0x100000001b3L;
+
+    /**
+     * A list of ids that are looked up when they're needed.
+     */
+    public interface Source {
+        int size();
+
+        long get(int index);
+
+        /**
+         * Called when the queue no longer reads from this source.
+         */
+        void release();
+    }
+
+    private static final class Node {
+        final long [] data = new long[CHUNK_SIZE];
+        int len;
+        // number of ids in this node and its children
+        int size;
+        final int priority;
+        Node left;
+        Node right;
+
+        Node(int priority) {
+            this.priority = priority;
+        }
+    }
+
+    private Node mRoot;
+    private long [] mTail;
+    private int mTailLen;
+    private final Random mRandom = new Random();
+    // incremented by every change
+    private int mModCount;
+    // where the ids are read from while the queue is unchanged, or null
+    private Source mSource;
+    // the positions of every id, if the queue is indexed
+    private LongIntListMap mIndex;
+    // whether mIndex matches the ids; it's built when first needed
+    private boolean mIndexValid;
+
+    // results of split()
+    private Node mSplitLeft;
+    private Node mSplitRight;
+
+    public synchronized int size() {
+        if (mSource != null) {
+            return mSource.size();
+        }
+        return size(mRoot) + mTailLen;
+    }
+
+    public synchronized long get(int index) {
+        checkIndex(index);
+        if (mSource != null) {
+            return mSource.get(index);
+        }
+        int treeSize = size(mRoot);
+        if (index >= treeSize) {
+            return mTail[index - treeSize];
+        }
+        Node t = mRoot;
+        while (true) {
+            int ls = size(t.left);
+            if (index < ls) {
+                t = t.left;
+            } else {
+                index -= ls;
+                if (index < t.len) {
+                    return t.data[index];
+                }
+                index -= t.len;
+                t = t.right;
+            }
+        }
+    }
+
+    public synchronized void set(int index, long id) {
+        checkIndex(index);
+        if (mIndexValid) {
+            mIndex.remove(get(index), index);
+            mIndex.add(id, index);
+        }
+        detachSource();
+        int treeSize = size(mRoot);
+        mModCount++;
+        if (index >= treeSize) {
+            mTail[index - treeSize] = id;
+            return;
+        }
+        Node t = mRoot;
+        while (true) {
+            int ls = size(t.left);
+            if (index < ls) {
+                t = t.left;
+            } else {
+                index -= ls;
+                if (index < t.len) {
+                    t.data[index] = id;
+                    return;
+                }
+                index -= t.len;
+                t = t.right;
+            }
+        }
+    }
+
+    /**
+     * Appends an id to the end of the queue, in amortized constant time.
+     */
+    public synchronized void add(long id) {
+        if (mIndexValid) {
+            mIndex.add(id, size());
+        }
+        detachSource();
+        if (mTail == null) {
+            mTail = new long[CHUNK_SIZE];
+        } else if (mTailLen == CHUNK_SIZE) {
+            flushTail();
+            mTail = new long[CHUNK_SIZE];
+        }
+        mTail[mTailLen++] = id;
+        mModCount++;
+    }
+
+    public synchronized void insert(int position, long [] list) {
+        insert(position, list, 0, list.length);
+    }
+
+    /**
+     * Inserts 'count' ids from 'list', starting at 'offset', so that the
+     * first of them ends up at 'position'.
+     */
+    public synchronized void insert(int position, long [] list, int offset, int count) {
+        int size = size();
+        if (position < 0 || position > size) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + size);
+        }
+        if (position == size) {
+            for (int i = 0; i < count; i++) {
+                add(list[offset + i]);
+            }
+            return;
+        }
+        // every position behind the new ids changes, which costs as much
+        // to fix up in the index as building it again when it's needed
+        mIndexValid = false;
+        detachSource();
+        mModCount++;
+        flushTail();
+        split(mRoot, position);
+        Node right = mSplitRight;
+        Node left = join(mSplitLeft, build(list, offset, count));
+        mRoot = join(left, right);
+    }
+
+    /**
+     * Removes the ids from 'first' through 'last', inclusive.
+     */
+    public synchronized void remove(int first, int last) {
+        int size = size();
+        if (first < 0 || last >= size || first > last) {
+            throw new IndexOutOfBoundsException("first " + first + ", last " + last
+                    + ", size " + size);
+        }
+        if (last < size - 1) {
+            // as in insert(), the positions behind them all change
+            mIndexValid = false;
+        } else if (mIndexValid) {
+            unindex(first, last - first + 1);
+        }
+        detachSource();
+        mModCount++;
+        flushTail();
+        split(mRoot, first);
+        Node left = mSplitLeft;
+        split(mSplitRight, last - first + 1);
+        mRoot = join(left, mSplitRight);
+    }
+
+    /**
+     * Removes every occurrence of the ids in 'ids', in a single pass over
+     * the queue.
+     * @return the positions the removed ids were at, in ascending order
+     */
+    public synchronized int [] removeAll(LongHashSet ids) {
+        int size = size();
+        long [] buf = new long[CHUNK_SIZE];
+        long [] kept = new long[CHUNK_SIZE];
+        int keptLen = 0;
+        Node root = null;
+        int [] removed = new int[16];
+        int count = 0;
+        for (int i = 0; i < size; i += CHUNK_SIZE) {
+            int n = Math.min(CHUNK_SIZE, size - i);
+            copyTo(i, buf, 0, n);
+            for (int j = 0; j < n; j++) {
+                if (ids.contains(buf[j])) {
+                    if (count == removed.length) {
+                        int [] grown = new int[count * 2];
+                        System.arraycopy(removed, 0, grown, 0, count);
+                        removed = grown;
+                    }
+                    removed[count++] = i + j;
+                } else {
+                    kept[keptLen++] = buf[j];
+                    if (keptLen == CHUNK_SIZE) {
+                        root = merge(root, newNode(kept, 0, keptLen));
+                        keptLen = 0;
+                    }
+                }
+            }
+        }
+        int [] positions = new int[count];
+        System.arraycopy(removed, 0, positions, 0, count);
+        if (count == 0) {
+            return positions;
+        }
+        if (mSource != null) {
+            mSource.release();
+            mSource = null;
+        }
+        // the full chunks make up the new tree, and the rest the tail
+        mRoot = root;
+        mTail = kept;
+        mTailLen = keptLen;
+        mModCount++;
+        // as cheap to build again, the next time it's needed, as to fix up
+        mIndexValid = false;
+        return positions;
+    }
+
+    /**
+     * Moves the id at 'from' to 'to', shifting the ids in between by one.
+     */
+    public synchronized void move(int from, int to) {
+        long id = get(from);
+        checkIndex(to);
+        if (from == to) {
+            return;
+        }
+        remove(from, from);
+        insert(to, new long [] { id }, 0, 1);
+    }
+
+    public synchronized void clear() {
+        if (mSource != null) {
+            mSource.release();
+            mSource = null;
+        }
+        mRoot = null;
+        mTailLen = 0;
+        mModCount++;
+        if (mIndex != null) {
+            mIndex.clear();
+            mIndexValid = true;
+        }
+    }
+
+    /**
+     * Replaces the ids in the queue with those of 'source'. The previous
+     * source, if any, is released.
+     */
+    public synchronized void setSource(Source source) {
+        clear();
+        mSource = source;
+        // only read all of the source if something needs the index
+        mIndexValid = false;
+    }
+
+    /**
+     * Returns the source the ids are read from, or null if the queue
+     * holds them itself.
+     */
+    public synchronized Source getSource() {
+        return mSource;
+    }
+
+    /**
+     * Tells the queue that the ids of its source changed.
+     */
+    public synchronized void sourceChanged() {
+        mModCount++;
+        mIndexValid = false;
+    }
+
+    /**
+     * Has the queue keep an index of the positions of its ids, so that
+     * indexOf() and contains() take constant time rather than going through
+     * the queue. The index is built when it's first used, and then kept up
+     * to date by changes, which makes changes other than appending take
+     * time proportional to the size of the queue, though very little.
+     */
+    public synchronized void setIndexed(boolean indexed) {
+        if (indexed && mIndex == null) {
+            mIndex = new LongIntListMap();
+            mIndexValid = false;
+        } else if (!indexed) {
+            mIndex = null;
+            mIndexValid = false;
+        }
+    }
+
+    /**
+     * Returns whether 'id' is in the queue.
+     */
+    public synchronized boolean contains(long id) {
+        if (mIndex != null) {
+            buildIndex();
+            return mIndex.containsKey(id);
+        }
+        return indexOf(id, 0) >= 0;
+    }
+
+    /**
+     * Copies the ids of the source into the queue and releases the source,
+     * so that the queue can be changed. Does nothing if there's no source.
+     */
+    public synchronized void detachSource() {
+        Source source = mSource;
+        if (source == null) {
+            return;
+        }
+        mSource = null;
+        mRoot = null;
+        mTailLen = 0;
+        long [] buf = new long[CHUNK_SIZE];
+        int size = source.size();
+        for (int i = 0; i < size; i += CHUNK_SIZE) {
+            int n = Math.min(CHUNK_SIZE, size - i);
+            for (int j = 0; j < n; j++) {
+                buf[j] = source.get(i + j);
+            }
+            mRoot = merge(mRoot, newNode(buf, 0, n));
+        }
+        source.release();
+    }
+
+    /**
+     * Returns a number that changes whenever the queue does, so that
+     * callers can tell whether it changed since they last looked.
+     */
+    public synchronized int getModCount() {
+        return mModCount;
+    }
+
+    /**
+     * Returns a hash of the ids in the queue, in order. It's the same as
+     * hash(toArray(), 0, size()), without making the copy.
+     */
+    public synchronized long hash() {
+        if (mSource != null) {
+            long h = 0;
+            int size = mSource.size();
+            for (int i = 0; i < size; i++) {
+                h = h * HASH_MULTIPLIER + mSource.get(i);
+            }
+            return h;
+        }
+        long h = hash(mRoot, 0);
+        for (int i = 0; i < mTailLen; i++) {
+            h = h * HASH_MULTIPLIER + mTail[i];
+        }
+        return h;
+    }
+
+    /**
+     * Returns a hash of 'count' ids from 'list', starting at 'offset'.
+     * Lists that hash differently hold different ids.
+     */
+    public static long hash(long [] list, int offset, int count) {
+        long h = 0;
+        for (int i = 0; i < count; i++) {
+            h = h * HASH_MULTIPLIER + list[offset + i];
+        }
+        return h;
+    }
+
+    /**
+     * Copies 'count' ids starting at 'from' into 'dst'.
+     */
+    public synchronized void copyTo(int from, long [] dst, int dstOffset, int count) {
+        int size = size();
+        if (from < 0 || count < 0 || from + count > size) {
+            throw new IndexOutOfBoundsException("from " + from + ", count " + count
+                    + ", size " + size);
+        }
+        if (mSource != null) {
+            for (int i = 0; i < count; i++) {
+                dst[dstOffset + i] = mSource.get(from + i);
+            }
+            return;
+        }
+        int treeSize = size(mRoot);
+        int n = Math.max(0, Math.min(count, treeSize - from));
+        copy(mRoot, from, n, dst, dstOffset);
+        if (n < count) {
+            System.arraycopy(mTail, from + n - treeSize, dst, dstOffset + n, count - n);
+        }
+    }
+
+    public synchronized long [] toArray() {
+        long [] list = new long[size()];
+        copyTo(0, list, 0, list.length);
+        return list;
+    }
+
+    /**
+     * Returns the position of the first occurrence of 'id' at or
+     * after 'from', or -1 if there is none.
+     */
+    public synchronized int indexOf(long id, int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        if (mIndex != null) {
+            buildIndex();
+            return mIndex.first(id, from);
+        }
+        if (mSource != null) {
+            int size = mSource.size();
+            for (int i = from; i < size; i++) {
+                if (mSource.get(i) == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int treeSize = size(mRoot);
+        int index = indexOf(mRoot, id, from);
+        if (index >= 0) {
+            return index;
+        }
+        for (int i = Math.max(from - treeSize, 0); i < mTailLen; i++) {
+            if (mTail[i] == id) {
+                return treeSize + i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether the queue holds exactly the ids in 'list'.
+     */
+    public synchronized boolean contentEquals(long [] list) {
+        if (list.length != size()) {
+            return false;
+        }
+        if (mSource != null) {
+            for (int i = 0; i < list.length; i++) {
+                if (mSource.get(i) != list[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (!equals(mRoot, list, 0)) {
+            return false;
+        }
+        int treeSize = size(mRoot);
+        for (int i = 0; i < mTailLen; i++) {
+            if (mTail[i] != list[treeSize + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void buildIndex() {
+        if (mIndexValid) {
+            return;
+        }
+        mIndex.clear();
+        mIndexValid = true;
+        long [] buf = new long[CHUNK_SIZE];
+        int size = size();
+        for (int i = 0; i < size; i += CHUNK_SIZE) {
+            int n = Math.min(CHUNK_SIZE, size - i);
+            copyTo(i, buf, 0, n);
+            for (int j = 0; j < n; j++) {
+                mIndex.add(buf[j], i + j);
+            }
+        }
+    }
+
+    // Takes the 'count' ids from 'first' on out of the index.
+    private void unindex(int first, int count) {
+        long [] buf = new long[Math.min(count, CHUNK_SIZE)];
+        for (int i = 0; i < count; i += buf.length) {
+            int n = Math.min(buf.length, count - i);
+            copyTo(first + i, buf, 0, n);
+            for (int j = 0; j < n; j++) {
+                mIndex.remove(buf[j], first + i + j);
+            }
+        }
+    }
+
+    private void checkIndex(int index) {
+        int size = size();
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+    }
+
+    private static int size(Node t) {
+        return t == null ? 0 : t.size;
+    }
+
+    private static void update(Node t) {
+        t.size = size(t.left) + t.len + size(t.right);
+    }
+
+    private Node newNode(long [] src, int offset, int count) {
+        Node t = new Node(mRandom.nextInt());
+        System.arraycopy(src, offset, t.data, 0, count);
+        t.len = count;
+        t.size = count;
+        return t;
+    }
+
+    // Moves the tail chunk into the tree.
+    private void flushTail() {
+        if (mTailLen > 0) {
+            mRoot = join(mRoot, newNode(mTail, 0, mTailLen));
+            mTailLen = 0;
+        }
+    }
+
+    private Node build(long [] list, int offset, int count) {
+        Node t = null;
+        while (count > 0) {
+            int n = Math.min(count, CHUNK_SIZE);
+            t = merge(t, newNode(list, offset, n));
+            offset += n;
+            count -= n;
+        }
+        return t;
+    }
+
+    /**
+     * Splits 't' into a tree holding its first 'k' ids (mSplitLeft) and one
+     * holding the rest (mSplitRight). A chunk that straddles the split point
+     * is cut in two.
+     */
+    private void split(Node t, int k) {
+        if (t == null) {
+            mSplitLeft = null;
+            mSplitRight = null;
+            return;
+        }
+        int ls = size(t.left);
+        if (k <= ls) {
+            split(t.left, k);
+            t.left = mSplitRight;
+            update(t);
+            mSplitRight = t;
+        } else if (k >= ls + t.len) {
+            split(t.right, k - ls - t.len);
+            t.right = mSplitLeft;
+            update(t);
+            mSplitLeft = t;
+        } else {
+            int cut = k - ls;
+            Node rest = newNode(t.data, cut, t.len - cut);
+            Node right = t.right;
+            t.len = cut;
+            t.right = null;
+            update(t);
+            mSplitLeft = t;
+            mSplitRight = merge(rest, right);
+        }
+    }
+
+    // Concatenates two trees.
+    private static Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        } else {
+            b.left = merge(a, b.left);
+            update(b);
+            return b;
+        }
+    }
+
+    // Concatenates two trees, combining the chunks where they
+    // meet if they fit into one.
+    private Node join(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        Node last = a;
+        while (last.right != null) {
+            last = last.right;
+        }
+        Node first = b;
+        while (first.left != null) {
+            first = first.left;
+        }
+        int n = first.len;
+        if (last.len + n <= CHUNK_SIZE) {
+            System.arraycopy(first.data, 0, last.data, last.len, n);
+            last.len += n;
+            for (Node t = a; t != null; t = t.right) {
+                t.size += n;
+            }
+            split(b, n);
+            b = mSplitRight;
+        }
+        return merge(a, b);
+    }
+
+    private static void copy(Node t, int from, int count, long [] dst, int dstOffset) {
+        if (t == null || count <= 0) {
+            return;
+        }
+        int ls = size(t.left);
+        if (from < ls) {
+            int n = Math.min(count, ls - from);
+            copy(t.left, from, n, dst, dstOffset);
+            dstOffset += n;
+            count -= n;
+            from = ls;
+        }
+        int start = from - ls;
+        if (start < t.len && count > 0) {
+            int n = Math.min(count, t.len - start);
+            System.arraycopy(t.data, start, dst, dstOffset, n);
+            dstOffset += n;
+            count -= n;
+            start += n;
+        }
+        copy(t.right, start - t.len, count, dst, dstOffset);
+    }
+
+    private static int indexOf(Node t, long id, int from) {
+        if (t == null || from >= t.size) {
+            return -1;
+        }
+        int ls = size(t.left);
+        if (from < ls) {
+            int index = indexOf(t.left, id, from);
+            if (index >= 0) {
+                return index;
+            }
+        }
+        for (int i = Math.max(from - ls, 0); i < t.len; i++) {
+            if (t.data[i] == id) {
+                return ls + i;
+            }
+        }
+        int index = indexOf(t.right, id, Math.max(from - ls - t.len, 0));
+        return index < 0 ? -1 : ls + t.len + index;
+    }
+
+    private static long hash(Node t, long h) {
+        if (t == null) {
+            return h;
+        }
+        h = hash(t.left, h);
+        for (int i = 0; i < t.len; i++) {
+            h = h * HASH_MULTIPLIER + t.data[i];
+        }
+        return hash(t.right, h);
+    }
+
+    private static boolean equals(Node t, long [] list, int offset) {
+        if (t == null) {
+            return true;
+        }
+        if (!equals(t.left, list, offset)) {
+            return false;
+        }
+        offset += size(t.left);
+        for (int i = 0; i < t.len; i++) {
+            if (t.data[i] != list[offset + i]) {
+                return false;
+            }
+        }
+        return equals(t.right, list, offset + t.len);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * One change to the play queue, so that a client that has a copy of the
+ * queue can make the same change to it instead of reading it all again.
+ *
+ * The change took the queue from 'previousVersion' to 'version', as
+ * returned by getQueueVersion(), so a client can tell whether a list of
+ * them follows on from the copy it has, and from each other.
+ */
+public class PlaybackQueueDelta implements Parcelable {
+    // 'ids' were inserted at 'from'
+    public static final int INSERT = 1;
+    // the ids at 'from' to 'to', inclusive, were removed
+    public static final int REMOVE = 2;
+    // the id at 'from' was moved to 'to'
+    public static final int MOVE = 3;
+    // every occurrence of 'ids' was removed
+    public static final int REMOVE_IDS = 4;
+
+    public long previousVersion;
+    public long version;
+    public int type;
+    public int from;
+    public int to;
+    public long [] ids;
+
+    public PlaybackQueueDelta() {
+    }
+
+    private PlaybackQueueDelta(Parcel in) {
+        previousVersion = in.readLong();
+        version = in.readLong();
+        type = in.readInt();
+        from = in.readInt();
+        to = in.readInt();
+        ids = in.createLongArray();
+    }
+
+    /**
+     * Returns the first 'length' ids of 'queue' with the change made to
+     * them, which may be 'queue' itself, or null if the change doesn't fit
+     * them, which means they weren't a copy of the queue the change was
+     * made to.
+     */
+    public long [] applyTo(long [] queue, int length) {
+        long [] result;
+        switch (type) {
+            case INSERT:
+                if (ids == null || from < 0 || from > length) {
+                    return null;
+                }
+                result = new long[length + ids.length];
+                System.arraycopy(queue, 0, result, 0, from);
+                System.arraycopy(ids, 0, result, from, ids.length);
+                System.arraycopy(queue, from, result, from + ids.length, length - from);
+                return result;
+            case REMOVE:
+                if (from < 0 || to < from || to >= length) {
+                    return null;
+                }
+                result = new long[length - (to - from + 1)];
+                System.arraycopy(queue, 0, result, 0, from);
+                System.arraycopy(queue, to + 1, result, from, length - to - 1);
+                return result;
+            case MOVE:
+                if (from < 0 || from >= length || to < 0 || to >= length) {
+                    return null;
+                }
+                result = queue;
+                if (length != queue.length) {
+                    result = new long[length];
+                    System.arraycopy(queue, 0, result, 0, length);
+                }
+                long id = result[from];
+                if (from < to) {
+                    System.arraycopy(result, from + 1, result, from, to - from);
+                } else if (to < from) {
+                    System.arraycopy(result, to, result, to + 1, from - to);
+                }
+                result[to] = id;
+                return result;
+            case REMOVE_IDS:
+                if (ids == null) {
+                    return null;
+                }
+                LongHashSet set = new LongHashSet();
+                for (int i = 0; i < ids.length; i++) {
+                    if (ids[i] >= 0) {
+                        set.add(ids[i]);
+                    }
+                }
+                int kept = 0;
+                result = new long[length];
+                for (int i = 0; i < length; i++) {
+                    if (!set.contains(queue[i])) {
+                        result[kept++] = queue[i];
+                    }
+                }
+                if (kept == length) {
+                    return result;
+                }
+                long [] trimmed = new long[kept];
+                System.arraycopy(result, 0, trimmed, 0, kept);
+                return trimmed;
+            default:
+                return null;
+        }
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(previousVersion);
+        dest.writeLong(version);
+        dest.writeInt(type);
+        dest.writeInt(from);
+        dest.writeInt(to);
+        dest.writeLongArray(ids);
+    }
+
+    public static final Parcelable.Creator<PlaybackQueueDelta> CREATOR =
+            new Parcelable.Creator<PlaybackQueueDelta>() {
+        public PlaybackQueueDelta createFromParcel(Parcel in) {
+            return new PlaybackQueueDelta(in);
+        }
+
+        public PlaybackQueueDelta[] newArray(int size) {
+            return new PlaybackQueueDelta[size];
+        }
+    };
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * The state of the playback service at one point in time, so that clients
+ * can get everything they show with a single call, and get values that
+ * belong together.
+ *
+ * 'version' changes whenever anything but the playback position changes,
+ * so a client that remembers it can tell when it needs to redraw more than
+ * the progress.
+ *
+ * The position advances at 'rate' from when the snapshot was taken, so
+ * getPosition() can tell the position later on without asking again.
+ */
+public class PlaybackSnapshot implements Parcelable {
+    public long version;
+    public long audioId = -1;
+    public int queuePosition = -1;
+    public int queueLength;
+    public boolean playing;
+    public long position = -1;
+    // SystemClock.elapsedRealtime() when 'position' was read
+    public long timestamp;
+    // 1 if the position is advancing, 0 if not
+    public float rate;
+    public long duration = -1;
+    public String path;
+    public String trackName;
+    public String artistName;
+    public long artistId = -1;
+    public String albumName;
+    public long albumId = -1;
+    public int shuffleMode;
+    public int repeatMode;
+
+    public PlaybackSnapshot() {
+    }
+
+    private PlaybackSnapshot(Parcel in) {
+        version = in.readLong();
+        audioId = in.readLong();
+        queuePosition = in.readInt();
+        queueLength = in.readInt();
+        playing = in.readInt() != 0;
+        position = in.readLong();
+        timestamp = in.readLong();
+        rate = in.readFloat();
+        duration = in.readLong();
+        path = in.readString();
+        trackName = in.readString();
+        artistName = in.readString();
+        artistId = in.readLong();
+        albumName = in.readString();
+        albumId = in.readLong();
+        shuffleMode = in.readInt();
+        repeatMode = in.readInt();
+    }
+
+    /**
+     * Returns the position at 'now', in SystemClock.elapsedRealtime() time,
+     * assuming nothing changed since the snapshot was taken.
+     */
+    public long getPosition(long now) {
+        if (position < 0 || rate == 0) {
+            return position;
+        }
+        long pos = position + (long) ((now - timestamp) * rate);
+        if (duration > 0 && pos > duration) {
+            pos = duration;
+        }
+        return pos;
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(version);
+        dest.writeLong(audioId);
+        dest.writeInt(queuePosition);
+        dest.writeInt(queueLength);
+        dest.writeInt(playing ? 1 : 0);
+        dest.writeLong(position);
+        dest.writeLong(timestamp);
+        dest.writeFloat(rate);
+        dest.writeLong(duration);
+        dest.writeString(path);
+        dest.writeString(trackName);
+        dest.writeString(artistName);
+        dest.writeLong(artistId);
+        dest.writeString(albumName);
+        dest.writeLong(albumId);
+        dest.writeInt(shuffleMode);
+        dest.writeInt(repeatMode);
+    }
+
+    public static final Parcelable.Creator<PlaybackSnapshot> CREATOR =
+            new Parcelable.Creator<PlaybackSnapshot>() {
+        public PlaybackSnapshot createFromParcel(Parcel in) {
+            return new PlaybackSnapshot(in);
+        }
+
+        public PlaybackSnapshot[] newArray(int size) {
+            return new PlaybackSnapshot[size];
+        }
+    };
+}
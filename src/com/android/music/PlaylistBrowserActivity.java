@@ -31,7 +31,6 @@ import android.content.ServiceConnection;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.MergeCursor;
-import android.database.sqlite.SQLiteException;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Bundle;
@@ -109,10 +108,8 @@ public class PlaylistBrowserActivity extends ListActivity
                             } else if (id == PODCASTS_PLAYLIST) {
                                 playPodcasts();
                             } else if (id == ALL_SONGS_PLAYLIST) {
-                                long[] list = MusicUtils.getAllSongs(PlaylistBrowserActivity.this);
-                                if (list != null) {
-                                    MusicUtils.playAll(PlaylistBrowserActivity.this, list, 0);
-                                }
+                                MusicUtils.playCollection(PlaylistBrowserActivity.this,
+                                        CollectionQuery.allSongs(), 0, false);
                             } else {
                                 MusicUtils.playPlaylist(PlaylistBrowserActivity.this, id);
                             }
@@ -409,54 +406,14 @@ public class PlaylistBrowserActivity extends ListActivity
     }
 
     private void playRecentlyAdded() {
-        // do a query for all songs added in the last X weeks
-        int X = MusicUtils.getIntPref(this, "numweeks", 2) * (3600 * 24 * 7);
-        final String[] ccols = new String[] { MediaStore.Audio.Media._ID};
-        String where = MediaStore.MediaColumns.DATE_ADDED + ">" + (System.currentTimeMillis() / 1000 - X);
-        Cursor cursor = MusicUtils.query(this, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                ccols, where, null, MediaStore.Audio.Media.DEFAULT_SORT_ORDER);
-        
-        if (cursor == null) {
-            // Todo: show a message
-            return;
-        }
-        try {
-            int len = cursor.getCount();
-            long [] list = new long[len];
-            for (int i = 0; i < len; i++) {
-                cursor.moveToNext();
-                list[i] = cursor.getLong(0);
-            }
-            MusicUtils.playAll(this, list, 0);
-        } catch (SQLiteException ex) {
-        } finally {
-            cursor.close();
-        }
+        // play all songs added in the last X weeks
+        int X = MusicUtils.getIntPref(this, "numweeks", 2);
+        MusicUtils.playCollection(this, CollectionQuery.recentlyAdded(X), 0, false);
     }
 
     private void playPodcasts() {
-        // do a query for all files that are podcasts
-        final String[] ccols = new String[] { MediaStore.Audio.Media._ID};
-        Cursor cursor = MusicUtils.query(this, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                ccols, MediaStore.Audio.Media.IS_PODCAST + "=1",
-                null, MediaStore.Audio.Media.DEFAULT_SORT_ORDER);
-        
-        if (cursor == null) {
-            // Todo: show a message
-            return;
-        }
-        try {
-            int len = cursor.getCount();
-            long [] list = new long[len];
-            for (int i = 0; i < len; i++) {
-                cursor.moveToNext();
-                list[i] = cursor.getLong(0);
-            }
-            MusicUtils.playAll(this, list, 0);
-        } catch (SQLiteException ex) {
-        } finally {
-            cursor.close();
-        }
+        // play all files that are podcasts
+        MusicUtils.playCollection(this, CollectionQuery.podcasts(), 0, false);
     }
 
     
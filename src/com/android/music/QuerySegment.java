@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+/**
+ * Play queue contents defined by a query on the media database rather than
+ * by a list of ids. The query stays open, and the ids are read from it a
+ * window at a time as playback gets to them, so a queue of all songs costs
+ * no more memory than one of a single album, and it can be saved as the
+ * query alone.
+ *
+ * The results are those of the database at the time of the query; a new
+ * segment has to be made to pick up changes.
+ *
+ * A segment of all songs can be read from a snapshot of the LibraryIndex
+ * instead, which saves running the query at all.
+ *
+ * This class is not thread-safe. Once it's the source of a PlaybackQueue,
+ * it must only be read through the queue, which locks it.
+ */
+public class QuerySegment implements PlaybackQueue.Source {
+    private static final int WINDOW_SIZE = 256;
+
+    private final CollectionQuery mQuery;
+    private Cursor mCursor;
+    private LibraryIndex.Snapshot mSnapshot;
+    private int mSize;
+    private final long [] mWindow = new long[WINDOW_SIZE];
+    // queue position of mWindow[0]
+    private int mWindowStart;
+    private int mWindowLen;
+
+    /**
+     * Runs the query. If it fails, the segment is empty.
+     */
+    public QuerySegment(ContentResolver resolver, CollectionQuery query) {
+        mQuery = query;
+        mCursor = query.query(resolver);
+        mSize = mCursor != null ? mCursor.getCount() : 0;
+    }
+
+    /**
+     * Reads the ids from a snapshot of the library index, which the segment
+     * releases when it is released.
+     */
+    public QuerySegment(CollectionQuery query, LibraryIndex.Snapshot snapshot) {
+        mQuery = query;
+        mSnapshot = snapshot;
+        mSize = snapshot.size();
+    }
+
+    /**
+     * Returns whether the ids are read from the library index.
+     */
+    public boolean isFromIndex() {
+        return mSnapshot != null;
+    }
+
+    public CollectionQuery getQuery() {
+        return mQuery;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the id at 'index', or -1 if it couldn't be read, for
+     * example because the media provider went away.
+     */
+    public long get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+        if (mSnapshot != null) {
+            return mSnapshot.get(index);
+        }
+        if (index < mWindowStart || index >= mWindowStart + mWindowLen) {
+            fill(index);
+        }
+        int i = index - mWindowStart;
+        return i < mWindowLen ? mWindow[i] : -1;
+    }
+
+    public void release() {
+        if (mCursor != null) {
+            mCursor.close();
+            mCursor = null;
+        }
+        if (mSnapshot != null) {
+            mSnapshot.release();
+        }
+        mWindowStart = 0;
+        mWindowLen = 0;
+    }
+
+    // Reads the ids from 'index' on into the window. Playback mostly moves
+    // forward, so the window starts at the requested id.
+    private void fill(int index) {
+        mWindowStart = index;
+        mWindowLen = 0;
+        if (mCursor == null || !mCursor.moveToPosition(index)) {
+            return;
+        }
+        do {
+            mWindow[mWindowLen++] = mCursor.getLong(0);
+        } while (mWindowLen < WINDOW_SIZE && mCursor.moveToNext());
+    }
+}
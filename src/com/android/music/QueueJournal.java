@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of edits to the play queue.
+ *
+ * Instead of rewriting the whole queue after every change, the service
+ * records each edit here as a small binary record, and only occasionally
+ * writes a complete snapshot. Every journal carries a generation number.
+ * A snapshot is tagged with the generation of the journal that continues
+ * it, so on startup the snapshot is loaded and then all journals of that
+ * generation or newer are replayed on top of it.
+ *
+ * Compaction works by rotate()-ing the journal, which moves the current
+ * file aside and starts a new generation, writing a snapshot of the queue
+ * as of the rotation, and then deleting the old file. The snapshot is
+ * overwritten in place, but a LongArrayStore rolls back a commit that
+ * didn't complete, so if anything goes wrong halfway, the previous
+ * snapshot plus both journals still describe the queue. Once the new
+ * snapshot is committed, the old journal is no longer replayed, since its
+ * generation is older than the snapshot's.
+ *
+ * Records are buffered in memory until they're handed out by takePending(),
+ * so the caller can decide which generation they belong to and write them
+ * with append() later, without blocking whoever is logging edits. Logging
+ * and takePending() may be called from any thread; the methods dealing with
+ * the files must only be called by one thread at a time.
+ */
+public class QueueJournal {
+    private static final String TAG = "QueueJournal";
+
+    private static final int MAGIC = 0x4d53514a; // "MSQJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private static final byte OP_INSERT = 1;
+    private static final byte OP_MOVE = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_REPLACE = 4;
+
+    /**
+     * Receives the edits when a journal is replayed.
+     */
+    public interface Target {
+        void insert(long [] list, int position);
+        void move(int from, int to);
+        void remove(int first, int last);
+        void replace(long [] list);
+    }
+
+    private final File mFile;
+    private final File mOldFile;
+    private long mGeneration = -1;
+    private FileOutputStream mOut;
+    private long mFileSize;
+    private final ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    private final DataOutputStream mPendingData = new DataOutputStream(mPending);
+    private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream();
+    private final DataOutputStream mRecordData = new DataOutputStream(mRecord);
+    private final CRC32 mCrc = new CRC32();
+
+    public QueueJournal(File file) {
+        mFile = file;
+        mOldFile = new File(file.getPath() + ".old");
+    }
+
+    /**
+     * Returns the generation records are currently being appended to,
+     * or -1 if the journal hasn't been started yet.
+     */
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns the number of bytes written to the journal file.
+     */
+    public long size() {
+        return mFileSize;
+    }
+
+    public synchronized void logInsert(long [] list, int position) {
+        try {
+            mRecordData.writeByte(OP_INSERT);
+            mRecordData.writeInt(position);
+            writeList(list);
+        } catch (IOException ex) {
+            // can't happen, we're writing to memory
+        }
+        endRecord();
+    }
+
+    public synchronized void logMove(int from, int to) {
+        try {
+            mRecordData.writeByte(OP_MOVE);
+            mRecordData.writeInt(from);
+            mRecordData.writeInt(to);
+        } catch (IOException ex) {
+        }
+        endRecord();
+    }
+
+    public synchronized void logRemove(int first, int last) {
+        try {
+            mRecordData.writeByte(OP_REMOVE);
+            mRecordData.writeInt(first);
+            mRecordData.writeInt(last);
+        } catch (IOException ex) {
+        }
+        endRecord();
+    }
+
+    public synchronized void logReplace(long [] list, int len) {
+        try {
+            mRecordData.writeByte(OP_REPLACE);
+            mRecordData.writeInt(len);
+            for (int i = 0; i < len; i++) {
+                mRecordData.writeLong(list[i]);
+            }
+        } catch (IOException ex) {
+        }
+        endRecord();
+    }
+
+    private void writeList(long [] list) throws IOException {
+        mRecordData.writeInt(list.length);
+        for (int i = 0; i < list.length; i++) {
+            mRecordData.writeLong(list[i]);
+        }
+    }
+
+    // Each record is framed by its length and followed by a CRC, so that
+    // a record that was only partially written can be recognized on replay.
+    private void endRecord() {
+        byte [] record = mRecord.toByteArray();
+        mRecord.reset();
+        mCrc.reset();
+        mCrc.update(record, 0, record.length);
+        try {
+            mPendingData.writeInt(record.length);
+            mPendingData.write(record, 0, record.length);
+            mPendingData.writeInt((int) mCrc.getValue());
+        } catch (IOException ex) {
+        }
+    }
+
+    /**
+     * Returns the records logged since the last call, and forgets them.
+     * Records logged afterwards end up in whatever generation is current
+     * when they're appended, so a snapshot taken at this point needs the
+     * returned records but none of the later ones.
+     */
+    public synchronized byte [] takePending() {
+        byte [] records = mPending.toByteArray();
+        mPending.reset();
+        return records;
+    }
+
+    /**
+     * Appends records obtained from takePending() to the journal file.
+     */
+    public void append(byte [] records) {
+        if (records.length == 0 || mOut == null) {
+            return;
+        }
+        try {
+            mOut.write(records);
+            mFileSize += records.length;
+        } catch (IOException ex) {
+            Log.e(TAG, "couldn't write " + mFile + ": " + ex);
+        }
+    }
+
+    /**
+     * Discards the journal (including a rotated one) and starts a new,
+     * empty one with the given generation. Use this after writing a
+     * snapshot that covers all edits so far.
+     */
+    public void reset(long generation) {
+        close();
+        mOldFile.delete();
+        start(generation);
+    }
+
+    /**
+     * Moves the current journal aside and starts a new one. This replaces a
+     * previously rotated journal, so it must not be called again before
+     * the snapshot for the previous rotation has been written.
+     */
+    public void rotate(long generation) {
+        close();
+        mOldFile.delete();
+        if (!mFile.renameTo(mOldFile)) {
+            Log.e(TAG, "couldn't rotate " + mFile);
+        }
+        start(generation);
+    }
+
+    /**
+     * Deletes the journal moved aside by rotate(), once a snapshot covering
+     * it has been written.
+     */
+    public void deleteOld() {
+        mOldFile.delete();
+    }
+
+    public void close() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException ex) {
+            }
+            mOut = null;
+        }
+        mGeneration = -1;
+    }
+
+    private void start(long generation) {
+        try {
+            mOut = new FileOutputStream(mFile);
+            DataOutputStream header = new DataOutputStream(mOut);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeLong(generation);
+            header.flush();
+            mFileSize = HEADER_SIZE;
+            mGeneration = generation;
+        } catch (IOException ex) {
+            Log.e(TAG, "couldn't create " + mFile + ": " + ex);
+            close();
+        }
+    }
+
+    /**
+     * Replays every journal with a generation of at least 'generation' into
+     * 'target', oldest first, and then continues appending to the newest one.
+     * @return true if the journals could be read. If false is returned, the
+     * edits since the snapshot (if any) are lost, and the caller should write
+     * a new snapshot and reset() the journal.
+     */
+    public boolean replay(long generation, Target target) {
+        close();
+        synchronized (this) {
+            // these edits were made to the queue that's being replaced
+            mPending.reset();
+        }
+        long oldGeneration = readGeneration(mOldFile);
+        if (oldGeneration >= generation) {
+            if (replayFile(mOldFile, target) < 0) {
+                return false;
+            }
+        }
+        long currentGeneration = readGeneration(mFile);
+        if (currentGeneration < generation) {
+            // the journal is older than the snapshot, or missing
+            return false;
+        }
+        long good = replayFile(mFile, target);
+        if (good < 0) {
+            return false;
+        }
+        try {
+            // drop a partially written record at the end, if any
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.setLength(good);
+            } finally {
+                raf.close();
+            }
+            mOut = new FileOutputStream(mFile, true);
+            mFileSize = good;
+            mGeneration = currentGeneration;
+        } catch (IOException ex) {
+            Log.e(TAG, "couldn't reopen " + mFile + ": " + ex);
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    private static long readGeneration(File file) {
+        if (!file.exists()) {
+            return -1;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return -1;
+            }
+            return in.readLong();
+        } catch (IOException ex) {
+            return -1;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Replays the records in the given file.
+     * @return the file offset just past the last intact record, or -1 if
+     * the file couldn't be read.
+     */
+    private long replayFile(File file, Target target) {
+        DataInputStream in = null;
+        long good = HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            in.skipBytes(HEADER_SIZE);
+            while (true) {
+                int len;
+                try {
+                    len = in.readInt();
+                } catch (EOFException ex) {
+                    break;
+                }
+                if (len <= 0 || len > 64 * 1024 * 1024) {
+                    Log.w(TAG, "bad record length in " + file);
+                    break;
+                }
+                byte [] record = new byte[len];
+                int sum;
+                try {
+                    in.readFully(record);
+                    sum = in.readInt();
+                } catch (EOFException ex) {
+                    Log.w(TAG, "truncated record in " + file);
+                    break;
+                }
+                crc.reset();
+                crc.update(record, 0, len);
+                if (sum != (int) crc.getValue()) {
+                    Log.w(TAG, "bad record in " + file);
+                    break;
+                }
+                apply(record, target);
+                good += len + 8;
+            }
+            return good;
+        } catch (IOException ex) {
+            Log.e(TAG, "couldn't read " + file + ": " + ex);
+            return -1;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    private static void apply(byte [] record, Target target) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte op = in.readByte();
+        switch (op) {
+            case OP_INSERT: {
+                int position = in.readInt();
+                target.insert(readList(in), position);
+                break;
+            }
+            case OP_MOVE: {
+                int from = in.readInt();
+                int to = in.readInt();
+                target.move(from, to);
+                break;
+            }
+            case OP_REMOVE: {
+                int first = in.readInt();
+                int last = in.readInt();
+                target.remove(first, last);
+                break;
+            }
+            case OP_REPLACE:
+                target.replace(readList(in));
+                break;
+            default:
+                throw new IOException("unknown journal op " + op);
+        }
+    }
+
+    private static long [] readList(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        long [] list = new long[len];
+        for (int i = 0; i < len; i++) {
+            list[i] = in.readLong();
+        }
+        return list;
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The order in which the tracks of a shuffled queue are played.
+ *
+ * This is a Fisher-Yates shuffle of the queue positions that is only
+ * carried out as far as it's needed: picking the next track swaps a random
+ * not yet played position to the front of the unplayed part of the
+ * permutation. Only positions that were moved away from their own slot are
+ * stored (in an IntIntMap), so both time and memory per track are constant,
+ * and a pass over the queue plays every track exactly once.
+ *
+ * The tracks played so far are kept in order, with a cursor at the current
+ * one, so going back and forth through them doesn't pick new tracks. The
+ * order of the unplayed part is irrelevant, which is what makes it possible
+ * to follow edits of the queue by adjusting the played tracks and rebuilding
+ * the map from them.
+ *
+ * This class is not thread-safe.
+ */
+public class ShuffleOrder {
+    // the queue positions played so far, in play order
+    private int [] mOrder = new int[16];
+    private int mPlayed;
+    // index into mOrder of the current track, or -1
+    private int mCursor = -1;
+    private int mSize;
+    // maps slots of the unplayed part of the permutation to the
+    // positions they hold, if different from the slot itself
+    private final IntIntMap mSwaps = new IntIntMap();
+    // maps played positions to their index in mOrder
+    private final IntIntMap mPlayedIndex = new IntIntMap();
+    // whether the first unplayed slot holds the track peek() picked
+    private boolean mPeeked;
+    // lowest index in mOrder that changed since markClean()
+    private int mDirtyFrom = 0;
+    private final Random mRandom = new Random();
+
+    /**
+     * Starts a new pass over a queue of 'size' tracks.
+     */
+    public void reset(int size) {
+        mPlayed = 0;
+        mCursor = -1;
+        mSize = size;
+        mSwaps.clear();
+        mPlayedIndex.clear();
+        mPeeked = false;
+        mDirtyFrom = 0;
+        if (mOrder.length > 1024) {
+            mOrder = new int[16];
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the number of tracks played in this pass.
+     */
+    public int getPlayedCount() {
+        return mPlayed;
+    }
+
+    /**
+     * Returns the i-th played track, in play order.
+     */
+    public int getPlayed(int i) {
+        if (i < 0 || i >= mPlayed) {
+            throw new IndexOutOfBoundsException("index " + i + ", played " + mPlayed);
+        }
+        return mOrder[i];
+    }
+
+    /**
+     * Returns the index of the current track among the played tracks, or -1.
+     */
+    public int getCursor() {
+        return mCursor;
+    }
+
+    /**
+     * Moves on to the next track: the one after the current track in play
+     * order if the user went back before, otherwise a random unplayed one.
+     * If peek() picked a new track, that is the one moved to.
+     * @param avoid a position that shouldn't be picked, unless it's the only
+     * one left. Useful to not repeat the last track at the start of a pass.
+     * @return the queue position of the track, or -1 if every track has
+     * been played in this pass.
+     */
+    public int next(int avoid) {
+        if (mCursor + 1 < mPlayed) {
+            return mOrder[++mCursor];
+        }
+        int left = mSize - mPlayed;
+        if (left <= 0) {
+            return -1;
+        }
+        int j = mPeeked ? mPlayed : pick(avoid);
+        mPeeked = false;
+        int position = slot(j);
+        // swap slot j with the first unplayed slot, which then becomes played
+        setSlot(j, slot(mPlayed));
+        mSwaps.remove(mPlayed);
+        append(position);
+        mCursor = mPlayed - 1;
+        return position;
+    }
+
+    /**
+     * Returns the track next() will move to, without moving there. If that
+     * is a new one, it's picked now, but stays unplayed until next() gets
+     * there; jumping to another track or editing the queue gives it back.
+     * @return its queue position, or -1 if every track has been played in
+     * this pass.
+     */
+    public int peek() {
+        if (mCursor + 1 < mPlayed) {
+            return mOrder[mCursor + 1];
+        }
+        if (mSize - mPlayed <= 0) {
+            return -1;
+        }
+        if (!mPeeked) {
+            // keep it in the first unplayed slot, where next() takes it from
+            int j = pick(-1);
+            int position = slot(j);
+            setSlot(j, slot(mPlayed));
+            setSlot(mPlayed, position);
+            mPeeked = true;
+        }
+        return slot(mPlayed);
+    }
+
+    // Returns a random unplayed slot, avoiding the one holding 'avoid'
+    // unless it's the only one left.
+    private int pick(int avoid) {
+        int left = mSize - mPlayed;
+        int j = mPlayed + mRandom.nextInt(left);
+        if (slot(j) == avoid && left > 1) {
+            j = mPlayed + (j - mPlayed + 1 + mRandom.nextInt(left - 1)) % left;
+        }
+        return j;
+    }
+
+    /**
+     * Goes back to the track played before the current one.
+     * @return its queue position, or -1 if the current track is the first.
+     */
+    public int prev() {
+        if (mCursor <= 0) {
+            return -1;
+        }
+        return mOrder[--mCursor];
+    }
+
+    /**
+     * Makes the track at 'position' the current one. If it wasn't played
+     * in this pass yet, it's added to the played tracks.
+     */
+    public void jumpTo(int position) {
+        if (position < 0 || position >= mSize) {
+            return;
+        }
+        if (mCursor >= 0 && mOrder[mCursor] == position) {
+            return;
+        }
+        int i = mPlayedIndex.get(position, -1);
+        if (i >= 0) {
+            mCursor = i;
+            return;
+        }
+        append(position);
+        mCursor = mPlayed - 1;
+        rebuild();
+    }
+
+    /**
+     * Adjusts for 'count' tracks inserted into the queue at 'position'.
+     * The new tracks count as unplayed.
+     */
+    public void insert(int position, int count) {
+        if (position >= mSize) {
+            // the new slots and positions are the same, nothing moves
+            mSize += count;
+            return;
+        }
+        for (int i = 0; i < mPlayed; i++) {
+            if (mOrder[i] >= position) {
+                mOrder[i] += count;
+            }
+        }
+        mSize += count;
+        mDirtyFrom = 0;
+        rebuild();
+    }
+
+    /**
+     * Adjusts for the tracks from 'first' through 'last' being removed
+     * from the queue. If the current track is removed, the track played
+     * before it becomes the current one.
+     */
+    public void remove(int first, int last) {
+        int count = last - first + 1;
+        int n = 0;
+        int cursor = mCursor;
+        for (int i = 0; i < mPlayed; i++) {
+            int position = mOrder[i];
+            if (position >= first && position <= last) {
+                if (i <= mCursor) {
+                    cursor--;
+                }
+                continue;
+            }
+            mOrder[n++] = position > last ? position - count : position;
+        }
+        mPlayed = n;
+        mCursor = cursor;
+        mSize -= count;
+        mDirtyFrom = 0;
+        rebuild();
+    }
+
+    /**
+     * Adjusts for the tracks at 'positions', in ascending order, being
+     * removed from the queue, the same way remove(int, int) does for a
+     * range.
+     */
+    public void remove(int [] positions) {
+        int n = 0;
+        int cursor = mCursor;
+        for (int i = 0; i < mPlayed; i++) {
+            int position = mOrder[i];
+            int k = Arrays.binarySearch(positions, position);
+            if (k >= 0) {
+                if (i <= mCursor) {
+                    cursor--;
+                }
+                continue;
+            }
+            // moves down by the number of removed tracks before it
+            mOrder[n++] = position - (-k - 1);
+        }
+        mPlayed = n;
+        mCursor = cursor;
+        mSize -= positions.length;
+        mDirtyFrom = 0;
+        rebuild();
+    }
+
+    /**
+     * Adjusts for the track at 'from' being moved to 'to'.
+     */
+    public void move(int from, int to) {
+        for (int i = 0; i < mPlayed; i++) {
+            int position = mOrder[i];
+            if (position == from) {
+                mOrder[i] = to;
+            } else if (from < to && position > from && position <= to) {
+                mOrder[i]--;
+            } else if (to < from && position >= to && position < from) {
+                mOrder[i]++;
+            }
+        }
+        mDirtyFrom = 0;
+        rebuild();
+    }
+
+    /**
+     * Restores a saved state.
+     * @return false if the state doesn't fit a queue of 'size' tracks, in
+     * which case a new pass is started.
+     */
+    public boolean restore(int [] order, int played, int cursor, int size) {
+        reset(size);
+        if (played > size || cursor < -1 || cursor >= played) {
+            return false;
+        }
+        for (int i = 0; i < played; i++) {
+            int position = order[i];
+            if (position < 0 || position >= size || mPlayedIndex.containsKey(position)) {
+                reset(size);
+                return false;
+            }
+            append(position);
+        }
+        mCursor = cursor;
+        rebuild();
+        return true;
+    }
+
+    /**
+     * Returns the lowest index of a played track that changed since the last
+     * call, or Integer.MAX_VALUE if none did, so that saving the state only
+     * needs to write what changed.
+     */
+    public int markClean() {
+        int from = mDirtyFrom;
+        mDirtyFrom = Integer.MAX_VALUE;
+        return from;
+    }
+
+    private void append(int position) {
+        if (mPlayed == mOrder.length) {
+            int [] order = new int[mOrder.length * 2];
+            System.arraycopy(mOrder, 0, order, 0, mPlayed);
+            mOrder = order;
+        }
+        mOrder[mPlayed] = position;
+        mPlayedIndex.put(position, mPlayed);
+        if (mPlayed < mDirtyFrom) {
+            mDirtyFrom = mPlayed;
+        }
+        mPlayed++;
+    }
+
+    private int slot(int j) {
+        return mSwaps.get(j, j);
+    }
+
+    private void setSlot(int j, int position) {
+        if (position == j) {
+            mSwaps.remove(j);
+        } else {
+            mSwaps.put(j, position);
+        }
+    }
+
+    // Recreates the unplayed part of the permutation from the played tracks:
+    // every slot past the played ones holds its own position, except for
+    // slots whose position was played; those get the unplayed positions
+    // from the front instead.
+    private void rebuild() {
+        mSwaps.clear();
+        mPlayedIndex.clear();
+        mPeeked = false;
+        for (int i = 0; i < mPlayed; i++) {
+            mPlayedIndex.put(mOrder[i], i);
+        }
+        int low = 0;
+        for (int i = 0; i < mPlayed; i++) {
+            int position = mOrder[i];
+            if (position >= mPlayed) {
+                while (mPlayedIndex.containsKey(low)) {
+                    low++;
+                }
+                mSwaps.put(position, low++);
+            }
+        }
+    }
+}
@@ -24,6 +24,11 @@ import android.util.Log;
 /**
  * A variant of MergeCursor that sorts the cursors being merged. If decent
  * performance is ever obtained, it can be put back under android.database.
+ *
+ * The cursors are merged once, up front, into a table that holds the
+ * cursor and row of every position, so moving to any position is a
+ * lookup, whichever direction the list is scrolled in. The table is
+ * merged again after the cursors change.
  */
 public class SortCursor extends AbstractCursor
 {
@@ -31,11 +36,11 @@ public class SortCursor extends AbstractCursor
     private Cursor mCursor; // updated in onMove
     private Cursor[] mCursors;
     private int [] mSortColumns;
-    private final int ROWCACHESIZE = 64;
-    private int mRowNumCache[] = new int[ROWCACHESIZE];
-    private int mCursorCache[] = new int[ROWCACHESIZE];
-    private int mCurRowNumCache[][];
-    private int mLastCacheHit = -1;
+    // For each position, the row in its cursor, shifted left by
+    // mCursorBits, combined with the index of the cursor. Null when the
+    // cursors changed since it was merged.
+    private int [] mTable;
+    private int mCursorBits;
 
     private DataSetObserver mObserver = new DataSetObserver() {
 
@@ -44,11 +49,13 @@ public class SortCursor extends AbstractCursor
             // Reset our position so the optimizations in move-related code
             // don't screw us over
             mPos = -1;
+            mTable = null;
         }
 
         @Override
         public void onInvalidated() {
             mPos = -1;
+            mTable = null;
         }
     };
 
@@ -64,27 +71,14 @@ public class SortCursor extends AbstractCursor
             // Register ourself as a data set observer
             mCursors[i].registerDataSetObserver(mObserver);
 
-            mCursors[i].moveToFirst();
-
             // We don't catch the exception
             mSortColumns[i] = mCursors[i].getColumnIndexOrThrow(sortcolumn);
         }
-        mCursor = null;
-        String smallest = "";
-        for (int j = 0 ; j < length; j++) {
-            if (mCursors[j] == null || mCursors[j].isAfterLast())
-                continue;
-            String current = mCursors[j].getString(mSortColumns[j]);
-            if (mCursor == null || current.compareToIgnoreCase(smallest) < 0) {
-                smallest = current;
-                mCursor = mCursors[j];
-            }
-        }
-
-        for (int i = mRowNumCache.length - 1; i >= 0; i--) {
-            mRowNumCache[i] = -2;
+        while ((1 << mCursorBits) < length) {
+            mCursorBits++;
         }
-        mCurRowNumCache = new int[ROWCACHESIZE][length];
+        mCursor = null;
+        merge();
     }
 
     @Override
@@ -103,82 +97,107 @@ public class SortCursor extends AbstractCursor
     @Override
     public boolean onMove(int oldPosition, int newPosition)
     {
-        if (oldPosition == newPosition)
-            return true;
-
-        /* Find the right cursor
-         * Because the client of this cursor (the listadapter/view) tends
-         * to jump around in the cursor somewhat, a simple cache strategy
-         * is used to avoid having to search all cursors from the start.
-         * TODO: investigate strategies for optimizing random access and
-         * reverse-order access.
-         */
-
-        int cache_entry = newPosition % ROWCACHESIZE;
-
-        if (mRowNumCache[cache_entry] == newPosition) {
-            int which = mCursorCache[cache_entry];
-            mCursor = mCursors[which];
-            if (mCursor == null) {
-                Log.w(TAG, "onMove: cache results in a null cursor.");
-                return false;
-            }
-            mCursor.moveToPosition(mCurRowNumCache[cache_entry][which]);
-            mLastCacheHit = cache_entry;
-            return true;
+        if (mTable == null) {
+            merge();
+        }
+        if (newPosition < 0 || newPosition >= mTable.length) {
+            mCursor = null;
+            return false;
         }
+        int entry = mTable[newPosition];
+        mCursor = mCursors[entry & ((1 << mCursorBits) - 1)];
+        if (mCursor == null) {
+            Log.w(TAG, "onMove: table results in a null cursor.");
+            return false;
+        }
+        return mCursor.moveToPosition(entry >>> mCursorBits);
+    }
 
-        mCursor = null;
+    /**
+     * Builds the table by merging the cursors, which are each sorted
+     * already. The cursors whose next row comes first are kept in a heap,
+     * so each position takes O(log k) comparisons for k cursors.
+     */
+    private void merge() {
         int length = mCursors.length;
-
-        if (mLastCacheHit >= 0) {
-            for (int i = 0; i < length; i++) {
-                if (mCursors[i] == null) continue;
-                mCursors[i].moveToPosition(mCurRowNumCache[mLastCacheHit][i]);
+        int [] heap = new int[length];
+        String [] keys = new String[length];
+        int heapSize = 0;
+        for (int i = 0; i < length; i++) {
+            if (mCursors[i] != null && mCursors[i].moveToFirst()) {
+                keys[i] = key(i);
+                heap[heapSize++] = i;
+                siftUp(heap, heapSize - 1, keys);
             }
         }
-
-        if (newPosition < oldPosition || oldPosition == -1) {
-            for (int i = 0 ; i < length; i++) {
-                if (mCursors[i] == null) continue;
-                mCursors[i].moveToFirst();
+        int [] table = new int[getCount()];
+        int n = 0;
+        while (heapSize > 0 && n < table.length) {
+            int which = heap[0];
+            Cursor c = mCursors[which];
+            table[n++] = (c.getPosition() << mCursorBits) | which;
+            if (c.moveToNext()) {
+                keys[which] = key(which);
+            } else {
+                heap[0] = heap[--heapSize];
             }
-            oldPosition = 0;
+            siftDown(heap, heapSize, keys);
         }
-        if (oldPosition < 0) {
-            oldPosition = 0;
+        if (n < table.length) {
+            // a cursor had fewer rows than it said
+            int [] shorter = new int[n];
+            System.arraycopy(table, 0, shorter, 0, n);
+            table = shorter;
         }
+        mTable = table;
+    }
 
-        // search forward to the new position
-        int smallestIdx = -1;
-        for(int i = oldPosition; i <= newPosition; i++) {
-            String smallest = "";
-            smallestIdx = -1;
-            for (int j = 0 ; j < length; j++) {
-                if (mCursors[j] == null || mCursors[j].isAfterLast()) {
-                    continue;
-                }
-                String current = mCursors[j].getString(mSortColumns[j]);
-                if (smallestIdx < 0 || current.compareToIgnoreCase(smallest) < 0) {
-                    smallest = current;
-                    smallestIdx = j;
-                }
-            }
-            if (i == newPosition) break;
-            if (mCursors[smallestIdx] != null) {
-                mCursors[smallestIdx].moveToNext();
+    private String key(int which) {
+        String key = mCursors[which].getString(mSortColumns[which]);
+        return key != null ? key : "";
+    }
+
+    // Whether cursor 'a' goes before cursor 'b'. Equal rows are taken
+    // from the earlier cursor first.
+    private static boolean before(int a, int b, String [] keys) {
+        int cmp = keys[a].compareToIgnoreCase(keys[b]);
+        return cmp < 0 || (cmp == 0 && a < b);
+    }
+
+    private static void siftUp(int [] heap, int i, String [] keys) {
+        int which = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(which, heap[parent], keys)) {
+                break;
             }
+            heap[i] = heap[parent];
+            i = parent;
         }
-        mCursor = mCursors[smallestIdx];
-        mRowNumCache[cache_entry] = newPosition;
-        mCursorCache[cache_entry] = smallestIdx;
-        for (int i = 0; i < length; i++) {
-            if (mCursors[i] != null) {
-                mCurRowNumCache[cache_entry][i] = mCursors[i].getPosition();
+        heap[i] = which;
+    }
+
+    private static void siftDown(int [] heap, int size, String [] keys) {
+        if (size == 0) {
+            return;
+        }
+        int which = heap[0];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && before(heap[child + 1], heap[child], keys)) {
+                child++;
             }
+            if (!before(heap[child], which, keys)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
         }
-        mLastCacheHit = -1;
-        return true;
+        heap[i] = which;
     }
 
     @Override
@@ -63,7 +63,6 @@ import android.widget.TextView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 
 import java.text.Collator;
-import java.util.Arrays;
 
 public class TrackBrowserActivity extends ListActivity
         implements View.OnCreateContextMenuListener, MusicUtils.Defs, ServiceConnection
@@ -78,10 +77,10 @@ public class TrackBrowserActivity extends ListActivity
 
 
     private static final String LOGTAG = "TrackBrowser";
+    private static final int NOW_PLAYING_CACHE_SIZE = 512;
 
     private String[] mCursorCols;
     private String[] mPlaylistMemberCols;
-    private boolean mDeletedOneRow = false;
     private boolean mEditMode = false;
     private String mCurrentTrackName;
     private String mCurrentAlbumName;
@@ -101,6 +100,9 @@ public class TrackBrowserActivity extends ListActivity
     private static int mLastListPosFine = -1;
     private boolean mUseLastListPos = false;
     private ServiceToken mToken;
+    // rows of the now playing list by track id; see NowPlayingCursor
+    private final LongLruCache<NowPlayingRow> mNowPlayingRows =
+            new LongLruCache<NowPlayingRow>(NOW_PLAYING_CACHE_SIZE);
 
     public TrackBrowserActivity()
     {
@@ -329,6 +331,8 @@ public class TrackBrowserActivity extends ListActivity
                     Intent.ACTION_MEDIA_SCANNER_FINISHED.equals(action)) {
                 MusicUtils.setSpinnerState(TrackBrowserActivity.this);
             }
+            // the tracks may have changed, or come back
+            mNowPlayingRows.clear();
             mReScanHandler.sendEmptyMessage(0);
         }
     };
@@ -527,7 +531,6 @@ public class TrackBrowserActivity extends ListActivity
                 c.moveItem(from, to);
                 ((TrackListAdapter)getListAdapter()).notifyDataSetChanged();
                 getListView().invalidateViews();
-                mDeletedOneRow = true;
             } else {
                 // update a saved playlist
                 MediaStore.Audio.Playlists.Members.moveItem(getContentResolver(),
@@ -549,15 +552,6 @@ public class TrackBrowserActivity extends ListActivity
             Log.d(LOGTAG, "No view when removing playlist item " + which);
             return;
         }
-        try {
-            if (MusicUtils.sService != null
-                    && which != MusicUtils.sService.getQueuePosition()) {
-                mDeletedOneRow = true;
-            }
-        } catch (RemoteException e) {
-            // Service died, so nothing playing.
-            mDeletedOneRow = true;
-        }
         v.setVisibility(View.GONE);
         mTrackList.invalidateViews();
         if (mTrackCursor instanceof NowPlayingCursor) {
@@ -579,6 +573,7 @@ public class TrackBrowserActivity extends ListActivity
     private BroadcastReceiver mTrackListListener = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            MusicUtils.syncNowPlaying(intent);
             getListView().invalidateViews();
             if (!mEditMode) {
                 MusicUtils.updateNowPlaying(TrackBrowserActivity.this);
@@ -589,16 +584,10 @@ public class TrackBrowserActivity extends ListActivity
     private BroadcastReceiver mNowPlayingListener = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            MusicUtils.syncNowPlaying(intent);
             if (intent.getAction().equals(MediaPlaybackService.META_CHANGED)) {
                 getListView().invalidateViews();
             } else if (intent.getAction().equals(MediaPlaybackService.QUEUE_CHANGED)) {
-                if (mDeletedOneRow) {
-                    // This is the notification for a single row that was
-                    // deleted previously, which is already reflected in
-                    // the UI.
-                    mDeletedOneRow = false;
-                    return;
-                }
                 // The service could disappear while the broadcast was in flight,
                 // so check to see if it's still valid
                 if (MusicUtils.sService == null) {
@@ -606,6 +595,19 @@ public class TrackBrowserActivity extends ListActivity
                     return;
                 }
                 if (mAdapter != null) {
+                    if (mTrackCursor instanceof NowPlayingCursor) {
+                        // Make the changes to the list that we have, which
+                        // does nothing if they were our own and are already
+                        // reflected in the UI.
+                        NowPlayingCursor c = (NowPlayingCursor) mTrackCursor;
+                        c.updateQueue(intent.getLongExtra("queueversion", -1));
+                        if (c.getCount() == 0) {
+                            finish();
+                            return;
+                        }
+                        mAdapter.notifyDataSetChanged();
+                        return;
+                    }
                     Cursor c = new NowPlayingCursor(MusicUtils.sService, mCursorCols);
                     if (c.getCount() == 0) {
                         finish();
@@ -798,12 +800,6 @@ public class TrackBrowserActivity extends ListActivity
 
             // Work around bug 902971. To get quick visual feedback
             // of the deletion of the item, hide the selected view.
-            try {
-                if (curpos != MusicUtils.sService.getQueuePosition()) {
-                    mDeletedOneRow = true;
-                }
-            } catch (RemoteException ex) {
-            }
             View v = mTrackList.getSelectedView();
             v.setVisibility(View.GONE);
             mTrackList.invalidateViews();
@@ -841,7 +837,6 @@ public class TrackBrowserActivity extends ListActivity
             c.moveItem(curpos, up ? curpos - 1 : curpos + 1);
             ((TrackListAdapter)getListAdapter()).notifyDataSetChanged();
             getListView().invalidateViews();
-            mDeletedOneRow = true;
             if (up) {
                 mTrackList.setSelection(curpos - 1);
             } else {
@@ -927,7 +922,6 @@ public class TrackBrowserActivity extends ListActivity
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         Intent intent;
-        Cursor cursor;
         switch (item.getItemId()) {
             case PLAY_ALL: {
                 MusicUtils.playAll(this, mTrackCursor);
@@ -940,14 +934,7 @@ public class TrackBrowserActivity extends ListActivity
                 
             case SHUFFLE_ALL:
                 // Should 'shuffle all' shuffle ALL, or only the tracks shown?
-                cursor = MusicUtils.query(this, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                        new String [] { MediaStore.Audio.Media._ID}, 
-                        MediaStore.Audio.Media.IS_MUSIC + "=1", null,
-                        MediaStore.Audio.Media.DEFAULT_SORT_ORDER);
-                if (cursor != null) {
-                    MusicUtils.shuffleAll(this, cursor);
-                    cursor.close();
-                }
+                MusicUtils.playCollection(this, CollectionQuery.allSongs(), -1, true);
                 return true;
                 
             case SAVE_AS_PLAYLIST:
@@ -1086,80 +1073,116 @@ public class TrackBrowserActivity extends ListActivity
         return ret;
     }
 
+    /**
+     * The columns of one track in the now playing list, as read from the
+     * media database.
+     */
+    private static class NowPlayingRow {
+        final String [] strings;
+        final long [] longs;
+
+        NowPlayingRow(Cursor c, int columns) {
+            strings = new String[columns];
+            longs = new long[columns];
+            for (int i = 0; i < columns; i++) {
+                if (!c.isNull(i)) {
+                    strings[i] = c.getString(i);
+                    longs[i] = c.getLong(i);
+                }
+            }
+        }
+
+        // a track that's no longer in the database
+        NowPlayingRow(int columns) {
+            strings = new String[columns];
+            longs = new long[columns];
+        }
+    }
+
+    /**
+     * The play queue as a cursor. The ids come from the service, and the
+     * other columns are read from the media database a window at a time,
+     * around the position that's asked for and mostly in the direction
+     * the list is scrolled in, so a large queue never needs one huge
+     * query. The rows are kept in mNowPlayingRows by track id, so scrolling
+     * back, reordering the queue or showing it again doesn't read them
+     * again.
+     */
     private class NowPlayingCursor extends AbstractCursor
     {
+        // positions read at a time: this many in the direction of the
+        // scroll, and a quarter as many behind
+        private static final int WINDOW_SIZE = 64;
+        // the most ids put into one IN (...) query
+        private static final int BATCH_SIZE = 100;
+        // how far ahead of the current position the next window is read
+        private static final int PREFETCH_DISTANCE = 16;
+
         public NowPlayingCursor(IMediaPlaybackService service, String [] cols)
         {
             mCols = cols;
             mService  = service;
+            mMissingRow = new NowPlayingRow(cols.length);
             makeNowPlayingCursor();
         }
         private void makeNowPlayingCursor() {
-            mCurrentPlaylistCursor = null;
+            mQueueVersion = -1;
             try {
-                mNowPlaying = mService.getQueue();
+                long version = mService.getQueueVersion();
+                mNowPlaying = MusicUtils.getQueue(mService);
+                // changes can only be applied to a copy of a known version
+                if (mService.getQueueVersion() == version) {
+                    mQueueVersion = version;
+                }
             } catch (RemoteException ex) {
                 mNowPlaying = new long[0];
             }
             mSize = mNowPlaying.length;
-            if (mSize == 0) {
-                return;
-            }
-
-            StringBuilder where = new StringBuilder();
-            where.append(MediaStore.Audio.Media._ID + " IN (");
-            for (int i = 0; i < mSize; i++) {
-                where.append(mNowPlaying[i]);
-                if (i < mSize - 1) {
-                    where.append(",");
-                }
-            }
-            where.append(")");
-
-            mCurrentPlaylistCursor = MusicUtils.query(TrackBrowserActivity.this,
-                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                    mCols, where.toString(), null, MediaStore.Audio.Media._ID);
+            mRow = null;
+            mCurPos = -1;
+        }
 
-            if (mCurrentPlaylistCursor == null) {
-                mSize = 0;
+        /**
+         * Brings the ids up to date with the queue, by making the changes
+         * the service made to it since they were read, or by reading them
+         * all again if those changes aren't all known any more. The rows
+         * are cached by id, so only tracks that are new to the list are
+         * read from the database.
+         * @param version The version of the queue that was changed to, or
+         * -1 if not known
+         */
+        public void updateQueue(long version) {
+            if (version != -1 && version == mQueueVersion) {
                 return;
             }
-            
-            int size = mCurrentPlaylistCursor.getCount();
-            mCursorIdxs = new long[size];
-            mCurrentPlaylistCursor.moveToFirst();
-            int colidx = mCurrentPlaylistCursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
-            for (int i = 0; i < size; i++) {
-                mCursorIdxs[i] = mCurrentPlaylistCursor.getLong(colidx);
-                mCurrentPlaylistCursor.moveToNext();
-            }
-            mCurrentPlaylistCursor.moveToFirst();
-            mCurPos = -1;
-            
-            // At this point we can verify the 'now playing' list we got
-            // earlier to make sure that all the items in there still exist
-            // in the database, and remove those that aren't. This way we
-            // don't get any blank items in the list.
+            PlaybackQueueDelta [] deltas = null;
             try {
-                int removed = 0;
-                for (int i = mNowPlaying.length - 1; i >= 0; i--) {
-                    long trackid = mNowPlaying[i];
-                    int crsridx = Arrays.binarySearch(mCursorIdxs, trackid);
-                    if (crsridx < 0) {
-                        //Log.i("@@@@@", "item no longer exists in db: " + trackid);
-                        removed += mService.removeTrack(trackid);
-                    }
-                }
-                if (removed > 0) {
-                    mNowPlaying = mService.getQueue();
-                    mSize = mNowPlaying.length;
-                    if (mSize == 0) {
-                        mCursorIdxs = null;
-                        return;
-                    }
+                if (mQueueVersion != -1) {
+                    deltas = mService.getQueueDeltas(mQueueVersion);
                 }
             } catch (RemoteException ex) {
-                mNowPlaying = new long[0];
+            }
+            long [] queue = mNowPlaying;
+            int size = mSize;
+            for (int i = 0; deltas != null && queue != null && i < deltas.length; i++) {
+                queue = deltas[i].applyTo(queue, size);
+                if (queue != null) {
+                    size = queue.length;
+                }
+            }
+            if (deltas == null || queue == null) {
+                makeNowPlayingCursor();
+            } else if (deltas.length > 0) {
+                mNowPlaying = queue;
+                mSize = size;
+                mQueueVersion = deltas[deltas.length - 1].version;
+            }
+            // the row at the cursor's position may be a different one now
+            int pos = getPosition();
+            if (pos >= 0 && pos < mSize) {
+                onMove(-1, pos);
+            } else {
+                mRow = null;
             }
         }
 
@@ -1172,38 +1195,123 @@ public class TrackBrowserActivity extends ListActivity
         @Override
         public boolean onMove(int oldPosition, int newPosition)
         {
-            if (oldPosition == newPosition)
-                return true;
-            
-            if (mNowPlaying == null || mCursorIdxs == null || newPosition >= mNowPlaying.length) {
+            if (mNowPlaying == null || newPosition < 0 || newPosition >= mSize) {
                 return false;
             }
-
-            // The cursor doesn't have any duplicates in it, and is not ordered
-            // in queue-order, so we need to figure out where in the cursor we
-            // should be.
-           
-            long newid = mNowPlaying[newPosition];
-            int crsridx = Arrays.binarySearch(mCursorIdxs, newid);
-            mCurrentPlaylistCursor.moveToPosition(crsridx);
+            int direction = newPosition >= oldPosition ? 1 : -1;
+            long id = mNowPlaying[newPosition];
+            NowPlayingRow row = mNowPlayingRows.get(id);
+            if (row == null) {
+                loadWindow(newPosition, direction);
+                row = mNowPlayingRows.get(id);
+                if (row == null) {
+                    // the query failed; show an empty row for now
+                    row = mMissingRow;
+                }
+            }
+            mRow = row;
             mCurPos = newPosition;
-            
+
+            // read the next window before the list gets there
+            int ahead = newPosition + direction * PREFETCH_DISTANCE;
+            if (ahead >= 0 && ahead < mSize && !mNowPlayingRows.containsKey(mNowPlaying[ahead])) {
+                loadWindow(ahead, direction);
+            }
             return true;
         }
 
+        // Reads the rows around 'position' that aren't cached yet.
+        private void loadWindow(int position, int direction) {
+            int from;
+            int to;
+            if (direction > 0) {
+                from = position - WINDOW_SIZE / 4;
+                to = position + WINDOW_SIZE;
+            } else {
+                from = position - WINDOW_SIZE + 1;
+                to = position + WINDOW_SIZE / 4 + 1;
+            }
+            from = Math.max(from, 0);
+            to = Math.min(to, mSize);
+            long [] ids = new long[to - from];
+            int count = 0;
+            LongHashSet seen = new LongHashSet();
+            for (int i = from; i < to; i++) {
+                long id = mNowPlaying[i];
+                if (!mNowPlayingRows.containsKey(id) && seen.add(id)) {
+                    ids[count++] = id;
+                }
+            }
+            long [] missing = new long[count];
+            int nmissing = 0;
+            for (int i = 0; i < count; i += BATCH_SIZE) {
+                int n = loadRows(ids, i, Math.min(count, i + BATCH_SIZE), missing, nmissing);
+                if (n < 0) {
+                    break;
+                }
+                nmissing += n;
+            }
+
+            // The tracks that are gone from the database are taken out of
+            // the queue, so there are no blank items in the list. That
+            // arrives as a new queue, so positions don't change under us.
+            if (nmissing > 0) {
+                long [] gone = new long[nmissing];
+                System.arraycopy(missing, 0, gone, 0, nmissing);
+                try {
+                    mService.removeTrackIds(gone);
+                } catch (RemoteException ex) {
+                }
+            }
+        }
+
+        // Reads the rows of ids[from] to ids[to - 1] into the cache, and adds
+        // those that don't exist to 'missing' from 'offset' on. Returns the
+        // number of missing ones, or -1 if the query failed.
+        private int loadRows(long [] ids, int from, int to, long [] missing, int offset) {
+            StringBuilder where = new StringBuilder();
+            where.append(MediaStore.Audio.Media._ID + " IN (");
+            for (int i = from; i < to; i++) {
+                if (i > from) {
+                    where.append(',');
+                }
+                where.append(ids[i]);
+            }
+            where.append(')');
+            Cursor c = MusicUtils.query(TrackBrowserActivity.this,
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    mCols, where.toString(), null, null);
+            if (c == null) {
+                return -1;
+            }
+            LongHashSet found = new LongHashSet();
+            try {
+                int idcol = c.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
+                while (c.moveToNext()) {
+                    long id = c.getLong(idcol);
+                    mNowPlayingRows.put(id, new NowPlayingRow(c, mCols.length));
+                    found.add(id);
+                }
+            } finally {
+                c.close();
+            }
+            int nmissing = 0;
+            for (int i = from; i < to; i++) {
+                if (!found.contains(ids[i])) {
+                    mNowPlayingRows.put(ids[i], mMissingRow);
+                    missing[offset + nmissing++] = ids[i];
+                }
+            }
+            return nmissing;
+        }
+
         public boolean removeItem(int which)
         {
             try {
                 if (mService.removeTracks(which, which) == 0) {
                     return false; // delete failed
                 }
-                int i = (int) which;
-                mSize--;
-                while (i < mSize) {
-                    mNowPlaying[i] = mNowPlaying[i+1];
-                    i++;
-                }
-                onMove(-1, (int) mCurPos);
+                updateQueue(-1);
             } catch (RemoteException ex) {
             }
             return true;
@@ -1212,8 +1320,8 @@ public class TrackBrowserActivity extends ListActivity
         public void moveItem(int from, int to) {
             try {
                 mService.moveQueueItem(from, to);
-                mNowPlaying = mService.getQueue();
-                onMove(-1, mCurPos); // update the underlying cursor
+                // make the same move here, and whatever else changed since
+                updateQueue(-1);
             } catch (RemoteException ex) {
             }
         }
@@ -1233,58 +1341,43 @@ public class TrackBrowserActivity extends ListActivity
         @Override
         public String getString(int column)
         {
-            try {
-                return mCurrentPlaylistCursor.getString(column);
-            } catch (Exception ex) {
-                onChange(true);
-                return "";
-            }
+            return mRow != null ? mRow.strings[column] : "";
         }
 
         @Override
         public short getShort(int column)
         {
-            return mCurrentPlaylistCursor.getShort(column);
+            return (short) getLong(column);
         }
 
         @Override
         public int getInt(int column)
         {
-            try {
-                return mCurrentPlaylistCursor.getInt(column);
-            } catch (Exception ex) {
-                onChange(true);
-                return 0;
-            }
+            return (int) getLong(column);
         }
 
         @Override
         public long getLong(int column)
         {
-            try {
-                return mCurrentPlaylistCursor.getLong(column);
-            } catch (Exception ex) {
-                onChange(true);
-                return 0;
-            }
+            return mRow != null ? mRow.longs[column] : 0;
         }
 
         @Override
         public float getFloat(int column)
         {
-            return mCurrentPlaylistCursor.getFloat(column);
+            return getLong(column);
         }
 
         @Override
         public double getDouble(int column)
         {
-            return mCurrentPlaylistCursor.getDouble(column);
+            return getLong(column);
         }
 
         @Override
         public boolean isNull(int column)
         {
-            return mCurrentPlaylistCursor.isNull(column);
+            return mRow == null || mRow.strings[column] == null;
         }
 
         @Override
@@ -1292,13 +1385,6 @@ public class TrackBrowserActivity extends ListActivity
         {
             return mCols;
         }
-        
-        @Override
-        public void deactivate()
-        {
-            if (mCurrentPlaylistCursor != null)
-                mCurrentPlaylistCursor.deactivate();
-        }
 
         @Override
         public boolean requery()
@@ -1308,10 +1394,12 @@ public class TrackBrowserActivity extends ListActivity
         }
 
         private String [] mCols;
-        private Cursor mCurrentPlaylistCursor;     // updated in onMove
+        private NowPlayingRow mRow;     // updated in onMove
+        private final NowPlayingRow mMissingRow;
         private int mSize;          // size of the queue
         private long[] mNowPlaying;
-        private long[] mCursorIdxs;
+        // the getQueueVersion() mNowPlaying is a copy of, or -1 if not known
+        private long mQueueVersion;
         private int mCurPos;
         private IMediaPlaybackService mService;
     }
@@ -1485,18 +1573,8 @@ public class TrackBrowserActivity extends ListActivity
             vh.line2.setText(vh.buffer2, 0, len);
 
             ImageView iv = vh.play_indicator;
-            long id = -1;
-            if (MusicUtils.sService != null) {
-                // TODO: IPC call on each bind??
-                try {
-                    if (mIsNowPlaying) {
-                        id = MusicUtils.sService.getQueuePosition();
-                    } else {
-                        id = MusicUtils.sService.getAudioId();
-                    }
-                } catch (RemoteException ex) {
-                }
-            }
+            PlaybackSnapshot now = MusicUtils.getNowPlaying();
+            long id = mIsNowPlaying ? now.queuePosition : now.audioId;
             
             // Determining whether and where to show the "now playing indicator
             // is tricky, because we don't actually keep track of where the songs
@@ -1563,6 +1641,9 @@ public class TrackBrowserActivity extends ListActivity
         }
         
         public int getSectionForPosition(int position) {
+            if (mIndexer != null) {
+                return mIndexer.getSectionForPosition(position);
+            }
             return 0;
         }        
     }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.MediaStore;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The media database columns the playback service needs for a track,
+ * read once and kept so the service doesn't need to hold a cursor.
+ */
+public class TrackMetadata {
+    static final String[] COLUMNS = new String[] {
+            "audio._id AS _id",             // index must match IDCOLIDX below
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media.MIME_TYPE,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.ARTIST_ID,
+            MediaStore.Audio.Media.IS_PODCAST,
+            MediaStore.Audio.Media.BOOKMARK
+    };
+    private final static int IDCOLIDX = 0;
+    private final static int ARTISTCOLIDX = 1;
+    private final static int ALBUMCOLIDX = 2;
+    private final static int TITLECOLIDX = 3;
+    private final static int DATACOLIDX = 4;
+    private final static int MIMETYPECOLIDX = 5;
+    private final static int ALBUMIDCOLIDX = 6;
+    private final static int ARTISTIDCOLIDX = 7;
+    private final static int PODCASTCOLIDX = 8;
+    private final static int BOOKMARKCOLIDX = 9;
+
+    public final long id;
+    public final String artist;
+    public final String album;
+    public final String title;
+    public final String data;
+    public final String mimeType;
+    public final long albumId;
+    public final long artistId;
+    public final boolean isPodcast;
+    public final long bookmark;
+
+    /**
+     * Reads the current row of a cursor that was queried with COLUMNS.
+     */
+    public TrackMetadata(Cursor c) {
+        id = c.getLong(IDCOLIDX);
+        artist = c.getString(ARTISTCOLIDX);
+        album = c.getString(ALBUMCOLIDX);
+        title = c.getString(TITLECOLIDX);
+        data = c.getString(DATACOLIDX);
+        mimeType = c.getString(MIMETYPECOLIDX);
+        albumId = c.getLong(ALBUMIDCOLIDX);
+        artistId = c.getLong(ARTISTIDCOLIDX);
+        isPodcast = c.getInt(PODCASTCOLIDX) > 0;
+        bookmark = c.getLong(BOOKMARKCOLIDX);
+    }
+
+    /**
+     * A bounded cache of the metadata of recently used tracks. Misses are
+     * filled in batches: looking up a track also loads the tracks that are
+     * likely to be asked for next, with a single query.
+     *
+     * The cache doesn't notice changes to the database by itself; the owner
+     * should call invalidate() when the audio table changes.
+     */
+    public static class Cache {
+        private final ContentResolver mResolver;
+        private final LinkedHashMap<Long, TrackMetadata> mMap;
+        private int mQueryCount;
+
+        public Cache(ContentResolver resolver, final int capacity) {
+            mResolver = resolver;
+            mMap = new LinkedHashMap<Long, TrackMetadata>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, TrackMetadata> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        /**
+         * Returns the metadata of the track with the given id, or null if
+         * there is no such track.
+         * @param prefetch ids of tracks to load along with it if it isn't
+         * cached, or null. Ids that are already cached are skipped.
+         */
+        public synchronized TrackMetadata get(long id, long [] prefetch) {
+            TrackMetadata track = mMap.get(id);
+            if (track != null) {
+                return track;
+            }
+            StringBuilder where = new StringBuilder();
+            where.append(MediaStore.Audio.Media._ID + " IN (");
+            where.append(id);
+            if (prefetch != null) {
+                for (int i = 0; i < prefetch.length; i++) {
+                    if (prefetch[i] != id && !mMap.containsKey(prefetch[i])) {
+                        where.append(',');
+                        where.append(prefetch[i]);
+                    }
+                }
+            }
+            where.append(')');
+            mQueryCount++;
+            Cursor c = mResolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    COLUMNS, where.toString(), null, null);
+            if (c == null) {
+                return null;
+            }
+            try {
+                while (c.moveToNext()) {
+                    TrackMetadata t = new TrackMetadata(c);
+                    mMap.put(t.id, t);
+                    if (t.id == id) {
+                        track = t;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            if (track != null) {
+                // the prefetched tracks were added after it, so make sure
+                // the one actually asked for is the most recently used
+                mMap.get(id);
+            }
+            return track;
+        }
+
+        /**
+         * Adds a track that was read by other means.
+         */
+        public synchronized void put(TrackMetadata track) {
+            mMap.put(track.id, track);
+        }
+
+        /**
+         * Forgets one track, so it's read again the next time it's needed.
+         */
+        public synchronized void remove(long id) {
+            mMap.remove(id);
+        }
+
+        public synchronized void invalidate() {
+            mMap.clear();
+        }
+
+        public synchronized int size() {
+            return mMap.size();
+        }
+
+        /**
+         * Returns the number of queries run so far.
+         */
+        public synchronized int getQueryCount() {
+            return mQueryCount;
+        }
+    }
+}
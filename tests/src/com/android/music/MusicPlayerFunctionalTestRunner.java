@@ -20,6 +20,7 @@ import android.test.InstrumentationTestRunner;
 import android.test.InstrumentationTestSuite;
 import com.android.music.tests.functional.TestSongs;
 import com.android.music.tests.functional.TestPlaylist;
+import com.android.music.tests.functional.TestShuffleOrder;
 
 import junit.framework.TestSuite;
 
@@ -43,6 +44,7 @@ public class MusicPlayerFunctionalTestRunner extends InstrumentationTestRunner {
         TestSuite suite = new InstrumentationTestSuite(this);  
         suite.addTestSuite(TestSongs.class);
         suite.addTestSuite(TestPlaylist.class);
+        suite.addTestSuite(TestShuffleOrder.class);
         suite.addTestSuite(MusicPlayerStability.class);
         return suite;
     }
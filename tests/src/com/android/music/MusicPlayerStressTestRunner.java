@@ -18,6 +18,7 @@ package com.android.music.tests;
 
 import com.android.music.tests.stress.AlbumsPlaybackStress;
 import com.android.music.tests.stress.MusicPlaybackStress;
+import com.android.music.tests.stress.ServiceLockStress;
 
 import android.test.InstrumentationTestRunner;
 import android.test.InstrumentationTestSuite;
@@ -40,6 +41,7 @@ public class MusicPlayerStressTestRunner extends InstrumentationTestRunner {
       TestSuite suite = new InstrumentationTestSuite(this);  
       //suite.addTestSuite(MusicPlaybackStress.class);
       suite.addTestSuite(AlbumsPlaybackStress.class);
+      suite.addTestSuite(ServiceLockStress.class);
       return suite;
     }
 
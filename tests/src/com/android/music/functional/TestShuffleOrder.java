@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.music.tests.functional;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.music.ShuffleOrder;
+
+import junit.framework.TestCase;
+
+/**
+ * Junit test case for the order shuffled tracks are played in
+ */
+public class TestShuffleOrder extends TestCase {
+    private static final int SIZE = 10;
+
+    /*
+     * Test case: Peeks at the next track, which the service does to prepare
+     * it, then jumps to another unplayed track instead
+     * Verification: The peeked track is still unplayed, prev() goes back to
+     * the track before the jump, and the pass plays every track once
+     */
+    @SmallTest
+    public void testJumpAfterPeek() {
+        ShuffleOrder order = new ShuffleOrder();
+        order.reset(SIZE);
+        int first = order.next(-1);
+        int peeked = order.peek();
+        assertEquals("peek is stable", peeked, order.peek());
+        assertEquals("peek doesn't count as played", 1, order.getPlayedCount());
+
+        int other = (peeked + 1) % SIZE;
+        if (other == first) {
+            other = (other + 1) % SIZE;
+        }
+        order.jumpTo(other);
+        assertEquals("played count", 2, order.getPlayedCount());
+        assertEquals("prev", first, order.prev());
+        order.next(-1);
+
+        boolean [] played = new boolean[SIZE];
+        played[first] = true;
+        played[other] = true;
+        for (int i = 2; i < SIZE; i++) {
+            int position = order.next(-1);
+            assertTrue("position " + position, position >= 0 && position < SIZE);
+            assertFalse("played twice: " + position, played[position]);
+            played[position] = true;
+        }
+        assertTrue("peeked track played", played[peeked]);
+        assertEquals("end of pass", -1, order.next(-1));
+    }
+
+    /*
+     * Test case: Peeks at the next track and then moves on to it
+     * Verification: next() goes to the peeked track
+     */
+    @SmallTest
+    public void testNextAfterPeek() {
+        ShuffleOrder order = new ShuffleOrder();
+        order.reset(SIZE);
+        order.next(-1);
+        for (int i = 1; i < SIZE; i++) {
+            int peeked = order.peek();
+            assertEquals("next", peeked, order.next(-1));
+        }
+        assertEquals("end of pass", -1, order.peek());
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.music.tests.stress;
+
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.music.CollectionQuery;
+import com.android.music.IMediaPlaybackService;
+import com.android.music.MusicUtils;
+import com.android.music.TrackBrowserActivity;
+import com.android.music.tests.MusicPlayerNames;
+
+/**
+ * Skips through the queue as fast as possible while other threads keep
+ * reading the playback state, the way widgets and the lock screen do.
+ * The reads shouldn't have to wait for the tracks being opened.
+ * The test depends on the test media in the sdcard
+ */
+public class ServiceLockStress extends ActivityInstrumentationTestCase <TrackBrowserActivity>{
+  private static final String TAG = "ServiceLockStress";
+  private static final int READER_COUNT = 4;
+  private static final int SKIP_COUNT = 200;
+  // a read shouldn't take longer than this, even while skipping
+  private static final long MAX_READ_TIME = 100;
+
+  private volatile boolean mDone;
+  private volatile Throwable mFailure;
+  private final long [] mMaxReadTime = new long[READER_COUNT];
+
+  public ServiceLockStress() {
+      super("com.android.music", TrackBrowserActivity.class);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+      super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+      super.tearDown();
+  }
+
+  private class Reader extends Thread {
+      private final IMediaPlaybackService mService;
+      private final int mSlot;
+
+      Reader(IMediaPlaybackService service, int slot) {
+          mService = service;
+          mSlot = slot;
+      }
+
+      @Override
+      public void run() {
+          try {
+              while (!mDone) {
+                  long start = SystemClock.uptimeMillis();
+                  mService.getAudioId();
+                  mService.getQueuePosition();
+                  mService.getArtistName();
+                  mService.getTrackName();
+                  mService.getSnapshot();
+                  mService.getQueueSlice(0, 20);
+                  long time = SystemClock.uptimeMillis() - start;
+                  if (time > mMaxReadTime[mSlot]) {
+                      mMaxReadTime[mSlot] = time;
+                  }
+              }
+          } catch (Throwable t) {
+              mFailure = t;
+          }
+      }
+  }
+
+  /*
+   * Test case: Plays all songs and skips back and forth through them,
+   * while several threads read the playback state
+   * Verification: No read failed, and none took longer than MAX_READ_TIME
+   */
+  @LargeTest
+  public void testReadWhileSkipping() throws Exception {
+      getActivity();
+      long deadline = SystemClock.uptimeMillis() + MusicPlayerNames.WAIT_VERY_LONG_TIME;
+      while (MusicUtils.sService == null && SystemClock.uptimeMillis() < deadline) {
+          Thread.sleep(100);
+      }
+      IMediaPlaybackService service = MusicUtils.sService;
+      assertNotNull(TAG, service);
+      service.openCollection(CollectionQuery.allSongs(), 0, false);
+      Thread.sleep(MusicPlayerNames.WAIT_SHORT_TIME);
+
+      Reader [] readers = new Reader[READER_COUNT];
+      for (int i = 0; i < READER_COUNT; i++) {
+          readers[i] = new Reader(service, i);
+          readers[i].start();
+      }
+      try {
+          for (int i = 0; i < SKIP_COUNT && mFailure == null; i++) {
+              if ((i & 3) == 3) {
+                  service.prev();
+              } else {
+                  service.next();
+              }
+          }
+      } finally {
+          mDone = true;
+          for (int i = 0; i < READER_COUNT; i++) {
+              readers[i].join();
+          }
+          service.stop();
+      }
+
+      if (mFailure != null) {
+          Log.e(TAG, "read failed", mFailure);
+      }
+      assertNull(TAG, mFailure);
+      long max = 0;
+      for (int i = 0; i < READER_COUNT; i++) {
+          max = Math.max(max, mMaxReadTime[i]);
+      }
+      Log.v(TAG, "slowest read took " + max + " ms");
+      assertTrue(TAG + ": slowest read took " + max + " ms", max <= MAX_READ_TIME);
+  }
+}